@@ -0,0 +1,421 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm;
+
+import org.unitedid.yhsm.internal.DeviceHandler;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <code>AsyncYubiHSM</code> runs YubiHSM commands on one I/O thread per device and returns a
+ * <code>CompletableFuture</code> for each of them, so callers never block on the serial round trip.
+ *
+ * Commands wait in a bounded submission queue, a pending command costs a queue slot rather than a thread. When the
+ * queue is full the returned future fails with a <code>RejectedExecutionException</code>. Commands that fail
+ * complete the future exceptionally with the same exception the blocking <code>YubiHSM</code> method throws.
+ *
+ * The I/O thread and queue belong to the device, all facades of one device share them. The queue is created with the
+ * capacity of the first facade of the device, and the thread stops when it has been idle for a minute.
+ */
+public class AsyncYubiHSM {
+
+    /** The default number of commands that may wait for the device */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /** The I/O thread and submission queue of each device, held only as long as some facade uses the device */
+    private static final Map<DeviceHandler, ThreadPoolExecutor> executors = new WeakHashMap<DeviceHandler, ThreadPoolExecutor>();
+
+    /** The blocking YubiHSM */
+    private final YubiHSM hsm;
+
+    /** The device I/O thread and its submission queue */
+    private final ThreadPoolExecutor executor;
+
+    /* Guarded by this */
+    private int outstanding = 0;
+    private boolean shutdown = false;
+
+    /**
+     * Constructor
+     *
+     * @param hsm the YubiHSM to run commands on
+     */
+    public AsyncYubiHSM(YubiHSM hsm) {
+        this(hsm, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param hsm the YubiHSM to run commands on
+     * @param queueCapacity the number of commands that may wait for the device, ignored if another facade of the
+     *                      device already created its queue
+     */
+    public AsyncYubiHSM(YubiHSM hsm, int queueCapacity) {
+        this.hsm = hsm;
+        DeviceHandler device = hsm.getRawDevice();
+        synchronized (executors) {
+            ThreadPoolExecutor shared = executors.get(device);
+            if (shared == null) {
+                final String threadName = "YubiHSM " + device.getPortName() + " I/O";
+                shared = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, threadName);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                shared.allowCoreThreadTimeOut(true);
+                executors.put(device, shared);
+            }
+            executor = shared;
+        }
+    }
+
+    /**
+     * Echo a string.
+     *
+     * @param str the string
+     * @return a future completed with the string echoed by the YubiHSM
+     * @see YubiHSM#echo(String)
+     */
+    public CompletableFuture<String> echo(final String str) {
+        return schedule(new Callable<String>() {
+            public String call() throws Exception {
+                return hsm.echo(str);
+            }
+        });
+    }
+
+    /**
+     * Generate an AEAD from data.
+     *
+     * @param nonce the nonce
+     * @param keyHandle the key handle with permission to use YSM_AEAD_GENERATE
+     * @param data the data
+     * @return a future completed with the AEAD and the nonce
+     * @see YubiHSM#generateAEAD(String, int, String)
+     */
+    public CompletableFuture<Map<String, String>> generateAEAD(final String nonce, final int keyHandle, final String data) {
+        return schedule(new Callable<Map<String, String>>() {
+            public Map<String, String> call() throws Exception {
+                return hsm.generateAEAD(nonce, keyHandle, data);
+            }
+        });
+    }
+
+    /**
+     * Generate an AEAD from data.
+     *
+     * @param nonce the nonce
+     * @param keyHandle the key handle with permission to use YSM_AEAD_GENERATE
+     * @param data the data
+     * @return a future completed with the AEAD and the nonce
+     * @see YubiHSM#generateAEAD(String, int, byte[])
+     */
+    public CompletableFuture<Map<String, String>> generateAEAD(final String nonce, final int keyHandle, final byte[] data) {
+        return schedule(new Callable<Map<String, String>>() {
+            public Map<String, String> call() throws Exception {
+                return hsm.generateAEAD(nonce, keyHandle, data);
+            }
+        });
+    }
+
+    /**
+     * Generate an AEAD of random data.
+     *
+     * @param nonce the nonce
+     * @param keyHandle the key handle with permission to use YSM_RANDOM_AEAD_GENERATE
+     * @param length the number of random bytes
+     * @return a future completed with the AEAD and the nonce
+     * @see YubiHSM#generateRandomAEAD(String, int, int)
+     */
+    public CompletableFuture<Map<String, String>> generateRandomAEAD(final String nonce, final int keyHandle, final int length) {
+        return schedule(new Callable<Map<String, String>>() {
+            public Map<String, String> call() throws Exception {
+                return hsm.generateRandomAEAD(nonce, keyHandle, length);
+            }
+        });
+    }
+
+    /**
+     * Validate an AEAD against the plaintext.
+     *
+     * @param nonce the nonce used to generate the AEAD
+     * @param keyHandle the key handle with permission to use YSM_AEAD_DECRYPT_CMP
+     * @param aead the AEAD
+     * @param plaintext the plaintext
+     * @return a future completed with true if the AEAD matches
+     * @see YubiHSM#validateAEAD(String, int, String, String)
+     */
+    public CompletableFuture<Boolean> validateAEAD(final String nonce, final int keyHandle, final String aead, final String plaintext) {
+        return schedule(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                return hsm.validateAEAD(nonce, keyHandle, aead, plaintext);
+            }
+        });
+    }
+
+    /**
+     * Generate a HMAC-SHA1 of data in one command.
+     *
+     * @param data the data
+     * @param keyHandle the key handle with permission to use YSM_HMAC_SHA1_GENERATE
+     * @param toBuffer true to store the hash in the internal buffer
+     * @return a future completed with the hash
+     * @see YubiHSM#generateHMACSHA1(byte[], int, boolean)
+     */
+    public CompletableFuture<byte[]> generateHMACSHA1(final byte[] data, final int keyHandle, final boolean toBuffer) {
+        return schedule(new Callable<byte[]>() {
+            public byte[] call() throws Exception {
+                return hsm.generateHMACSHA1(data, keyHandle, toBuffer);
+            }
+        });
+    }
+
+    /**
+     * Generate a HMAC-SHA1 of data in one command.
+     *
+     * @param data the data
+     * @param keyHandle the key handle with permission to use YSM_HMAC_SHA1_GENERATE
+     * @return a future completed with the hash in hex
+     * @see YubiHSM#generateHMACSHA1(String, int, boolean, boolean)
+     */
+    public CompletableFuture<Map<String, String>> generateHMACSHA1(final String data, final int keyHandle) {
+        return schedule(new Callable<Map<String, String>>() {
+            public Map<String, String> call() throws Exception {
+                return hsm.generateHMACSHA1(data, keyHandle, true, false);
+            }
+        });
+    }
+
+    /**
+     * Decode a YubiKey OTP.
+     *
+     * @param publicId the YubiKey public id in hex
+     * @param keyHandle the key handle with permission to use YSM_AEAD_YUBIKEY_OTP_DECODE
+     * @param aead the YubiKey AEAD
+     * @param otp the OTP in hex
+     * @return a future completed with the decoded counters and timestamps
+     * @see YubiHSM#decodeYubikeyOtp(String, int, String, String)
+     */
+    public CompletableFuture<Map<String, Integer>> decodeYubikeyOtp(final String publicId, final int keyHandle, final String aead, final String otp) {
+        return schedule(new Callable<Map<String, Integer>>() {
+            public Map<String, Integer> call() throws Exception {
+                return hsm.decodeYubikeyOtp(publicId, keyHandle, aead, otp);
+            }
+        });
+    }
+
+    /**
+     * Validate an OATH-HOTP OTP.
+     *
+     * @param keyHandle the key handle with permission to use YSM_TEMP_KEY_LOAD
+     * @param nonce the nonce used to generate the AEAD
+     * @param aead the AEAD of the token seed
+     * @param counter the current OTP counter
+     * @param otp the OTP
+     * @param lookAhead the number of counters to try
+     * @return a future completed with the next counter value, 0 if the OTP was not valid
+     * @see YubiHSM#validateOathHOTP(int, String, String, int, String, int)
+     */
+    public CompletableFuture<Integer> validateOathHOTP(final int keyHandle, final String nonce, final String aead,
+                                                       final int counter, final String otp, final int lookAhead) {
+        return schedule(new Callable<Integer>() {
+            public Integer call() throws Exception {
+                return hsm.validateOathHOTP(keyHandle, nonce, aead, counter, otp, lookAhead);
+            }
+        });
+    }
+
+    /**
+     * Validate an OATH-TOTP OTP.
+     *
+     * @param keyHandle the key handle with permission to use YSM_TEMP_KEY_LOAD
+     * @param nonce the nonce used to generate the AEAD
+     * @param aead the AEAD of the token seed
+     * @param otp the OTP
+     * @param period the period in seconds
+     * @param drift the drift of the local clock in periods
+     * @param backwardDrift the number of periods to step back
+     * @param forwardDrift the number of periods to look ahead
+     * @return a future completed with true if the OTP was valid
+     * @see YubiHSM#validateOathTOTP(int, String, String, String, int, int, int, int)
+     */
+    public CompletableFuture<Boolean> validateOathTOTP(final int keyHandle, final String nonce, final String aead, final String otp,
+                                                       final int period, final int drift, final int backwardDrift, final int forwardDrift) {
+        return schedule(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                return hsm.validateOathTOTP(keyHandle, nonce, aead, otp, period, drift, backwardDrift, forwardDrift);
+            }
+        });
+    }
+
+    /**
+     * Validate an OATH-TOTP OTP with a 30 second period and one period of drift in either direction.
+     *
+     * @param keyHandle the key handle with permission to use YSM_TEMP_KEY_LOAD
+     * @param nonce the nonce used to generate the AEAD
+     * @param aead the AEAD of the token seed
+     * @param otp the OTP
+     * @return a future completed with true if the OTP was valid
+     * @see YubiHSM#validateOathTOTP(int, String, String, String)
+     */
+    public CompletableFuture<Boolean> validateOathTOTP(final int keyHandle, final String nonce, final String aead, final String otp) {
+        return schedule(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                return hsm.validateOathTOTP(keyHandle, nonce, aead, otp);
+            }
+        });
+    }
+
+    /**
+     * Get random bytes from the YubiHSM.
+     *
+     * @param bytes the number of bytes
+     * @return a future completed with the random bytes
+     * @see YubiHSM#getRandom(int)
+     */
+    public CompletableFuture<byte[]> getRandom(final int bytes) {
+        return schedule(new Callable<byte[]>() {
+            public byte[] call() throws Exception {
+                return hsm.getRandom(bytes);
+            }
+        });
+    }
+
+    /**
+     * Run any sequence of blocking YubiHSM calls on the device I/O thread, ie a buffer load followed by an AEAD
+     * generation that must not be interleaved with other commands from this facade.
+     *
+     * @param task the task, called with the blocking YubiHSM
+     * @param <T> the result type
+     * @return a future completed with the result of the task
+     */
+    public <T> CompletableFuture<T> submit(final Task<T> task) {
+        return schedule(new Callable<T>() {
+            public T call() throws Exception {
+                return task.run(hsm);
+            }
+        });
+    }
+
+    /**
+     * Get the number of commands waiting for the device, from all facades of the device.
+     *
+     * @return the queue length
+     */
+    public int getQueueLength() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Get the blocking YubiHSM behind this facade.
+     *
+     * @return the YubiHSM
+     */
+    public YubiHSM getYubiHSM() {
+        return hsm;
+    }
+
+    /**
+     * Stop accepting commands on this facade, commands already queued still run. Other facades of the device are not
+     * affected.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+    }
+
+    /**
+     * Wait for the commands queued by this facade to finish after {@link #shutdown()}.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true if all commands finished
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!shutdown || outstanding > 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    private <T> CompletableFuture<T> schedule(final Callable<T> command) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        synchronized (this) {
+            if (shutdown) {
+                future.completeExceptionally(new RejectedExecutionException("AsyncYubiHSM has been shut down"));
+                return future;
+            }
+            outstanding++;
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (future.isDone()) {
+                            /* Cancelled while queued */
+                            return;
+                        }
+                        try {
+                            future.complete(command.call());
+                        } catch (Throwable t) {
+                            future.completeExceptionally(t);
+                        }
+                    } finally {
+                        finished();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            finished();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /** A command of this facade has run or was rejected */
+    private synchronized void finished() {
+        if (--outstanding == 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * A sequence of blocking YubiHSM calls.
+     *
+     * @param <T> the result type
+     */
+    public interface Task<T> {
+        T run(YubiHSM hsm) throws Exception;
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.unitedid.yhsm.internal.YubiHSMInputException;
+import org.unitedid.yhsm.utility.Utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * <code>HotpCounterStore</code> keeps the OATH-HOTP counter of each token, keyed by the token nonce, in a
+ * memory-mapped file of fixed size records. Updates are first appended to a journal next to the file and made
+ * durable with group commit: the thread that syncs the journal syncs every update appended so far, so concurrent
+ * updates share one fsync. Records are written to the mapped file once their journal entry is durable, and the
+ * journal is truncated after the mapped file has been forced to disk. On open the journal is replayed, entries torn
+ * by a crash are ignored.
+ *
+ * Updates are compare-and-set, two concurrent validations of the same token cannot both move its counter. An update
+ * is visible to other callers as soon as it is appended, before it is durable. If syncing fails the store refuses
+ * further use.
+ */
+public class HotpCounterStore implements Closeable {
+    /** Logger */
+    private static final Logger log = LoggerFactory.getLogger(HotpCounterStore.class);
+
+    private static final int MAGIC = 0x59484353; // "YHCS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    /** Record: 6 byte nonce, used flag, reserved byte, 8 byte counter */
+    private static final int RECORD_SIZE = 16;
+
+    /** Journal entry: 6 byte nonce, 8 byte counter, CRC32 of the two */
+    private static final int ENTRY_SIZE = 18;
+
+    /** The journal size that triggers a checkpoint */
+    private static final long CHECKPOINT_SIZE = 1 << 20;
+
+    private final File file;
+    private final RandomAccessFile dataFile;
+    private final MappedByteBuffer records;
+    private final RandomAccessFile journalFile;
+    private final FileChannel journal;
+    private final int capacity;
+
+    /* Guarded by this */
+    private final Map<Long, Integer> slots = new HashMap<Long, Integer>();
+    private final long[] counters;
+    private int nextSlot = 0;
+    private List<long[]> pending = new ArrayList<long[]>();
+    private long appended = 0;
+    private IOException failure;
+    private boolean closed = false;
+
+    /* Guarded by commitLock */
+    private final Object commitLock = new Object();
+    private volatile long durable = 0;
+
+    private final AtomicLong syncs = new AtomicLong();
+
+    /**
+     * Open a store, creating it if the file does not exist.
+     *
+     * @param file the data file, the journal is kept in the same directory with the suffix <code>.journal</code>
+     * @param capacity the number of tokens a new store can hold, ignored when the file exists
+     * @throws IOException if the store could not be opened or is not a counter store
+     */
+    public HotpCounterStore(File file, int capacity) throws IOException {
+        this.file = file;
+        boolean exists = file.exists() && file.length() > 0;
+        dataFile = new RandomAccessFile(file, "rw");
+        if (exists) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            dataFile.getChannel().read(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                dataFile.close();
+                throw new IOException(file + " is not a HOTP counter store");
+            }
+            capacity = header.getInt();
+        } else if (capacity <= 0) {
+            dataFile.close();
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.counters = new long[capacity];
+        records = dataFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        if (!exists) {
+            records.putInt(0, MAGIC);
+            records.putInt(4, VERSION);
+            records.putInt(8, capacity);
+            records.force();
+        }
+        for (int slot = 0; slot < capacity; slot++) {
+            int offset = HEADER_SIZE + slot * RECORD_SIZE;
+            if (records.get(offset + 6) != 0) {
+                slots.put(readNonce(records, offset), slot);
+                counters[slot] = records.getLong(offset + 8);
+                nextSlot = slot + 1;
+            }
+        }
+
+        journalFile = new RandomAccessFile(new File(file.getPath() + ".journal"), "rw");
+        journal = journalFile.getChannel();
+        replay();
+        checkpoint();
+    }
+
+    /**
+     * Get the counter of a token.
+     *
+     * @param nonce the nonce used to generate the token AEAD
+     * @return the counter, 0 for a token not in the store
+     * @throws YubiHSMInputException if the nonce is not at most 6 bytes of hex
+     * @throws IOException if the store has failed or is closed
+     */
+    public long get(String nonce) throws YubiHSMInputException, IOException {
+        return get(key(nonce));
+    }
+
+    /** Get the counter of a token by its nonce key, see {@link #key(byte[])} */
+    synchronized long get(long nonceKey) throws IOException {
+        checkUsable();
+        Integer slot = slots.get(nonceKey);
+        return slot == null ? 0 : counters[slot];
+    }
+
+    /**
+     * Set the counter of a token if it is the expected value, and wait until the update is durable.
+     *
+     * @param nonce the nonce used to generate the token AEAD
+     * @param expected the expected counter, 0 for a token not in the store
+     * @param update the new counter
+     * @return true if the counter was updated, false if it was not the expected value
+     * @throws YubiHSMInputException if the nonce is not at most 6 bytes of hex
+     * @throws IOException if the store is full, has failed or the update could not be made durable
+     */
+    public boolean compareAndSet(String nonce, long expected, long update) throws YubiHSMInputException, IOException {
+        return compareAndSet(key(nonce), expected, update);
+    }
+
+    /** Set the counter of a token by its nonce key if it is the expected value, see {@link #key(byte[])} */
+    boolean compareAndSet(long nonceKey, long expected, long update) throws IOException {
+        long sequence;
+        synchronized (this) {
+            checkUsable();
+            Integer slot = slots.get(nonceKey);
+            if ((slot == null ? 0 : counters[slot]) != expected) {
+                return false;
+            }
+            if (slot == null) {
+                slot = allocate(nonceKey);
+            }
+            counters[slot] = update;
+            pending.add(new long[] {slot, nonceKey, update});
+            sequence = ++appended;
+        }
+        commit(sequence);
+        return true;
+    }
+
+    /**
+     * Get the number of tokens in the store.
+     *
+     * @return the number of tokens
+     */
+    public synchronized int size() {
+        return slots.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the number of journal syncs, each makes every update appended before it durable.
+     *
+     * @return the number of syncs
+     */
+    public long getSyncs() {
+        return syncs.get();
+    }
+
+    /**
+     * Make the pending updates durable, checkpoint and close the files.
+     *
+     * @throws IOException if the updates could not be made durable
+     */
+    public void close() throws IOException {
+        long sequence;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            sequence = appended;
+        }
+        try {
+            commit(sequence);
+            synchronized (commitLock) {
+                checkpoint();
+            }
+        } finally {
+            synchronized (this) {
+                closed = true;
+            }
+            journal.close();
+            journalFile.close();
+            dataFile.close();
+        }
+    }
+
+    /**
+     * Make every update up to a sequence number durable. The first caller to get the commit lock syncs the updates
+     * of everyone who appended before it, the others find their update durable when they get the lock.
+     */
+    private void commit(long sequence) throws IOException {
+        synchronized (commitLock) {
+            if (durable >= sequence) {
+                return;
+            }
+            List<long[]> batch;
+            long last;
+            synchronized (this) {
+                checkUsable();
+                batch = pending;
+                pending = new ArrayList<long[]>();
+                last = appended;
+            }
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(batch.size() * ENTRY_SIZE);
+                CRC32 crc = new CRC32();
+                for (long[] entry : batch) {
+                    int start = buffer.position();
+                    writeNonce(buffer, entry[1]);
+                    buffer.putLong(entry[2]);
+                    crc.reset();
+                    crc.update(buffer.array(), start, ENTRY_SIZE - 4);
+                    buffer.putInt((int) crc.getValue());
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    journal.write(buffer, journal.size());
+                }
+                journal.force(false);
+                syncs.incrementAndGet();
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                }
+                log.error("Failed to sync the journal of {}, refusing further updates", file, e);
+                throw e;
+            }
+            for (long[] entry : batch) {
+                writeRecord((int) entry[0], entry[1], entry[2]);
+            }
+            durable = last;
+            if (journal.size() >= CHECKPOINT_SIZE) {
+                checkpoint();
+            }
+        }
+    }
+
+    /** Force the records to disk and empty the journal, called with the commit lock held or from the constructor */
+    private void checkpoint() throws IOException {
+        records.force();
+        journal.truncate(0);
+        journal.force(true);
+    }
+
+    /** Apply the journal entries left by the previous run, stopping at the first torn entry */
+    private void replay() throws IOException {
+        long size = journal.size();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, Integer.MAX_VALUE));
+        journal.read(buffer, 0);
+        buffer.flip();
+        CRC32 crc = new CRC32();
+        int entries = 0;
+        while (buffer.remaining() >= ENTRY_SIZE) {
+            int start = buffer.position();
+            crc.reset();
+            crc.update(buffer.array(), start, ENTRY_SIZE - 4);
+            long nonceKey = readNonce(buffer, start);
+            long counter = buffer.getLong(start + 6);
+            if (buffer.getInt(start + ENTRY_SIZE - 4) != (int) crc.getValue()) {
+                log.warn("Ignoring torn journal entry at offset {} of {}", start, file);
+                break;
+            }
+            buffer.position(start + ENTRY_SIZE);
+            Integer slot = slots.get(nonceKey);
+            if (slot == null) {
+                slot = allocate(nonceKey);
+            }
+            counters[slot] = counter;
+            writeRecord(slot, nonceKey, counter);
+            entries++;
+        }
+        if (entries > 0) {
+            log.info("Replayed {} journal entries into {}", entries, file);
+        }
+    }
+
+    /**
+     * Give a new token the slot after the last one used. Records may reach the disk out of order after a crash, so
+     * slots left empty in between are not reused.
+     */
+    private int allocate(long nonceKey) throws IOException {
+        if (nextSlot == capacity) {
+            throw new IOException(file + " is full, it holds " + capacity + " tokens");
+        }
+        slots.put(nonceKey, nextSlot);
+        return nextSlot++;
+    }
+
+    private void writeRecord(int slot, long nonceKey, long counter) {
+        int offset = HEADER_SIZE + slot * RECORD_SIZE;
+        for (int i = 0; i < 6; i++) {
+            records.put(offset + i, (byte) (nonceKey >>> (40 - 8 * i)));
+        }
+        records.putLong(offset + 8, counter);
+        records.put(offset + 6, (byte) 1);
+    }
+
+    private void checkUsable() throws IOException {
+        if (closed) {
+            throw new IOException(file + " is closed");
+        }
+        if (failure != null) {
+            throw new IOException(file + " failed to sync its journal", failure);
+        }
+    }
+
+    private static long readNonce(ByteBuffer buffer, int offset) {
+        long nonceKey = 0;
+        for (int i = 0; i < 6; i++) {
+            nonceKey = nonceKey << 8 | (buffer.get(offset + i) & 0xff);
+        }
+        return nonceKey;
+    }
+
+    private static void writeNonce(ByteBuffer buffer, long nonceKey) {
+        for (int i = 0; i < 6; i++) {
+            buffer.put((byte) (nonceKey >>> (40 - 8 * i)));
+        }
+    }
+
+    /** The nonce as a long, zero padded to 6 bytes like the YubiHSM pads it */
+    private static long key(String nonce) throws YubiHSMInputException {
+        return key(Utils.hexToByteArray(nonce));
+    }
+
+    /** The nonce as a long, zero padded to 6 bytes like the YubiHSM pads it */
+    static long key(byte[] nonce) throws YubiHSMInputException {
+        return readNonce(ByteBuffer.wrap(Utils.validateNonce(nonce, true)), 0);
+    }
+}
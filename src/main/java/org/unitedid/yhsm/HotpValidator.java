@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm;
+
+import org.unitedid.yhsm.internal.OATH;
+import org.unitedid.yhsm.internal.YubiHSMCommandFailedException;
+import org.unitedid.yhsm.internal.YubiHSMErrorException;
+import org.unitedid.yhsm.internal.YubiHSMInputException;
+
+import java.io.IOException;
+
+/**
+ * <code>HotpValidator</code> validates OATH-HOTP codes against the counters kept in a {@link HotpCounterStore}. The
+ * counter is read from the store, the look ahead window is searched on the YubiHSM and the next counter is stored
+ * with compare-and-set, so of two concurrent validations of the same token at most one succeeds and a code can only
+ * be used once, across restarts.
+ */
+public class HotpValidator {
+
+    /** The default number of counters searched */
+    public static final int DEFAULT_LOOK_AHEAD = 10;
+
+    private final YubiHSM hsm;
+    private final int keyHandle;
+    private final HotpCounterStore store;
+    private final int lookAhead;
+
+    /**
+     * Constructor, sets the default lookAhead = 10.
+     *
+     * @param hsm the YubiHSM
+     * @param keyHandle a keyHandle with the permission YSM_TEMP_KEY_LOAD enabled
+     * @param store the counter store
+     */
+    public HotpValidator(YubiHSM hsm, int keyHandle, HotpCounterStore store) {
+        this(hsm, keyHandle, store, DEFAULT_LOOK_AHEAD);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param hsm the YubiHSM
+     * @param keyHandle a keyHandle with the permission YSM_TEMP_KEY_LOAD enabled
+     * @param store the counter store
+     * @param lookAhead the number of counters searched, starting with the stored counter
+     */
+    public HotpValidator(YubiHSM hsm, int keyHandle, HotpCounterStore store, int lookAhead) {
+        this.hsm = hsm;
+        this.keyHandle = keyHandle;
+        this.store = store;
+        this.lookAhead = lookAhead;
+    }
+
+    /**
+     * Validate a HOTP code and store the next counter of the token.
+     *
+     * @param nonce the nonce used to generate the AEAD
+     * @param aead the AEAD based on the token seed
+     * @param otp the token OTP
+     * @return true if the OTP validated and the counter was moved past it, false otherwise
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     * @throws IOException if the next counter could not be made durable
+     */
+    public boolean validate(String nonce, String aead, String otp)
+            throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException, IOException {
+        long counter = store.get(nonce);
+        long next = OATH.findCounter(hsm, keyHandle, nonce, aead, counter, lookAhead, otp) + 1;
+        return next > 0 && store.compareAndSet(nonce, counter, next);
+    }
+}
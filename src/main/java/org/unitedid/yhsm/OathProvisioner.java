@@ -0,0 +1,456 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.unitedid.yhsm.internal.YubiHSMCommandFailedException;
+import org.unitedid.yhsm.internal.YubiHSMErrorException;
+import org.unitedid.yhsm.internal.YubiHSMInputException;
+import org.unitedid.yhsm.utility.Utils;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import static org.unitedid.yhsm.internal.Defines.YSM_AEAD_NONCE_SIZE;
+
+/**
+ * <code>OathProvisioner</code> turns a file of OATH token seeds into AEADs, streaming the seeds in batches through
+ * pipelined buffer load and buffer AEAD pairs, see {@link YubiHSM#generateOathAEAD(List, int, List)}. Seeds are read
+ * from CSV, <code>id,seed[,nonce]</code> with the seed and optional nonce in hex, or from PSKC (RFC 6030) with plain
+ * text secrets. Tokens without a nonce get a unique nonce from the YubiHSM.
+ *
+ * The output is binary: a header followed by one record per token, the id, the nonce and the AEAD. Each batch is
+ * forced to disk before the next is started. Provisioning into an existing output resumes after the last complete
+ * record, the ids already written must match the start of the input.
+ */
+public class OathProvisioner {
+    /** Logger */
+    private static final Logger log = LoggerFactory.getLogger(OathProvisioner.class);
+
+    /** The default number of tokens per batch */
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    private static final int MAGIC = 0x59485056; // "YHPV"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    private final YubiHSM hsm;
+    private final int keyHandle;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private Progress progress;
+
+    /**
+     * Constructor
+     *
+     * @param hsm the YubiHSM, set a pipeline depth above 1 to pipeline the commands
+     * @param keyHandle the key handle with permission to generateBufferAEAD
+     */
+    public OathProvisioner(YubiHSM hsm, int keyHandle) {
+        this.hsm = hsm;
+        this.keyHandle = keyHandle;
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        this.batchSize = batchSize;
+    }
+
+    public void setProgress(Progress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Provision every token in a seed source, resuming if the output already holds records.
+     *
+     * @param source the seeds
+     * @param output the output file
+     * @return the number of tokens provisioned by this call, not counting the ones resumed after
+     * @throws IOException if reading the seeds or writing the output failed, or the output does not match the seeds
+     * @throws YubiHSMInputException if a seed or nonce is invalid
+     * @throws YubiHSMCommandFailedException if the YubiHSM failed to generate an AEAD
+     * @throws YubiHSMErrorException error exception
+     */
+    public long provision(SeedSource source, File output)
+            throws IOException, YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
+        RandomAccessFile file = new RandomAccessFile(output, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            long resumed = resume(channel, source);
+            if (resumed > 0) {
+                log.info("Resuming provisioning into {} after {} tokens", output, resumed);
+            }
+
+            long start = System.nanoTime();
+            long provisioned = 0;
+            List<Seed> batch = new ArrayList<Seed>(batchSize);
+            Seed seed;
+            do {
+                seed = source.next();
+                if (seed != null) {
+                    batch.add(seed);
+                }
+                if (batch.size() == batchSize || (seed == null && !batch.isEmpty())) {
+                    write(channel, batch, generate(batch));
+                    provisioned += batch.size();
+                    batch.clear();
+                    if (progress != null) {
+                        double seconds = (System.nanoTime() - start) / 1e9;
+                        progress.update(resumed + provisioned, seconds > 0 ? provisioned / seconds : 0);
+                    }
+                }
+            } while (seed != null);
+            return provisioned;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Open a CSV seed file, one <code>id,seed[,nonce]</code> line per token. Empty lines and lines starting with
+     * <code>#</code> are skipped.
+     *
+     * @param file the file
+     * @return the seed source
+     * @throws IOException if the file could not be opened
+     */
+    public static SeedSource csv(File file) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        return new SeedSource() {
+            private int line = 0;
+
+            public Seed next() throws IOException {
+                String text;
+                while ((text = reader.readLine()) != null) {
+                    line++;
+                    text = text.trim();
+                    if (text.isEmpty() || text.startsWith("#")) {
+                        continue;
+                    }
+                    String[] fields = text.split("\\s*,\\s*");
+                    if (fields.length < 2 || fields.length > 3) {
+                        throw new IOException("Expected id,seed[,nonce] on line " + line);
+                    }
+                    try {
+                        return new Seed(fields[0], Utils.hexToByteArray(fields[1]),
+                                fields.length == 3 ? Utils.hexToByteArray(fields[2]) : null);
+                    } catch (YubiHSMInputException e) {
+                        throw new IOException("Invalid hex on line " + line + ": " + e.getMessage());
+                    }
+                }
+                return null;
+            }
+
+            public void close() throws IOException {
+                reader.close();
+            }
+        };
+    }
+
+    /**
+     * Open a PSKC (RFC 6030) key container. Only plain text secrets are supported.
+     *
+     * @param file the file
+     * @return the seed source
+     * @throws IOException if the file could not be opened
+     */
+    public static SeedSource pskc(File file) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        final XMLStreamReader xml;
+        try {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            xml = factory.createXMLStreamReader(in);
+        } catch (XMLStreamException e) {
+            in.close();
+            throw new IOException("Failed to parse " + file, e);
+        }
+        return new SeedSource() {
+            public Seed next() throws IOException {
+                try {
+                    String id = null;
+                    byte[] secret = null;
+                    boolean inSecret = false;
+                    while (xml.hasNext()) {
+                        int event = xml.next();
+                        if (event == XMLStreamReader.START_ELEMENT) {
+                            String name = xml.getLocalName();
+                            if ("Key".equals(name)) {
+                                id = xml.getAttributeValue(null, "Id");
+                                secret = null;
+                            } else if ("Secret".equals(name)) {
+                                inSecret = true;
+                            } else if (inSecret && "PlainValue".equals(name)) {
+                                secret = Base64.getMimeDecoder().decode(xml.getElementText().trim());
+                            } else if (inSecret && "EncryptedValue".equals(name)) {
+                                throw new IOException("Encrypted PSKC secrets are not supported, key " + id);
+                            }
+                        } else if (event == XMLStreamReader.END_ELEMENT) {
+                            String name = xml.getLocalName();
+                            if ("Secret".equals(name)) {
+                                inSecret = false;
+                            } else if ("Key".equals(name)) {
+                                if (id == null || secret == null) {
+                                    throw new IOException("PSKC key " + id + " has no id or plain text secret");
+                                }
+                                return new Seed(id, secret, null);
+                            }
+                        }
+                    }
+                    return null;
+                } catch (XMLStreamException e) {
+                    throw new IOException("Failed to parse PSKC", e);
+                }
+            }
+
+            public void close() throws IOException {
+                try {
+                    xml.close();
+                } catch (XMLStreamException e) {
+                    throw new IOException(e);
+                } finally {
+                    in.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Read the records of a provisioning output.
+     *
+     * @param output the output file
+     * @return the records, complete records only
+     * @throws IOException if the file could not be read or is not a provisioning output
+     */
+    public static List<Record> read(File output) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(output, "r");
+        try {
+            List<Record> records = new ArrayList<Record>();
+            FileChannel channel = file.getChannel();
+            readHeader(channel);
+            Record record;
+            while ((record = readRecord(channel)) != null) {
+                records.add(record);
+            }
+            return records;
+        } finally {
+            file.close();
+        }
+    }
+
+    private List<byte[]> generate(List<Seed> batch)
+            throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
+        List<byte[]> nonces = new ArrayList<byte[]>(batch.size());
+        List<byte[]> seeds = new ArrayList<byte[]>(batch.size());
+        for (Seed seed : batch) {
+            nonces.add(seed.getNonce() != null ? seed.getNonce() : new byte[YSM_AEAD_NONCE_SIZE]);
+            seeds.add(seed.getSecret());
+        }
+        return hsm.generateOathAEAD(nonces, keyHandle, seeds);
+    }
+
+    private void write(FileChannel channel, List<Seed> batch, List<byte[]> aeads) throws IOException {
+        int length = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            length += 3 + batch.get(i).getId().getBytes(StandardCharsets.UTF_8).length + aeads.get(i).length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (int i = 0; i < batch.size(); i++) {
+            byte[] id = batch.get(i).getId().getBytes(StandardCharsets.UTF_8);
+            byte[] aead = aeads.get(i);
+            buffer.putShort((short) id.length).put(id);
+            buffer.put(aead, 0, YSM_AEAD_NONCE_SIZE);
+            buffer.put((byte) (aead.length - YSM_AEAD_NONCE_SIZE)).put(aead, YSM_AEAD_NONCE_SIZE, aead.length - YSM_AEAD_NONCE_SIZE);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Check the header and records already written, truncate a torn last record and skip the seeds of the
+     * complete ones. A new output gets its header.
+     */
+    private long resume(FileChannel channel, SeedSource source) throws IOException {
+        if (channel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(keyHandle).putInt(0).flip();
+            channel.write(header);
+            channel.force(false);
+            return 0;
+        }
+        int writtenKeyHandle = readHeader(channel);
+        if (writtenKeyHandle != keyHandle) {
+            throw new IOException(String.format("Output was provisioned with key handle 0x%x, not 0x%x", writtenKeyHandle, keyHandle));
+        }
+        long resumed = 0;
+        long end = channel.position();
+        Record record;
+        while ((record = readRecord(channel)) != null) {
+            Seed seed = source.next();
+            if (seed == null || !seed.getId().equals(record.getId())) {
+                throw new IOException("Output record " + resumed + " is token " + record.getId() + " but the input has "
+                        + (seed == null ? "no more tokens" : "token " + seed.getId()));
+            }
+            resumed++;
+            end = channel.position();
+        }
+        if (end < channel.size()) {
+            log.warn("Truncating an incomplete record at offset {}", end);
+            channel.truncate(end);
+        }
+        channel.position(end);
+        return resumed;
+    }
+
+    private static int readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (!readFully(channel, header) || header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new IOException("Not an OATH provisioning output");
+        }
+        return header.getInt();
+    }
+
+    /** Read a record at the channel position, null at the end or for a torn record */
+    private static Record readRecord(FileChannel channel) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(2);
+        if (!readFully(channel, length)) {
+            return null;
+        }
+        ByteBuffer idAndNonce = ByteBuffer.allocate((length.getShort() & 0xffff) + YSM_AEAD_NONCE_SIZE + 1);
+        if (!readFully(channel, idAndNonce)) {
+            return null;
+        }
+        byte[] id = new byte[idAndNonce.capacity() - YSM_AEAD_NONCE_SIZE - 1];
+        byte[] nonce = new byte[YSM_AEAD_NONCE_SIZE];
+        idAndNonce.get(id).get(nonce);
+        ByteBuffer aead = ByteBuffer.allocate(idAndNonce.get() & 0xff);
+        if (!readFully(channel, aead)) {
+            return null;
+        }
+        return new Record(new String(id, StandardCharsets.UTF_8), nonce, aead.array());
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+
+    /** Reports progress after each batch */
+    public interface Progress {
+        /**
+         * Called after a batch has been written.
+         *
+         * @param tokens the number of tokens in the output
+         * @param tokensPerSecond the throughput of this run
+         */
+        void update(long tokens, double tokensPerSecond);
+    }
+
+    /** A stream of token seeds */
+    public interface SeedSource extends Closeable {
+        /**
+         * Read the next seed.
+         *
+         * @return the seed, null at the end
+         * @throws IOException if the seed could not be read
+         */
+        Seed next() throws IOException;
+    }
+
+    /** A token seed to provision */
+    public static class Seed {
+        private final String id;
+        private final byte[] secret;
+        private final byte[] nonce;
+
+        /**
+         * Constructor
+         *
+         * @param id the token id
+         * @param secret the 20 byte seed
+         * @param nonce the nonce, or null to let the YubiHSM pick one
+         */
+        public Seed(String id, byte[] secret, byte[] nonce) {
+            this.id = id;
+            this.secret = secret;
+            this.nonce = nonce;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public byte[] getSecret() {
+            return secret;
+        }
+
+        public byte[] getNonce() {
+            return nonce;
+        }
+    }
+
+    /** A provisioned token */
+    public static class Record {
+        private final String id;
+        private final byte[] nonce;
+        private final byte[] aead;
+
+        public Record(String id, byte[] nonce, byte[] aead) {
+            this.id = id;
+            this.nonce = nonce;
+            this.aead = aead;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public byte[] getNonce() {
+            return nonce;
+        }
+
+        public byte[] getAead() {
+            return aead;
+        }
+    }
+}
@@ -0,0 +1,557 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm;
+
+import org.unitedid.yhsm.internal.OATH;
+import org.unitedid.yhsm.internal.YubiHSMCommandFailedException;
+import org.unitedid.yhsm.internal.YubiHSMErrorException;
+import org.unitedid.yhsm.internal.YubiHSMInputException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.Clock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static org.unitedid.yhsm.internal.Defines.*;
+
+/**
+ * <code>OathTokenDatabase</code> holds OATH tokens as fixed size binary records off the Java heap, each with its
+ * nonce, AEAD, key handle, counter or last accepted time step and drift. An off-heap open addressing table maps
+ * token ids to records. Validation goes from a token id and an OTP code straight to the YubiHSM command frames,
+ * nothing is converted to or from hex.
+ *
+ * The counter, or the last accepted step and drift, of each token is kept durable in a {@link HotpCounterStore}
+ * keyed by the token nonce, so tokens sharing a store must have distinct nonces. A validation returns true only
+ * after the store has synced the update, the records hold a copy for reads.
+ *
+ * HOTP tokens are searched from the stored counter over the look ahead window. TOTP tokens are searched most likely
+ * step first around the current step adjusted for the stored drift, steps at or before the last accepted step are
+ * never tried again. Validations of the same token are serialized, other tokens validate concurrently.
+ */
+public class OathTokenDatabase {
+
+    /** Token types */
+    public static final byte HOTP = 1;
+    public static final byte TOTP = 2;
+
+    private static final int MAGIC = 0x59484f54; // "YHOT"
+    private static final int MAX_AEAD_SIZE = YSM_MAX_KEY_SIZE + 4 + YSM_AEAD_MAC_SIZE;
+
+    /* Record layout */
+    private static final int TYPE = 0;
+    private static final int AEAD_LENGTH = 1;
+    private static final int NONCE = 2;
+    private static final int KEY_HANDLE = 8;
+    private static final int COUNTER = 12;
+    private static final int DRIFT = 20;
+    private static final int PERIOD = 24;
+    private static final int AEAD = 28;
+    static final int RECORD_SIZE = AEAD + MAX_AEAD_SIZE;
+
+    /** Index entry: token id and record number + 1, 0 marks an empty entry */
+    private static final int ENTRY_SIZE = 12;
+
+    private static final int STRIPES = 64;
+
+    private final YubiHSM hsm;
+    private final HotpCounterStore store;
+    private final int capacity;
+    private final int lookAhead;
+    private final int backwardSteps;
+    private final int forwardSteps;
+    private final Clock clock;
+
+    private final ByteBuffer records;
+    private final ByteBuffer index;
+    private final int indexMask;
+    private final int[] freeRecords;
+    private int free;
+    private int size = 0;
+
+    /** Write locked to add or remove tokens, read locked to validate */
+    private final ReadWriteLock structure = new ReentrantReadWriteLock();
+    private final Object[] stripes = new Object[STRIPES];
+
+    /**
+     * Constructor, sets the defaults lookAhead = 10, backwardSteps = 1 and forwardSteps = 1.
+     *
+     * @param hsm the YubiHSM
+     * @param store the store keeping the counters durable
+     * @param capacity the number of tokens the database can hold
+     */
+    public OathTokenDatabase(YubiHSM hsm, HotpCounterStore store, int capacity) {
+        this(hsm, store, capacity, 10, 1, 1, Clock.systemUTC());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param hsm the YubiHSM
+     * @param store the store keeping the counters durable
+     * @param capacity the number of tokens the database can hold
+     * @param lookAhead the number of HOTP counters searched, starting with the stored counter
+     * @param backwardSteps the number of TOTP steps accepted before the expected step
+     * @param forwardSteps the number of TOTP steps accepted after the expected step
+     * @param clock the clock giving the current time for TOTP
+     */
+    public OathTokenDatabase(YubiHSM hsm, HotpCounterStore store, int capacity, int lookAhead, int backwardSteps, int forwardSteps, Clock clock) {
+        if (capacity <= 0 || capacity > (Integer.MAX_VALUE / RECORD_SIZE)) {
+            throw new IllegalArgumentException("Capacity must be between 1 and " + Integer.MAX_VALUE / RECORD_SIZE);
+        }
+        this.hsm = hsm;
+        this.store = store;
+        this.capacity = capacity;
+        this.lookAhead = lookAhead;
+        this.backwardSteps = backwardSteps;
+        this.forwardSteps = forwardSteps;
+        this.clock = clock;
+
+        int indexSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        records = ByteBuffer.allocateDirect(capacity * RECORD_SIZE);
+        index = ByteBuffer.allocateDirect(indexSize * ENTRY_SIZE);
+        indexMask = indexSize - 1;
+        freeRecords = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            freeRecords[i] = capacity - 1 - i;
+        }
+        free = capacity;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    /**
+     * Add or replace an OATH-HOTP token.
+     *
+     * @param tokenId the token id
+     * @param nonce the nonce used to generate the AEAD, at most 6 bytes
+     * @param keyHandle the key handle the AEAD was generated with
+     * @param aead the AEAD based on the token seed
+     * @param counter the next counter of the token, the stored counter is kept if it is higher
+     * @throws YubiHSMInputException if the nonce or AEAD is too long
+     * @throws IOException if the counter store has failed or is closed
+     */
+    public void putHotp(long tokenId, byte[] nonce, int keyHandle, byte[] aead, long counter) throws YubiHSMInputException, IOException {
+        put(tokenId, HOTP, nonce, keyHandle, aead, counter, 0, 0);
+    }
+
+    /**
+     * Add or replace an OATH-TOTP token.
+     *
+     * @param tokenId the token id
+     * @param nonce the nonce used to generate the AEAD, at most 6 bytes
+     * @param keyHandle the key handle the AEAD was generated with
+     * @param aead the AEAD based on the token seed
+     * @param period the period between OTP changes in seconds
+     * @throws YubiHSMInputException if the nonce or AEAD is too long or the period is not positive
+     * @throws IOException if the counter store has failed or is closed
+     */
+    public void putTotp(long tokenId, byte[] nonce, int keyHandle, byte[] aead, int period) throws YubiHSMInputException, IOException {
+        if (period <= 0) {
+            throw new YubiHSMInputException("Period must be positive but was " + period);
+        }
+        put(tokenId, TOTP, nonce, keyHandle, aead, -1, 0, period);
+    }
+
+    /**
+     * Remove a token.
+     *
+     * @param tokenId the token id
+     * @return true if the token was removed, false if it was not in the database
+     */
+    public boolean remove(long tokenId) {
+        structure.writeLock().lock();
+        try {
+            int entry = findEntry(tokenId);
+            if (entry < 0) {
+                return false;
+            }
+            int record = index.getInt(entry * ENTRY_SIZE + 8) - 1;
+            records.put(record * RECORD_SIZE + TYPE, (byte) 0);
+            freeRecords[free++] = record;
+            deleteEntry(entry);
+            size--;
+            return true;
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    public boolean contains(long tokenId) {
+        structure.readLock().lock();
+        try {
+            return findEntry(tokenId) >= 0;
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the stored counter of a HOTP token or the last accepted step of a TOTP token.
+     *
+     * @param tokenId the token id
+     * @return the counter or step, -1 if the token is unknown or no TOTP code has been accepted
+     */
+    public long getCounter(long tokenId) {
+        structure.readLock().lock();
+        try {
+            int record = findRecord(tokenId);
+            if (record < 0) {
+                return -1;
+            }
+            synchronized (stripe(tokenId)) {
+                return records.getLong(record * RECORD_SIZE + COUNTER);
+            }
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the drift learned for a TOTP token.
+     *
+     * @param tokenId the token id
+     * @return the number of steps the token is ahead of the local clock, 0 for unknown and HOTP tokens
+     */
+    public int getDrift(long tokenId) {
+        structure.readLock().lock();
+        try {
+            int record = findRecord(tokenId);
+            if (record < 0) {
+                return 0;
+            }
+            synchronized (stripe(tokenId)) {
+                return records.getInt(record * RECORD_SIZE + DRIFT);
+            }
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        structure.readLock().lock();
+        try {
+            return size;
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Validate an OTP.
+     *
+     * @param tokenId the token id
+     * @param otp the token OTP
+     * @return true if the OTP validated, false if it did not, was already used or the token is unknown
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     * @throws IOException if the update could not be made durable
+     */
+    public boolean validate(long tokenId, String otp)
+            throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException, IOException {
+        return validate(tokenId, OATH.parseOtp(otp), otp.length());
+    }
+
+    /**
+     * Validate an OTP given as an int, ie parsed straight from the request.
+     *
+     * @param tokenId the token id
+     * @param code the OTP code, see {@link OATH#parseOtp(String)}
+     * @param otpLength the number of OTP digits (6-8)
+     * @return true if the OTP validated, false if it did not, was already used or the token is unknown
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     * @throws IOException if the update could not be made durable
+     */
+    public boolean validate(long tokenId, int code, int otpLength)
+            throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException, IOException {
+        if (otpLength < 6 || otpLength > 8) {
+            throw new YubiHSMInputException("OTP not of required length, should be between 6-8 digits long but was " + otpLength);
+        }
+        structure.readLock().lock();
+        try {
+            int record = findRecord(tokenId);
+            if (record < 0 || code < 0) {
+                return false;
+            }
+            int base = record * RECORD_SIZE;
+            synchronized (stripe(tokenId)) {
+                byte[] nonce = new byte[YSM_AEAD_NONCE_SIZE];
+                byte[] aead = new byte[records.get(base + AEAD_LENGTH)];
+                read(base + NONCE, nonce);
+                read(base + AEAD, aead);
+                int keyHandle = records.getInt(base + KEY_HANDLE);
+                long nonceKey = HotpCounterStore.key(nonce);
+                long stored = store.get(nonceKey);
+                sync(base, stored);
+                long counter = records.getLong(base + COUNTER);
+
+                if (records.get(base + TYPE) == HOTP) {
+                    long[] counters = new long[lookAhead];
+                    for (int i = 0; i < lookAhead; i++) {
+                        counters[i] = counter + i;
+                    }
+                    long match = OATH.findCounter(hsm, keyHandle, nonce, aead, counters, lookAhead, code, otpLength);
+                    if (match < 0 || !store.compareAndSet(nonceKey, stored, match + 1)) {
+                        return false;
+                    }
+                    records.putLong(base + COUNTER, match + 1);
+                    return true;
+                }
+
+                long now = clock.millis() / 1000 / records.getInt(base + PERIOD);
+                long[] steps = new long[backwardSteps + forwardSteps + 1];
+                int count = OATH.totpSteps(now + records.getInt(base + DRIFT), backwardSteps, forwardSteps, counter + 1, steps);
+                long match = OATH.findCounter(hsm, keyHandle, nonce, aead, steps, count, code, otpLength);
+                if (match < 0) {
+                    return false;
+                }
+                int drift = (int) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, match - now));
+                if (!store.compareAndSet(nonceKey, stored, (match + 1) << 16 | (drift & 0xffff))) {
+                    return false;
+                }
+                records.putLong(base + COUNTER, match);
+                records.putInt(base + DRIFT, drift);
+                return true;
+            }
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Write the tokens to a file, each as its id followed by its record.
+     *
+     * @param file the file
+     * @throws IOException if the file could not be written
+     */
+    public void save(File file) throws IOException {
+        structure.writeLock().lock();
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = out.getChannel();
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putInt(MAGIC).putInt(size).flip();
+            channel.write(header);
+            ByteBuffer id = ByteBuffer.allocate(8);
+            for (int entry = 0; entry <= indexMask; entry++) {
+                int record = index.getInt(entry * ENTRY_SIZE + 8) - 1;
+                if (record >= 0) {
+                    id.clear();
+                    id.putLong(index.getLong(entry * ENTRY_SIZE)).flip();
+                    channel.write(id);
+                    ByteBuffer slice = records.duplicate();
+                    slice.limit(record * RECORD_SIZE + RECORD_SIZE).position(record * RECORD_SIZE);
+                    channel.write(slice);
+                }
+            }
+            channel.force(false);
+        } finally {
+            out.close();
+            structure.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add the tokens in a file written by {@link #save(File)}, replacing tokens with the same id. Counters in the
+     * store that are ahead of the file are kept.
+     *
+     * @param file the file
+     * @throws IOException if the file could not be read or is not a token database
+     */
+    public void load(File file) throws IOException {
+        structure.writeLock().lock();
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(8);
+            readFully(channel, header);
+            if (header.getInt() != MAGIC) {
+                throw new IOException(file + " is not an OATH token database");
+            }
+            int tokens = header.getInt();
+            ByteBuffer entry = ByteBuffer.allocate(8 + RECORD_SIZE);
+            for (int i = 0; i < tokens; i++) {
+                entry.clear();
+                readFully(channel, entry);
+                int record = allocate(entry.getLong());
+                ByteBuffer slice = records.duplicate();
+                slice.position(record * RECORD_SIZE);
+                slice.put(entry);
+                syncFromStore(record * RECORD_SIZE);
+            }
+        } catch (YubiHSMInputException e) {
+            throw new IOException(file + " holds an invalid nonce", e);
+        } finally {
+            in.close();
+            structure.writeLock().unlock();
+        }
+    }
+
+    private void put(long tokenId, byte type, byte[] nonce, int keyHandle, byte[] aead, long counter, int drift, int period)
+            throws YubiHSMInputException, IOException {
+        if (nonce.length > YSM_AEAD_NONCE_SIZE) {
+            throw new YubiHSMInputException("Nonce too long, expected " + YSM_AEAD_NONCE_SIZE + " bytes but got " + nonce.length + " bytes.");
+        }
+        if (aead.length > MAX_AEAD_SIZE) {
+            throw new YubiHSMInputException("AEAD too long, expected at most " + MAX_AEAD_SIZE + " bytes but got " + aead.length + " bytes.");
+        }
+        structure.writeLock().lock();
+        try {
+            int base = allocate(tokenId) * RECORD_SIZE;
+            for (int i = 0; i < RECORD_SIZE; i++) {
+                records.put(base + i, (byte) 0);
+            }
+            records.put(base + TYPE, type);
+            records.put(base + AEAD_LENGTH, (byte) aead.length);
+            for (int i = 0; i < nonce.length; i++) {
+                records.put(base + NONCE + i, nonce[i]);
+            }
+            records.putInt(base + KEY_HANDLE, keyHandle);
+            records.putLong(base + COUNTER, counter);
+            records.putInt(base + DRIFT, drift);
+            records.putInt(base + PERIOD, period);
+            for (int i = 0; i < aead.length; i++) {
+                records.put(base + AEAD + i, aead[i]);
+            }
+            syncFromStore(base);
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    /** Get the record of a token, adding an index entry and taking a free record if it is new. Write locked. */
+    private int allocate(long tokenId) {
+        int entry = findEntry(tokenId);
+        if (entry >= 0) {
+            return index.getInt(entry * ENTRY_SIZE + 8) - 1;
+        }
+        if (free == 0) {
+            throw new IllegalStateException("The token database is full, it holds " + capacity + " tokens");
+        }
+        int record = freeRecords[--free];
+        entry = hash(tokenId) & indexMask;
+        while (index.getInt(entry * ENTRY_SIZE + 8) != 0) {
+            entry = (entry + 1) & indexMask;
+        }
+        index.putLong(entry * ENTRY_SIZE, tokenId);
+        index.putInt(entry * ENTRY_SIZE + 8, record + 1);
+        size++;
+        return record;
+    }
+
+    private int findRecord(long tokenId) {
+        int entry = findEntry(tokenId);
+        return entry < 0 ? -1 : index.getInt(entry * ENTRY_SIZE + 8) - 1;
+    }
+
+    /** Linear probing from the home entry of the id until the id or an empty entry is found */
+    private int findEntry(long tokenId) {
+        int entry = hash(tokenId) & indexMask;
+        while (true) {
+            int offset = entry * ENTRY_SIZE;
+            if (index.getInt(offset + 8) == 0) {
+                return -1;
+            }
+            if (index.getLong(offset) == tokenId) {
+                return entry;
+            }
+            entry = (entry + 1) & indexMask;
+        }
+    }
+
+    /** Empty an index entry and shift back the entries after it whose probe sequence passed through it */
+    private void deleteEntry(int entry) {
+        int hole = entry;
+        int next = (hole + 1) & indexMask;
+        while (index.getInt(next * ENTRY_SIZE + 8) != 0) {
+            int home = hash(index.getLong(next * ENTRY_SIZE)) & indexMask;
+            if (((next - home) & indexMask) >= ((next - hole) & indexMask)) {
+                index.putLong(hole * ENTRY_SIZE, index.getLong(next * ENTRY_SIZE));
+                index.putInt(hole * ENTRY_SIZE + 8, index.getInt(next * ENTRY_SIZE + 8));
+                hole = next;
+            }
+            next = (next + 1) & indexMask;
+        }
+        index.putLong(hole * ENTRY_SIZE, 0);
+        index.putInt(hole * ENTRY_SIZE + 8, 0);
+    }
+
+    /** Bring a record up to date with the store. Write locked. */
+    private void syncFromStore(int base) throws YubiHSMInputException, IOException {
+        byte[] nonce = new byte[YSM_AEAD_NONCE_SIZE];
+        read(base + NONCE, nonce);
+        sync(base, store.get(HotpCounterStore.key(nonce)));
+    }
+
+    /**
+     * Bring a record up to date with the value stored for its nonce, if the stored value is ahead. A HOTP token
+     * stores its next counter, a TOTP token the last accepted step + 1 shifted up 16 bits over its drift, so 0 is
+     * nothing accepted for both.
+     */
+    private void sync(int base, long stored) {
+        if (records.get(base + TYPE) == HOTP) {
+            if (stored > records.getLong(base + COUNTER)) {
+                records.putLong(base + COUNTER, stored);
+            }
+        } else if ((stored >> 16) - 1 > records.getLong(base + COUNTER)) {
+            records.putLong(base + COUNTER, (stored >> 16) - 1);
+            records.putInt(base + DRIFT, (short) stored);
+        }
+    }
+
+    private Object stripe(long tokenId) {
+        return stripes[hash(tokenId) & (STRIPES - 1)];
+    }
+
+    private void read(int offset, byte[] dest) {
+        for (int i = 0; i < dest.length; i++) {
+            dest[i] = records.get(offset + i);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of token database");
+            }
+        }
+        buffer.flip();
+    }
+
+    /** Spread the bits of an id, the murmur3 finalizer */
+    private static int hash(long tokenId) {
+        long h = tokenId;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm;
+
+import org.unitedid.yhsm.internal.OATH;
+import org.unitedid.yhsm.internal.YubiHSMCommandFailedException;
+import org.unitedid.yhsm.internal.YubiHSMErrorException;
+import org.unitedid.yhsm.internal.YubiHSMInputException;
+
+import java.time.Clock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <code>TotpValidator</code> validates OATH-TOTP codes and remembers, per token, the last accepted time step and the
+ * drift learned from it. The window is centred on the current step adjusted for the learned drift and tried most
+ * likely step first, then alternating outward, so most successful validations cost one HMAC.
+ *
+ * Steps at or before the last accepted step are never tried again, so a code can only be used once. While the
+ * expected step of a token is still the last accepted one every code is rejected without touching the YubiHSM.
+ *
+ * Validations of the same token are serialized, different tokens validate concurrently. State is kept in memory only.
+ */
+public class TotpValidator {
+
+    /** The default period between OTP changes in seconds */
+    public static final int DEFAULT_PERIOD = 30;
+
+    private final YubiHSM hsm;
+    private final int keyHandle;
+    private final int period;
+    private final int backwardSteps;
+    private final int forwardSteps;
+    private final Clock clock;
+
+    /** Token state keyed by nonce and AEAD */
+    private final ConcurrentMap<String, TokenState> tokens = new ConcurrentHashMap<String, TokenState>();
+
+    /**
+     * Constructor, sets the defaults period = 30 seconds, backwardSteps = 1 and forwardSteps = 1.
+     *
+     * @param hsm the YubiHSM
+     * @param keyHandle a keyHandle with the permission YSM_TEMP_KEY_LOAD enabled
+     */
+    public TotpValidator(YubiHSM hsm, int keyHandle) {
+        this(hsm, keyHandle, DEFAULT_PERIOD, 1, 1);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param hsm the YubiHSM
+     * @param keyHandle a keyHandle with the permission YSM_TEMP_KEY_LOAD enabled
+     * @param period the period between OTP changes in seconds
+     * @param backwardSteps the number of steps accepted before the expected step
+     * @param forwardSteps the number of steps accepted after the expected step
+     */
+    public TotpValidator(YubiHSM hsm, int keyHandle, int period, int backwardSteps, int forwardSteps) {
+        this(hsm, keyHandle, period, backwardSteps, forwardSteps, Clock.systemUTC());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param hsm the YubiHSM
+     * @param keyHandle a keyHandle with the permission YSM_TEMP_KEY_LOAD enabled
+     * @param period the period between OTP changes in seconds
+     * @param backwardSteps the number of steps accepted before the expected step
+     * @param forwardSteps the number of steps accepted after the expected step
+     * @param clock the clock giving the current time
+     */
+    public TotpValidator(YubiHSM hsm, int keyHandle, int period, int backwardSteps, int forwardSteps, Clock clock) {
+        if (period <= 0 || backwardSteps < 0 || forwardSteps < 0) {
+            throw new IllegalArgumentException("Period must be positive and steps must not be negative");
+        }
+        this.hsm = hsm;
+        this.keyHandle = keyHandle;
+        this.period = period;
+        this.backwardSteps = backwardSteps;
+        this.forwardSteps = forwardSteps;
+        this.clock = clock;
+    }
+
+    /**
+     * Validate a TOTP code. On success the step is remembered as used and the drift of the token is updated.
+     *
+     * @param nonce the nonce used to generate the AEAD
+     * @param aead the AEAD based on the token seed
+     * @param otp the token OTP
+     * @return true if the OTP validated, false if it did not or was already used
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     */
+    public boolean validate(String nonce, String aead, String otp)
+            throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
+        TokenState state = getState(nonce, aead);
+        long now = clock.millis() / 1000 / period;
+        long[] steps = new long[backwardSteps + forwardSteps + 1];
+
+        synchronized (state) {
+            if (now + state.drift <= state.lastStep) {
+                return false;
+            }
+            int count = OATH.totpSteps(now + state.drift, backwardSteps, forwardSteps, state.lastStep + 1, steps);
+            if (count == 0) {
+                return false;
+            }
+            long step = OATH.findCounter(hsm, keyHandle, nonce, aead, steps, count, otp);
+            if (step < 0) {
+                return false;
+            }
+            state.lastStep = step;
+            state.drift = step - now;
+            return true;
+        }
+    }
+
+    /**
+     * Get the drift learned for a token.
+     *
+     * @param nonce the nonce used to generate the AEAD
+     * @param aead the AEAD based on the token seed
+     * @return the number of steps the token is ahead of the local clock, negative if it is behind
+     */
+    public long getDrift(String nonce, String aead) {
+        TokenState state = tokens.get(key(nonce, aead));
+        if (state == null) {
+            return 0;
+        }
+        synchronized (state) {
+            return state.drift;
+        }
+    }
+
+    /**
+     * Get the last step accepted for a token.
+     *
+     * @param nonce the nonce used to generate the AEAD
+     * @param aead the AEAD based on the token seed
+     * @return the step, -1 if no code has been accepted
+     */
+    public long getLastStep(String nonce, String aead) {
+        TokenState state = tokens.get(key(nonce, aead));
+        if (state == null) {
+            return -1;
+        }
+        synchronized (state) {
+            return state.lastStep;
+        }
+    }
+
+    /**
+     * Forget the state of a token, ie when it is removed or replaced.
+     *
+     * @param nonce the nonce used to generate the AEAD
+     * @param aead the AEAD based on the token seed
+     */
+    public void forget(String nonce, String aead) {
+        tokens.remove(key(nonce, aead));
+    }
+
+    private TokenState getState(String nonce, String aead) {
+        String key = key(nonce, aead);
+        TokenState state = tokens.get(key);
+        if (state == null) {
+            TokenState created = new TokenState();
+            state = tokens.putIfAbsent(key, created);
+            if (state == null) {
+                state = created;
+            }
+        }
+        return state;
+    }
+
+    private static String key(String nonce, String aead) {
+        return nonce + ":" + aead;
+    }
+
+    /** The state of one token, guarded by itself */
+    private static class TokenState {
+        long lastStep = -1;
+        long drift = 0;
+    }
+}
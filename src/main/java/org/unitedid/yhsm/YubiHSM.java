@@ -28,6 +28,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.unitedid.yhsm.internal.*;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import static org.unitedid.yhsm.internal.Defines.*;
@@ -53,7 +55,7 @@ public class YubiHSM  {
     /**
      * Constructor
      *
-     * @param device the YubiHSM device name ie /dev/ttyACM0
+     * @param device the YubiHSM device name ie /dev/ttyACM0, or tcp://host:port for a YubiHSM behind a TCP relay
      * @param timeout the command read timeout (default is 0.5 sec)
      * @throws YubiHSMErrorException if the YubiHSM reset command fail
      */
@@ -74,6 +76,30 @@ public class YubiHSM  {
         init();
     }
 
+    /**
+     * Constructor
+     *
+     * @param transport the transport connected to the YubiHSM, ie a {@link TcpTransport} or {@link LoopbackTransport}
+     * @param timeout the command read timeout (default is 0.5 sec)
+     * @throws YubiHSMErrorException if the YubiHSM reset command fail
+     */
+    public YubiHSM(Transport transport, float timeout) throws YubiHSMErrorException {
+        deviceHandler = DeviceHandlerFactory.get(transport);
+        deviceHandler.setTimeout(timeout);
+        init();
+    }
+
+    /**
+     * Constructor
+     *
+     * @param transport the transport connected to the YubiHSM, ie a {@link TcpTransport} or {@link LoopbackTransport}
+     * @throws YubiHSMErrorException if the YubiHSM reset command fail
+     */
+    public YubiHSM(Transport transport) throws YubiHSMErrorException {
+        deviceHandler = DeviceHandlerFactory.get(transport);
+        init();
+    }
+
     /**
      * Constructor that opens /dev/ttyACM0
      *
@@ -134,6 +160,22 @@ public class YubiHSM  {
         return AEADCmd.generateAEAD(deviceHandler, nonce, keyHandle, data.getBytes());
     }
 
+    /**
+     * Generate AEAD block from the data for a specific key handle and nonce, without the hex conversions of the
+     * map based methods.
+     *
+     * @param nonce the nonce, all zeros is not allowed
+     * @param keyHandle the key to use
+     * @param data is the data to turn into an AEAD
+     * @return the AEAD and nonce
+     * @throws YubiHSMCommandFailedException if the YubiHSM fail to execute the command
+     * @throws YubiHSMErrorException if validation fail for some values returned by the YubiHSM
+     * @throws YubiHSMInputException if an argument does not validate
+     */
+    public AeadResult generateAEAD(byte[] nonce, int keyHandle, byte[] data) throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+        return AEADCmd.generateAEAD(deviceHandler, nonce, keyHandle, data);
+    }
+
     /**
      * Generate a random AEAD block using the YubiHSM internal TRNG.
      * To generate a secret for a YubiKey use public_id as nonce.
@@ -150,6 +192,21 @@ public class YubiHSM  {
         return AEADCmd.generateRandomAEAD(deviceHandler, nonce, keyHandle, length);
     }
 
+    /**
+     * Generate a random AEAD block using the YubiHSM internal TRNG.
+     *
+     * @param nonce the nonce or public_id
+     * @param keyHandle the key to use
+     * @param length the resulting byte length of the AEAD
+     * @return the AEAD and nonce
+     * @throws YubiHSMCommandFailedException if the YubiHSM fail to execute the command
+     * @throws YubiHSMErrorException if validation fail for some values returned by the YubiHSM
+     * @throws YubiHSMInputException if an argument does not validate
+     */
+    public AeadResult generateRandomAEAD(byte[] nonce, int keyHandle, int length) throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+        return AEADCmd.generateRandomAEAD(deviceHandler, nonce, keyHandle, length);
+    }
+
     /**
      * Generate AEAD block of data buffer for a specific key.
      * After a key has been loaded into the internal data buffer, this command can be
@@ -168,6 +225,36 @@ public class YubiHSM  {
         return AEADCmd.generateBufferAEAD(deviceHandler, nonce, keyHandle);
     }
 
+    /**
+     * Generate AEAD block of data buffer for a specific key, see <code>generateBufferAEAD(String, int)</code>.
+     *
+     * @param nonce the nonce
+     * @param keyHandle the key to use
+     * @return the AEAD and nonce
+     * @throws YubiHSMCommandFailedException if the YubiHSM fail to execute the command
+     * @throws YubiHSMErrorException if validation fail for some values returned by the YubiHSM
+     * @throws YubiHSMInputException if an argument does not validate
+     */
+    public AeadResult generateBufferAEAD(byte[] nonce, int keyHandle) throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+        return AEADCmd.generateBufferAEAD(deviceHandler, nonce, keyHandle);
+    }
+
+    /**
+     * Generate AEAD blocks of the data buffer for many keys, for example to replicate a YubiKey secret to many
+     * validation sites with one buffer load. Load the buffer first with <code>loadBufferData</code>, it stays
+     * resident and the commands are pipelined if a pipeline depth above 1 is set.
+     *
+     * @param nonce the nonce or public_id, must not be all zeros
+     * @param keyHandles the keys to use
+     * @return the AEAD for each key handle, in the same order
+     * @throws YubiHSMCommandFailedException if the YubiHSM fail to execute the command
+     * @throws YubiHSMErrorException if validation fail for some values returned by the YubiHSM
+     * @throws YubiHSMInputException if an argument does not validate
+     */
+    public List<byte[]> generateBufferAEAD(byte[] nonce, int[] keyHandles) throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+        return AEADCmd.generateBufferAEAD(deviceHandler, nonce, keyHandles);
+    }
+
     /**
      * Generate AEAD block which can be used for OATH OTP validation, see <code>validateOathHOTP</code> and
      * <code>validateOathTOTP</code>.
@@ -191,6 +278,30 @@ public class YubiHSM  {
         return generateBufferAEAD(nonce, keyHandle).get("aead");
     }
 
+    /**
+     * Generate AEAD blocks for many OATH tokens, see {@link #generateOathAEAD(String, int, String)}. The buffer load
+     * and buffer AEAD of each token are pipelined if a pipeline depth above 1 is set.
+     *
+     * @param nonces the nonce for each token, all zeros to let the YubiHSM pick a unique nonce
+     * @param keyHandle the key handle with permission to generateBufferAEAD
+     * @param seeds the 20 byte OATH token seeds
+     * @return the nonce used followed by the AEAD, for each token in the same order
+     * @throws YubiHSMInputException thrown if an argument fail to validate
+     * @throws YubiHSMErrorException thrown if an error have occurred
+     * @throws YubiHSMCommandFailedException thrown if the YubiHSM fail to execute a command
+     */
+    public List<byte[]> generateOathAEAD(List<byte[]> nonces, int keyHandle, List<byte[]> seeds) throws YubiHSMInputException, YubiHSMErrorException, YubiHSMCommandFailedException {
+        byte[] flag = leIntToBA(0x10000); // Generate HMAC SHA1 Flag
+        List<byte[]> data = new ArrayList<byte[]>(seeds.size());
+        for (byte[] seed : seeds) {
+            if (seed.length != 20) {
+                throw new YubiHSMInputException("Seed is not of required length, got " + seed.length + " bytes but expected 20");
+            }
+            data.add(concatAllArrays(seed, flag));
+        }
+        return AEADCmd.generateBufferAEAD(deviceHandler, nonces, keyHandle, data);
+    }
+
     /**
      * Validate an AEAD using the YubiHSM, matching it against some known plain text.
      * Matching is done inside the YubiHSM so the decrypted AEAD is never exposed.
@@ -225,6 +336,21 @@ public class YubiHSM  {
         return AEADCmd.validateAEAD(deviceHandler, nonce, keyHandle, aead, plaintext.getBytes());
     }
 
+    /**
+     * Generate one AEAD per data element, pipelined if a pipeline depth above 1 is set.
+     *
+     * @param nonces the nonce for each AEAD
+     * @param keyHandle the key to use
+     * @param data the data for each AEAD
+     * @return a hash map with the AEAD and nonce for each data element
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     */
+    public List<Map<String, String>> generateAEAD(List<String> nonces, int keyHandle, List<byte[]> data) throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+        return AEADCmd.generateAEAD(deviceHandler, nonces, keyHandle, data);
+    }
+
     /**
      * Load data into the YubiHSMs internal buffer.
      *
@@ -377,6 +503,20 @@ public class YubiHSM  {
         return HMACCmd.generateHMACSHA1(deviceHandler, data, keyHandle, flags, last, toBuffer);
     }
 
+    /**
+     * Generate one HMAC SHA1 per data element, each in a single command, pipelined if a pipeline depth above 1 is set.
+     *
+     * @param data the data for each SHA1
+     * @param keyHandle the key handle to use in the YubiHSM
+     * @return the SHA1 hashes, in the same order as the data
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     */
+    public List<byte[]> generateHMACSHA1(List<byte[]> data, int keyHandle) throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
+        return HMACCmd.generateHMACSHA1(deviceHandler, data, keyHandle);
+    }
+
     /**
      * Add more input to the HMAC SHA1, used after calling {@link #generateHMACSHA1} with last set to false.
      *
@@ -572,6 +712,44 @@ public class YubiHSM  {
         return validateOathTOTP(keyHandle, nonce, aead, otp, 30, 0, 1, 1);
     }
 
+    /**
+     * Resynchronise an OATH-HOTP token from two consecutive OTPs, searching a large window with a single key load
+     * and pipelined HMACs. See {@link OATH#resyncHOTP(YubiHSM, int, String, String, long, String, String, int)}.
+     *
+     * @param keyHandle a keyHandle with the permission YSM_TEMP_KEY_LOAD enabled
+     * @param nonce the nonce used to generate the AEAD
+     * @param aead the AEAD based on the token seed
+     * @param counter the current OTP counter
+     * @param otp1 the first OTP
+     * @param otp2 the OTP following otp1
+     * @param window the number of counters to search, ie 1000
+     * @return the next counter to use, -1 if not found, with the number of HMACs and the device time used
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     */
+    public OathResync resyncOathHOTP(int keyHandle, String nonce, String aead, long counter, String otp1, String otp2, int window)
+            throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
+        return OATH.resyncHOTP(this, keyHandle, nonce, aead, counter, otp1, otp2, window);
+    }
+
+    /**
+     * Validate a batch of OATH-HOTP and OATH-TOTP OTPs, see {@link OathRequest#hotp} and {@link OathRequest#totp}.
+     * The AEAD of each token is loaded once and the HMACs run back to back, so a burst costs one temporary key
+     * load per token rather than one per OTP.
+     *
+     * @param keyHandle a keyHandle with the permission YSM_TEMP_KEY_LOAD enabled
+     * @param requests the OTPs to validate
+     * @return the counter or time step after the matching one for each request in request order, 0 if the OTP did not
+     *         validate, the same as {@link #validateOathHOTP}
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     */
+    public long[] validateOath(int keyHandle, List<OathRequest> requests)
+            throws YubiHSMCommandFailedException, YubiHSMErrorException {
+        return OATH.validate(this, keyHandle, requests);
+    }
+
     /**
      * Get a nonce from the YubiHSM. Increment the nonce by the number supplied as increment.
      * To get the current nonce send 0 as increment.
@@ -626,6 +804,81 @@ public class YubiHSM  {
     public Map<String, Integer> decodeYubikeyOtp(String publicId, int keyHandle, String aead, String otp) throws YubiHSMInputException, YubiHSMErrorException, YubiHSMCommandFailedException {
         return YubikeyOtpDecodeCmd.execute(deviceHandler, publicId, keyHandle, aead, otp);
     }
+
+    /**
+     * Decrypt a YubiKey OTP using an AEAD, without the hex conversions of the map based method.
+     *
+     * @param publicId the nonce used to generate the AEAD (YubiKey publicId)
+     * @param keyHandle a keyHandle with the permission YSM_AEAD_YUBIKEY_OTP_DECODE enabled
+     * @param aead the AEAD based on the token seed
+     * @param otp the token OTP
+     * @return the decrypted counters and timestamp
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     */
+    public OtpDecodeResult decodeYubikeyOtp(byte[] publicId, int keyHandle, byte[] aead, byte[] otp) throws YubiHSMInputException, YubiHSMErrorException, YubiHSMCommandFailedException {
+        return YubikeyOtpDecodeCmd.execute(deviceHandler, publicId, keyHandle, aead, otp);
+    }
+
+    /**
+     * Store a YubiKey AEAD in the YubiHSM internal database, see <code>validateYubikeyOtp</code>.
+     *
+     * @param publicId the YubiKey publicId, the nonce used to generate the AEAD
+     * @param keyHandle a keyHandle with the permission YSM_DB_YUBIKEY_AEAD_STORE enabled
+     * @param aead the AEAD of the YubiKey key and uid
+     * @return true if the YubiKey was stored, false if it was already in the database
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     */
+    public boolean storeYubikeyAEAD(String publicId, int keyHandle, String aead) throws YubiHSMInputException, YubiHSMErrorException, YubiHSMCommandFailedException {
+        return YubikeyDbCmd.store(deviceHandler, hexToByteArray(publicId), keyHandle, hexToByteArray(aead));
+    }
+
+    /**
+     * Validate a YubiKey OTP against the YubiHSM internal database. The YubiHSM rejects replayed OTPs.
+     *
+     * @param publicId the YubiKey publicId
+     * @param otp the token OTP (in hex)
+     * @return a map with the decrypted data fields, or null if the publicId is not in the database
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException if the OTP is invalid or replayed
+     * @throws YubiHSMErrorException error exception
+     */
+    public Map<String, Integer> validateYubikeyOtp(String publicId, String otp) throws YubiHSMInputException, YubiHSMErrorException, YubiHSMCommandFailedException {
+        OtpDecodeResult result = YubikeyDbCmd.validateOtp(deviceHandler, hexToByteArray(publicId), hexToByteArray(otp));
+        return result == null ? null : result.toMap();
+    }
+
+    /**
+     * Validate a YubiKey OTP against the YubiHSM internal database, storing the AEAD there first if the publicId is
+     * not in the database yet. The internal database survives restarts of the YubiHSM and of the caller, and every
+     * OTP is checked for replay by the YubiHSM. There is no fallback to <code>decodeYubikeyOtp</code>, which does no
+     * replay check.
+     *
+     * @param publicId the YubiKey publicId
+     * @param keyHandle a keyHandle with the permission YSM_DB_YUBIKEY_AEAD_STORE enabled
+     * @param aead the AEAD of the YubiKey, stored if the publicId is not in the internal database
+     * @param otp the token OTP (in hex)
+     * @return a map with the decrypted data fields
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException if the OTP is invalid or replayed, or the database is full
+     * @throws YubiHSMErrorException error exception
+     */
+    public Map<String, Integer> validateYubikeyOtp(String publicId, int keyHandle, String aead, String otp) throws YubiHSMInputException, YubiHSMErrorException, YubiHSMCommandFailedException {
+        Map<String, Integer> result = validateYubikeyOtp(publicId, otp);
+        if (result == null) {
+            log.debug("Storing YubiKey {} in the internal database", publicId);
+            storeYubikeyAEAD(publicId, keyHandle, aead);
+            result = validateYubikeyOtp(publicId, otp);
+            if (result == null) {
+                throw new YubiHSMErrorException("YubiKey " + publicId + " is not in the internal database after it was stored");
+            }
+        }
+        return result;
+    }
+
     /**
      * Drain all remaining output from the YubiHSM, used for debugging.
      *
@@ -635,6 +888,15 @@ public class YubiHSM  {
         return deviceHandler.drain();
     }
 
+    /**
+     * Allow up to depth command frames in flight for bulk operations, see {@link DeviceHandler#setPipelineDepth(int)}.
+     *
+     * @param depth the pipeline depth, 1 to turn pipelining off
+     */
+    public void setPipelineDepth(int depth) {
+        deviceHandler.setPipelineDepth(depth);
+    }
+
     /**
      * Get the raw device, used for debugging.
      *
@@ -644,6 +906,15 @@ public class YubiHSM  {
         return deviceHandler;
     }
 
+    /**
+     * Get the per command metrics of the device. Collection is off until enabled or registered with JMX.
+     *
+     * @return the metrics
+     */
+    public DeviceMetrics getMetrics() {
+        return deviceHandler.getMetrics();
+    }
+
     /**
      * Get the minimum hash length used when generating or validating an AEAD.
      *
@@ -24,6 +24,8 @@ import org.unitedid.yhsm.utility.ModHex;
 import org.unitedid.yhsm.utility.Utils;
 
 import java.io.Console;
+import java.io.File;
+import java.io.IOException;
 
 public class YubiHSMCmdLine {
 
@@ -92,6 +94,53 @@ public class YubiHSMCmdLine {
         }
     }
 
+    /**
+     * Provisions OATH tokens from a CSV or PSKC seed file, resuming into an existing output file.
+     *
+     * @param input the seed file, PSKC if the name ends with .xml or .pskc, CSV otherwise
+     * @param output the output file
+     * @param keyHandle the key handle to generate the AEADs with
+     * @param depth the pipeline depth
+     */
+    public static void runProvision(String input, String output, int keyHandle, int depth) {
+        OathProvisioner.SeedSource source = null;
+        try {
+            hsm = new YubiHSM(deviceName, 1);
+            hsm.setPipelineDepth(depth);
+
+            String name = input.toLowerCase();
+            File file = new File(input);
+            source = name.endsWith(".xml") || name.endsWith(".pskc") ? OathProvisioner.pskc(file) : OathProvisioner.csv(file);
+
+            OathProvisioner provisioner = new OathProvisioner(hsm, keyHandle);
+            provisioner.setProgress(new OathProvisioner.Progress() {
+                public void update(long tokens, double tokensPerSecond) {
+                    System.out.printf("%d tokens provisioned, %.1f tokens/s%n", tokens, tokensPerSecond);
+                }
+            });
+            long provisioned = provisioner.provision(source, new File(output));
+            System.out.println("Provisioned " + provisioned + " tokens into " + output + ".");
+        } catch (IOException e) {
+            System.out.println("Provisioning failed: " + e.getMessage());
+        } catch (YubiHSMCommandFailedException e) {
+            System.out.println("AEAD command failed with the reason: " + e.getMessage());
+        } catch (YubiHSMInputException e) {
+            System.out.println("Invalid input: " + e.getMessage());
+        } catch (YubiHSMErrorException e) {
+            System.out.println("An error has occurred: " + e.getMessage());
+        } finally {
+            if (source != null) {
+                try {
+                    source.close();
+                } catch (IOException e) {
+                    if (debug) {
+                        System.out.println(e);
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Main method.
      *
@@ -105,6 +154,10 @@ public class YubiHSMCmdLine {
         options.addOption("D", "device", true, "YubiHSM device name, default is /dev/ttyACM0");
         options.addOption("u", "unlock-hsm", false, "Unlock YubiHSM key storage");
         options.addOption("n", "no-otp", false, "Don't ask for OTP");
+        options.addOption("p", "provision-oath", true, "Provision OATH tokens from a CSV (id,seed[,nonce]) or PSKC file");
+        options.addOption("o", "output", true, "Provisioning output file, resumed if it exists");
+        options.addOption("k", "key-handle", true, "Key handle to provision with, default is 0x2000");
+        options.addOption("P", "pipeline-depth", true, "Number of commands in flight, default is 8");
 
         if (args.length < 1) {
             printUsage(options);
@@ -132,9 +185,21 @@ public class YubiHSMCmdLine {
                     useOtp = false;
                 }
                 runUnlock();
+            } else if (cmdLine.hasOption("p")) {
+                if (!cmdLine.hasOption("o")) {
+                    System.out.println("Provisioning requires an output file.");
+                    printUsage(options);
+                    System.exit(1);
+                }
+                runProvision(cmdLine.getOptionValue("p"), cmdLine.getOptionValue("o"),
+                        Integer.decode(cmdLine.getOptionValue("k", "0x2000")),
+                        Integer.parseInt(cmdLine.getOptionValue("P", "8")));
             } else {
                 printUsage(options);
             }
+        } catch (NumberFormatException e) {
+            System.out.println("Bad number argument: " + e.getMessage());
+            System.exit(1);
         } catch (org.apache.commons.cli.ParseException e) {
             System.out.println("Bad command arguments.");
             printUsage(options);
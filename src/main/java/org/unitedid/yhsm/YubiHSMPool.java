@@ -0,0 +1,428 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.unitedid.yhsm.internal.OathRequest;
+import org.unitedid.yhsm.internal.YubiHSMCommandFailedException;
+import org.unitedid.yhsm.internal.YubiHSMErrorException;
+import org.unitedid.yhsm.internal.YubiHSMInputException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <code>YubiHSMPool</code> spreads commands over a set of YubiHSMs holding the same keys. Each call goes to the
+ * device with the fewest outstanding commands, ties are broken round robin.
+ *
+ * Commands that depend on state kept in the device, ie a buffer load followed by a buffer AEAD, must run as one
+ * {@link Task} so they are not split between devices.
+ */
+public class YubiHSMPool {
+    /** Logger */
+    private final Logger log = LoggerFactory.getLogger(YubiHSMPool.class);
+
+    /** Nonce and data used to compare keys between devices */
+    private static final String PROBE_NONCE = "000000000001";
+    private static final String PROBE_DATA = "YubiHSMPool key check";
+
+    private final List<Member> members;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Constructor, opens the devices.
+     *
+     * @param deviceNames the device names, ie /dev/ttyACM0
+     * @throws YubiHSMErrorException if a device could not be opened
+     */
+    public YubiHSMPool(String... deviceNames) throws YubiHSMErrorException {
+        List<YubiHSM> devices = new ArrayList<YubiHSM>();
+        for (String deviceName : deviceNames) {
+            devices.add(new YubiHSM(deviceName));
+        }
+        members = createMembers(devices);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param devices the YubiHSMs
+     */
+    public YubiHSMPool(List<YubiHSM> devices) {
+        members = createMembers(devices);
+    }
+
+    private static List<Member> createMembers(List<YubiHSM> devices) {
+        if (devices.isEmpty()) {
+            throw new IllegalArgumentException("A pool needs at least one YubiHSM");
+        }
+        List<Member> list = new ArrayList<Member>();
+        for (YubiHSM hsm : devices) {
+            list.add(new Member(hsm));
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Check that every device holds the same keys under the key handles. Each key handle is asked to generate an
+     * AEAD of the same data and nonce, the AEADs must be equal on all devices, or the command must fail with the same
+     * status on all devices (ie a key handle without permission to generate AEADs).
+     *
+     * @param keyHandles the key handles to check
+     * @throws YubiHSMErrorException if the devices differ
+     */
+    public void verifyKeyHandles(int... keyHandles) throws YubiHSMErrorException {
+        for (int keyHandle : keyHandles) {
+            String expected = null;
+            for (Member member : members) {
+                String result = probe(member.hsm, keyHandle);
+                if (expected == null) {
+                    expected = result;
+                } else if (!expected.equals(result)) {
+                    throw new YubiHSMErrorException(String.format("Key handle 0x%x differs between %s and %s (%s != %s)",
+                            keyHandle, members.get(0).getName(), member.getName(), expected, result));
+                }
+            }
+            log.debug("Key handle 0x{} is the same on all devices", Integer.toHexString(keyHandle));
+        }
+    }
+
+    private static String probe(YubiHSM hsm, int keyHandle) throws YubiHSMErrorException {
+        try {
+            return hsm.generateAEAD(PROBE_NONCE, keyHandle, PROBE_DATA).get("aead");
+        } catch (YubiHSMCommandFailedException e) {
+            if (e.getMessage().endsWith("YSM_KEY_HANDLE_INVALID")) {
+                return "missing";
+            }
+            return e.getMessage();
+        } catch (YubiHSMInputException e) {
+            throw new YubiHSMErrorException(e);
+        }
+    }
+
+    /**
+     * Run a task on the device with the fewest outstanding commands.
+     *
+     * @param task the task
+     * @param <T> the result type
+     * @return the result of the task
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     * @throws YubiHSMInputException argument exception
+     */
+    public <T> T execute(Task<T> task) throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+        return execute(select(), task);
+    }
+
+    /**
+     * Run a task on the device a YubiKey is pinned to. Each YubiHSM keeps its own replay counters in its internal
+     * YubiKey database, so a publicId is always stored and validated on the same device, picked by a hash of the
+     * publicId that is stable across restarts.
+     *
+     * @param publicId the YubiKey publicId
+     * @param task the task
+     * @param <T> the result type
+     * @return the result of the task
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     * @throws YubiHSMInputException argument exception
+     */
+    public <T> T execute(String publicId, Task<T> task) throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+        return execute(getYubikeyMember(publicId), task);
+    }
+
+    /**
+     * Get the device a YubiKey is pinned to, see {@link #execute(String, Task)}.
+     *
+     * @param publicId the YubiKey publicId
+     * @return the device
+     */
+    public YubiHSM getYubikeyDevice(String publicId) {
+        return getYubikeyMember(publicId).hsm;
+    }
+
+    private Member getYubikeyMember(String publicId) {
+        return members.get(Math.floorMod(publicId.toLowerCase().hashCode(), members.size()));
+    }
+
+    private <T> T execute(Member member, Task<T> task) throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+        member.begin();
+        try {
+            return task.run(member.hsm);
+        } finally {
+            member.end();
+        }
+    }
+
+    /** Pick the member with the fewest outstanding commands, starting the search at a rotating position */
+    private Member select() {
+        int size = members.size();
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+        Member best = members.get(start);
+        for (int i = 1; i < size && best.outstanding.get() > 0; i++) {
+            Member candidate = members.get((start + i) % size);
+            if (candidate.outstanding.get() < best.outstanding.get()) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    /** @see YubiHSM#echo(String) */
+    public String echo(final String str) throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+        return execute(new Task<String>() {
+            public String run(YubiHSM hsm) throws YubiHSMErrorException {
+                return hsm.echo(str);
+            }
+        });
+    }
+
+    /** @see YubiHSM#generateAEAD(String, int, String) */
+    public Map<String, String> generateAEAD(final String nonce, final int keyHandle, final String data)
+            throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+        return execute(new Task<Map<String, String>>() {
+            public Map<String, String> run(YubiHSM hsm) throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+                return hsm.generateAEAD(nonce, keyHandle, data);
+            }
+        });
+    }
+
+    /** @see YubiHSM#validateAEAD(String, int, String, String) */
+    public boolean validateAEAD(final String nonce, final int keyHandle, final String aead, final String plaintext)
+            throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+        return execute(new Task<Boolean>() {
+            public Boolean run(YubiHSM hsm) throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+                return hsm.validateAEAD(nonce, keyHandle, aead, plaintext);
+            }
+        });
+    }
+
+    /** @see YubiHSM#generateHMACSHA1(byte[], int, boolean) */
+    public byte[] generateHMACSHA1(final byte[] data, final int keyHandle)
+            throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+        return execute(new Task<byte[]>() {
+            public byte[] run(YubiHSM hsm) throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+                return hsm.generateHMACSHA1(data, keyHandle, false);
+            }
+        });
+    }
+
+    /** @see YubiHSM#decodeYubikeyOtp(String, int, String, String) */
+    public Map<String, Integer> decodeYubikeyOtp(final String publicId, final int keyHandle, final String aead, final String otp)
+            throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+        return execute(new Task<Map<String, Integer>>() {
+            public Map<String, Integer> run(YubiHSM hsm) throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+                return hsm.decodeYubikeyOtp(publicId, keyHandle, aead, otp);
+            }
+        });
+    }
+
+    /**
+     * Store a YubiKey AEAD in the internal database of the device the YubiKey is pinned to.
+     *
+     * @see YubiHSM#storeYubikeyAEAD(String, int, String)
+     * @see #execute(String, Task)
+     */
+    public boolean storeYubikeyAEAD(final String publicId, final int keyHandle, final String aead)
+            throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+        return execute(publicId, new Task<Boolean>() {
+            public Boolean run(YubiHSM hsm) throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+                return hsm.storeYubikeyAEAD(publicId, keyHandle, aead);
+            }
+        });
+    }
+
+    /**
+     * Validate a YubiKey OTP on the device the YubiKey is pinned to.
+     *
+     * @see YubiHSM#validateYubikeyOtp(String, int, String, String)
+     * @see #execute(String, Task)
+     */
+    public Map<String, Integer> validateYubikeyOtp(final String publicId, final int keyHandle, final String aead, final String otp)
+            throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+        return execute(publicId, new Task<Map<String, Integer>>() {
+            public Map<String, Integer> run(YubiHSM hsm) throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+                return hsm.validateYubikeyOtp(publicId, keyHandle, aead, otp);
+            }
+        });
+    }
+
+    /** @see YubiHSM#validateOathHOTP(int, String, String, int, String, int) */
+    public int validateOathHOTP(final int keyHandle, final String nonce, final String aead, final int counter,
+                                final String otp, final int lookAhead)
+            throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+        return execute(new Task<Integer>() {
+            public Integer run(YubiHSM hsm) throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+                return hsm.validateOathHOTP(keyHandle, nonce, aead, counter, otp, lookAhead);
+            }
+        });
+    }
+
+    /** @see YubiHSM#validateOathTOTP(int, String, String, String) */
+    public boolean validateOathTOTP(final int keyHandle, final String nonce, final String aead, final String otp)
+            throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+        return execute(new Task<Boolean>() {
+            public Boolean run(YubiHSM hsm) throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+                return hsm.validateOathTOTP(keyHandle, nonce, aead, otp);
+            }
+        });
+    }
+
+    /** @see YubiHSM#validateOath(int, List) */
+    public long[] validateOath(final int keyHandle, final List<OathRequest> requests)
+            throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+        return execute(new Task<long[]>() {
+            public long[] run(YubiHSM hsm) throws YubiHSMCommandFailedException, YubiHSMErrorException {
+                return hsm.validateOath(keyHandle, requests);
+            }
+        });
+    }
+
+    /** @see YubiHSM#getRandom(int) */
+    public byte[] getRandom(final int bytes) throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+        return execute(new Task<byte[]>() {
+            public byte[] run(YubiHSM hsm) throws YubiHSMErrorException, YubiHSMInputException {
+                return hsm.getRandom(bytes);
+            }
+        });
+    }
+
+    /**
+     * Get the utilisation of each device since the pool was created.
+     *
+     * @return one entry per device, in the order the devices were given
+     */
+    public List<DeviceUtilisation> getUtilisation() {
+        List<DeviceUtilisation> result = new ArrayList<DeviceUtilisation>();
+        for (Member member : members) {
+            result.add(member.snapshot());
+        }
+        return result;
+    }
+
+    /**
+     * Get the YubiHSMs in the pool.
+     *
+     * @return the YubiHSMs
+     */
+    public List<YubiHSM> getDevices() {
+        List<YubiHSM> result = new ArrayList<YubiHSM>();
+        for (Member member : members) {
+            result.add(member.hsm);
+        }
+        return result;
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    /**
+     * A sequence of YubiHSM calls that runs on one device.
+     *
+     * @param <T> the result type
+     */
+    public interface Task<T> {
+        T run(YubiHSM hsm) throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException;
+    }
+
+    /** Utilisation of one device */
+    public static class DeviceUtilisation {
+        private final String name;
+        private final int outstanding;
+        private final long completed;
+        private final long busyNanos;
+        private final long elapsedNanos;
+
+        DeviceUtilisation(String name, int outstanding, long completed, long busyNanos, long elapsedNanos) {
+            this.name = name;
+            this.outstanding = outstanding;
+            this.completed = completed;
+            this.busyNanos = busyNanos;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /** @return the number of calls running or waiting for the device */
+        public int getOutstanding() {
+            return outstanding;
+        }
+
+        /** @return the number of calls completed */
+        public long getCompleted() {
+            return completed;
+        }
+
+        /** @return the time the device had at least one outstanding call, in nanoseconds */
+        public long getBusyNanos() {
+            return busyNanos;
+        }
+
+        /** @return the fraction of time the device had at least one outstanding call, 0.0 to 1.0 */
+        public double getUtilisation() {
+            return elapsedNanos == 0 ? 0.0 : (double) busyNanos / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %.1f%% busy, %d completed, %d outstanding", name, getUtilisation() * 100, completed, outstanding);
+        }
+    }
+
+    private static class Member {
+        final YubiHSM hsm;
+        final AtomicInteger outstanding = new AtomicInteger();
+        final long created = System.nanoTime();
+        long completed;
+        long busyNanos;
+        long busySince;
+
+        Member(YubiHSM hsm) {
+            this.hsm = hsm;
+        }
+
+        String getName() {
+            return hsm.getRawDevice().getPortName();
+        }
+
+        synchronized void begin() {
+            if (outstanding.getAndIncrement() == 0) {
+                busySince = System.nanoTime();
+            }
+        }
+
+        synchronized void end() {
+            completed++;
+            if (outstanding.decrementAndGet() == 0) {
+                busyNanos += System.nanoTime() - busySince;
+            }
+        }
+
+        synchronized DeviceUtilisation snapshot() {
+            long now = System.nanoTime();
+            long busy = busyNanos + (outstanding.get() > 0 ? now - busySince : 0);
+            return new DeviceUtilisation(getName(), outstanding.get(), completed, busy, now - created);
+        }
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.unitedid.yhsm.internal.OtpDecodeResult;
+import org.unitedid.yhsm.internal.YubiHSMCommandFailedException;
+import org.unitedid.yhsm.internal.YubiHSMErrorException;
+import org.unitedid.yhsm.internal.YubiHSMInputException;
+import org.unitedid.yhsm.internal.YubikeyOtpDecodeCmd;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+
+import static org.unitedid.yhsm.internal.Defines.*;
+import static org.unitedid.yhsm.utility.Utils.hexToByteArray;
+
+/**
+ * <code>YubikeyAeadIndex</code> maps YubiKey public ids to their AEADs and key handles so an OTP can be decoded
+ * without the caller looking up the AEAD. The index is an open addressing table in a memory mapped file, mapped
+ * read only on first use. A lookup probes the mapping in place and allocates nothing, and
+ * {@link #decode(byte[], int)} encodes the public id, OTP and the AEAD read from the mapping straight into the command
+ * frame. The YubiHSM response and the decoded result are the only allocations of a binary decode.
+ *
+ * The index is replaced as a whole: {@link #rebuild(Collection)} writes a new table next to the file, renames it
+ * over the old one and swaps the mapping, lookups running meanwhile finish on the old table. {@link #reload()}
+ * picks up a file swapped in by another process.
+ */
+public class YubikeyAeadIndex {
+    /** Logger */
+    private static final Logger log = LoggerFactory.getLogger(YubikeyAeadIndex.class);
+
+    private static final int MAGIC = 0x59484149; // "YHAI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    /* Slot layout */
+    private static final int KEY = 0;
+    private static final int KEY_HANDLE = 8;
+    private static final int AEAD = 12;
+    private static final int SLOT_SIZE = 48;
+
+    /** Set in the key of an occupied slot, public ids are 48 bits */
+    private static final long OCCUPIED = 1L << 63;
+    private static final int MAX_SLOTS = 1 << 25;
+
+    private final YubiHSM hsm;
+    private final File file;
+    private volatile Table table;
+
+    /**
+     * Constructor, the file is mapped on first use.
+     *
+     * @param hsm the YubiHSM used to decode OTPs
+     * @param file the index file, an index without a file is empty
+     */
+    public YubikeyAeadIndex(YubiHSM hsm, File file) {
+        this.hsm = hsm;
+        this.file = file;
+    }
+
+    /**
+     * Decode a YubiKey OTP with the AEAD indexed for its public id. The hex OTP is converted to bytes, see
+     * {@link #decode(byte[], int)} for the path without conversions.
+     *
+     * @param otp the OTP in hex, the 6 byte public id followed by the 16 byte OTP
+     * @return the decrypted counters and timestamp, or null if the public id is not indexed
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     */
+    public OtpDecodeResult decode(String otp) throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
+        if (otp.length() != 2 * (YSM_PUBLIC_ID_SIZE + YSM_OTP_SIZE)) {
+            throw new YubiHSMInputException("Expected a " + 2 * (YSM_PUBLIC_ID_SIZE + YSM_OTP_SIZE) + " character OTP, got " + otp.length());
+        }
+        parsePublicId(otp); // rejects invalid hex with a YubiHSMInputException
+        return decode(hexToByteArray(otp), 0);
+    }
+
+    /**
+     * Decode a YubiKey OTP with the AEAD indexed for its public id. The AEAD is read from the mapping into the
+     * command frame in place.
+     *
+     * @param otp the 6 byte public id followed by the 16 byte OTP
+     * @param offset the offset of the public id in otp
+     * @return the decrypted counters and timestamp, or null if the public id is not indexed
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     */
+    public OtpDecodeResult decode(byte[] otp, int offset) throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
+        if (offset < 0 || otp.length - offset < YSM_PUBLIC_ID_SIZE + YSM_OTP_SIZE) {
+            throw new YubiHSMInputException("Expected a " + (YSM_PUBLIC_ID_SIZE + YSM_OTP_SIZE) + " byte OTP at offset " + offset);
+        }
+        long publicId = 0;
+        for (int i = 0; i < YSM_PUBLIC_ID_SIZE; i++) {
+            publicId = publicId << 8 | (otp[offset + i] & 0xff);
+        }
+        Table current = table();
+        int slot = current.find(publicId);
+        if (slot < 0) {
+            return null;
+        }
+        return YubikeyOtpDecodeCmd.execute(hsm.getRawDevice(), otp, offset, current.buffer.getInt(slot + KEY_HANDLE),
+                current.buffer, slot + AEAD);
+    }
+
+    /**
+     * Check if a public id is indexed.
+     *
+     * @param publicId the public id in hex
+     * @return true if the public id is indexed
+     * @throws YubiHSMInputException if the public id is not 6 bytes of hex
+     */
+    public boolean contains(String publicId) throws YubiHSMInputException {
+        return table().find(parsePublicId(checkLength(publicId))) >= 0;
+    }
+
+    /**
+     * Get the AEAD of a public id.
+     *
+     * @param publicId the public id in hex
+     * @return the AEAD, or null if the public id is not indexed
+     * @throws YubiHSMInputException if the public id is not 6 bytes of hex
+     */
+    public byte[] getAead(String publicId) throws YubiHSMInputException {
+        Table current = table();
+        int slot = current.find(parsePublicId(checkLength(publicId)));
+        if (slot < 0) {
+            return null;
+        }
+        byte[] aead = new byte[YSM_YUBIKEY_AEAD_SIZE];
+        for (int i = 0; i < aead.length; i++) {
+            aead[i] = current.buffer.get(slot + AEAD + i);
+        }
+        return aead;
+    }
+
+    /**
+     * Get the key handle of a public id.
+     *
+     * @param publicId the public id in hex
+     * @return the key handle the AEAD was generated with, or -1 if the public id is not indexed
+     * @throws YubiHSMInputException if the public id is not 6 bytes of hex
+     */
+    public int getKeyHandle(String publicId) throws YubiHSMInputException {
+        Table current = table();
+        int slot = current.find(parsePublicId(checkLength(publicId)));
+        return slot < 0 ? -1 : current.buffer.getInt(slot + KEY_HANDLE);
+    }
+
+    /** @return the number of indexed public ids */
+    public int size() {
+        return table().size;
+    }
+
+    /**
+     * Replace the index with new entries. The new table is written to a temporary file, forced to disk and renamed
+     * over the index file, then the mapping is swapped. A public id given more than once keeps its last entry.
+     *
+     * @param entries the entries
+     * @throws IOException if the index could not be written
+     * @throws YubiHSMInputException if an entry is invalid
+     */
+    public void rebuild(Collection<Entry> entries) throws IOException, YubiHSMInputException {
+        if (entries.size() > MAX_SLOTS / 2) {
+            throw new YubiHSMInputException("Too many entries, the index holds at most " + MAX_SLOTS / 2);
+        }
+        int slots = Integer.highestOneBit(Math.max(entries.size(), 1) * 2 - 1) << 1;
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temporary = File.createTempFile(file.getName(), ".tmp", directory);
+        try {
+            RandomAccessFile out = new RandomAccessFile(temporary, "rw");
+            try {
+                FileChannel channel = out.getChannel();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * SLOT_SIZE);
+                Table building = new Table(buffer, slots, 0);
+                int size = 0;
+                for (Entry entry : entries) {
+                    int slot = building.probe(entry.publicId);
+                    if (buffer.getLong(slot + KEY) == 0) {
+                        buffer.putLong(slot + KEY, entry.publicId | OCCUPIED);
+                        size++;
+                    }
+                    buffer.putInt(slot + KEY_HANDLE, entry.keyHandle);
+                    for (int i = 0; i < YSM_YUBIKEY_AEAD_SIZE; i++) {
+                        buffer.put(slot + AEAD + i, entry.aead[i]);
+                    }
+                }
+                buffer.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, slots).putInt(12, size);
+                buffer.force();
+            } finally {
+                out.close();
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            temporary.delete();
+        }
+        synchronized (this) {
+            table = map();
+        }
+        log.info("Rebuilt YubiKey AEAD index {} with {} public ids", file, table.size);
+    }
+
+    /**
+     * Map the index file again, for an index file replaced by another process.
+     *
+     * @throws IOException if the index could not be mapped
+     */
+    public synchronized void reload() throws IOException {
+        table = map();
+    }
+
+    private Table table() {
+        Table current = table;
+        if (current == null) {
+            synchronized (this) {
+                current = table;
+                if (current == null) {
+                    try {
+                        current = map();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Failed to map the YubiKey AEAD index " + file, e);
+                    }
+                    table = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private Table map() throws IOException {
+        if (!file.exists()) {
+            return new Table(ByteBuffer.allocate(HEADER_SIZE + SLOT_SIZE), 1, 0);
+        }
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Not a YubiKey AEAD index: " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int slots = buffer.getInt(8);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || Integer.bitCount(slots) != 1
+                    || channel.size() != HEADER_SIZE + (long) slots * SLOT_SIZE) {
+                throw new IOException("Not a YubiKey AEAD index: " + file);
+            }
+            return new Table(buffer, slots, buffer.getInt(12));
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String checkLength(String publicId) throws YubiHSMInputException {
+        if (publicId.length() != 2 * YSM_PUBLIC_ID_SIZE) {
+            throw new YubiHSMInputException("Expected a " + 2 * YSM_PUBLIC_ID_SIZE + " character public id, got " + publicId.length());
+        }
+        return publicId;
+    }
+
+    /** Parse the hex public id at the start of a string */
+    private static long parsePublicId(String hex) throws YubiHSMInputException {
+        long publicId = 0;
+        for (int i = 0; i < 2 * YSM_PUBLIC_ID_SIZE; i++) {
+            int digit = Character.digit(hex.charAt(i), 16);
+            if (digit < 0) {
+                throw new YubiHSMInputException("Invalid hex in public id: " + hex.substring(0, 2 * YSM_PUBLIC_ID_SIZE));
+            }
+            publicId = publicId << 4 | digit;
+        }
+        return publicId;
+    }
+
+    private static long toLong(byte[] publicId) {
+        long value = 0;
+        for (byte b : publicId) {
+            value = value << 8 | (b & 0xff);
+        }
+        return value;
+    }
+
+    /** Spread the bits of a public id, the murmur3 finalizer */
+    private static int hash(long publicId) {
+        long h = publicId;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    /** A mapped table */
+    private static final class Table {
+        final ByteBuffer buffer;
+        final int mask;
+        final int size;
+
+        Table(ByteBuffer buffer, int slots, int size) {
+            this.buffer = buffer;
+            this.mask = slots - 1;
+            this.size = size;
+        }
+
+        /** The offset of the slot holding the public id, -1 if it is not in the table */
+        int find(long publicId) {
+            if (size == 0) {
+                return -1;
+            }
+            int slot = probe(publicId);
+            return buffer.getLong(slot + KEY) == 0 ? -1 : slot;
+        }
+
+        /** Linear probing to the offset of the slot holding the public id or the empty slot ending its run */
+        int probe(long publicId) {
+            long key = publicId | OCCUPIED;
+            int index = hash(publicId) & mask;
+            while (true) {
+                int slot = HEADER_SIZE + index * SLOT_SIZE;
+                long stored = buffer.getLong(slot + KEY);
+                if (stored == 0 || stored == key) {
+                    return slot;
+                }
+                index = (index + 1) & mask;
+            }
+        }
+    }
+
+    /** A public id and its AEAD */
+    public static class Entry {
+        private final long publicId;
+        private final int keyHandle;
+        private final byte[] aead;
+
+        /**
+         * Constructor
+         *
+         * @param publicId the 6 byte public id
+         * @param keyHandle the key handle the AEAD was generated with
+         * @param aead the AEAD of the YubiKey key and uid
+         * @throws YubiHSMInputException if the public id or AEAD has the wrong length
+         */
+        public Entry(byte[] publicId, int keyHandle, byte[] aead) throws YubiHSMInputException {
+            if (publicId.length != YSM_PUBLIC_ID_SIZE) {
+                throw new YubiHSMInputException("Wrong size of argument 'publicId', expected " + YSM_PUBLIC_ID_SIZE + " but got " + publicId.length);
+            }
+            if (aead.length != YSM_YUBIKEY_AEAD_SIZE) {
+                throw new YubiHSMInputException("Wrong size of argument 'aead', expected " + YSM_YUBIKEY_AEAD_SIZE + " but got " + aead.length);
+            }
+            this.publicId = toLong(publicId);
+            this.keyHandle = keyHandle;
+            this.aead = aead.clone();
+        }
+
+        /**
+         * Constructor
+         *
+         * @param publicId the public id in hex
+         * @param keyHandle the key handle the AEAD was generated with
+         * @param aead the AEAD in hex
+         * @throws YubiHSMInputException if the public id or AEAD is invalid
+         */
+        public Entry(String publicId, int keyHandle, String aead) throws YubiHSMInputException {
+            this(hexToByteArray(publicId), keyHandle, hexToByteArray(aead));
+        }
+    }
+}
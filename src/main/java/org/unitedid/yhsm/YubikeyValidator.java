@@ -0,0 +1,618 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.unitedid.yhsm.internal.OtpDecodeResult;
+import org.unitedid.yhsm.internal.YubiHSMCommandFailedException;
+import org.unitedid.yhsm.internal.YubiHSMErrorException;
+import org.unitedid.yhsm.internal.YubiHSMInputException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import static org.unitedid.yhsm.internal.Defines.*;
+import static org.unitedid.yhsm.utility.Utils.hexToByteArray;
+
+/**
+ * <code>YubikeyValidator</code> validates YubiKey OTPs and rejects replays. The last accepted use counter, session
+ * counter and timestamp of each public id are kept in a table keyed by the public id as a long, split in segments
+ * that each have their own lock, so validations of different YubiKeys never wait for each other.
+ *
+ * An OTP identical to the last accepted one is rejected before the YubiHSM is asked to decrypt it. Any other OTP is
+ * decrypted and accepted only if its counters are newer than the stored ones, checked and stored under the segment
+ * lock so of two concurrent validations of the same OTP at most one succeeds.
+ *
+ * An accepted state is appended to a journal next to the state file and made durable with group commit before the
+ * OTP is accepted, the thread that syncs the journal syncs every state appended so far. The journal is compacted into
+ * the state file in the background, when it grows large and on {@link #close()}. On start the journal is replayed
+ * over the state file, entries torn by a crash are ignored. If syncing fails the validator refuses further use.
+ */
+public class YubikeyValidator implements Closeable {
+    /** Logger */
+    private static final Logger log = LoggerFactory.getLogger(YubikeyValidator.class);
+
+    /** The default delay between compactions of the journal into the state file */
+    public static final long DEFAULT_PERSIST_INTERVAL = 60000;
+
+    private static final int MAGIC = 0x59485953; // "YHYS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int ENTRY_SIZE = 24;
+
+    /** Journal entry: a state file entry followed by its CRC32 */
+    private static final int JOURNAL_ENTRY_SIZE = ENTRY_SIZE + 4;
+
+    /** The journal size that triggers a compaction */
+    private static final long CHECKPOINT_SIZE = 1 << 20;
+
+    private static final int SEGMENTS = 64;
+    /** Set in the key of an occupied entry, public ids are 48 bits */
+    private static final long OCCUPIED = 1L << 63;
+
+    private final YubiHSM hsm;
+    private final YubikeyAeadIndex index;
+    private final File file;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final RandomAccessFile journalFile;
+    private final FileChannel journal;
+    private final ScheduledExecutorService persister;
+    private final AtomicLong replays = new AtomicLong();
+
+    /* Guarded by this, taken inside a segment lock */
+    private List<long[]> pending = new ArrayList<long[]>();
+    private long appended = 0;
+    private IOException failure;
+    private boolean closed = false;
+
+    /* Guarded by commitLock */
+    private final Object commitLock = new Object();
+    private volatile long durable = 0;
+
+    private final AtomicLong syncs = new AtomicLong();
+
+    /**
+     * Constructor, validates OTPs with the AEADs given by the caller and compacts the journal every minute.
+     *
+     * @param hsm the YubiHSM
+     * @param file the state file, loaded if it exists, the journal is kept next to it with the suffix
+     *             <code>.journal</code>
+     * @throws IOException if the state file or journal could not be read
+     */
+    public YubikeyValidator(YubiHSM hsm, File file) throws IOException {
+        this(hsm, null, file, DEFAULT_PERSIST_INTERVAL);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param hsm the YubiHSM
+     * @param index the AEAD index used by {@link #validate(String)}, may be null
+     * @param file the state file, loaded if it exists, the journal is kept next to it with the suffix
+     *             <code>.journal</code>
+     * @param persistInterval the delay between compactions of the journal into the state file in milliseconds
+     * @throws IOException if the state file or journal could not be read
+     */
+    public YubikeyValidator(YubiHSM hsm, YubikeyAeadIndex index, File file, long persistInterval) throws IOException {
+        this.hsm = hsm;
+        this.index = index;
+        this.file = file;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+        if (file.exists()) {
+            load();
+        }
+        journalFile = new RandomAccessFile(new File(file.getPath() + ".journal"), "rw");
+        journal = journalFile.getChannel();
+        replay();
+        synchronized (commitLock) {
+            checkpoint();
+        }
+        persister = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "YubiKey state " + YubikeyValidator.this.file.getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        persister.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    log.error("Failed to compact the YubiKey state {}", YubikeyValidator.this.file, e);
+                }
+            }
+        }, persistInterval, persistInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Validate a YubiKey OTP with the AEAD from the index.
+     *
+     * @param otp the OTP in hex, the 6 byte public id followed by the 16 byte OTP
+     * @return true if the OTP is valid and newer than the last accepted OTP, false if it is replayed or the public
+     *         id is not indexed
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException if the OTP is invalid
+     * @throws YubiHSMErrorException error exception
+     * @throws IOException if the validator has failed or is closed, or the accepted state could not be made durable
+     */
+    public boolean validate(String otp) throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException, IOException {
+        if (index == null) {
+            throw new IllegalStateException("No AEAD index, give the AEAD of the YubiKey");
+        }
+        if (otp.length() != 2 * (YSM_PUBLIC_ID_SIZE + YSM_OTP_SIZE)) {
+            throw new YubiHSMInputException("Expected a " + 2 * (YSM_PUBLIC_ID_SIZE + YSM_OTP_SIZE) + " character OTP, got " + otp.length());
+        }
+        long publicId = parseHex(otp, 0, 2 * YSM_PUBLIC_ID_SIZE);
+        long fingerprint = fingerprint(otp, 2 * YSM_PUBLIC_ID_SIZE);
+        if (isReplay(publicId, fingerprint)) {
+            return false;
+        }
+        OtpDecodeResult decoded = index.decode(otp);
+        return decoded != null && accept(publicId, fingerprint, decoded);
+    }
+
+    /**
+     * Validate a YubiKey OTP.
+     *
+     * @param publicId the YubiKey public id in hex
+     * @param keyHandle a keyHandle with the permission YSM_AEAD_YUBIKEY_OTP_DECODE enabled
+     * @param aead the AEAD of the YubiKey
+     * @param otp the OTP in hex, without the public id
+     * @return true if the OTP is valid and newer than the last accepted OTP, false if it is replayed
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException if the OTP is invalid
+     * @throws YubiHSMErrorException error exception
+     * @throws IOException if the validator has failed or is closed, or the accepted state could not be made durable
+     */
+    public boolean validate(String publicId, int keyHandle, String aead, String otp)
+            throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException, IOException {
+        if (publicId.length() != 2 * YSM_PUBLIC_ID_SIZE || otp.length() != 2 * YSM_OTP_SIZE) {
+            throw new YubiHSMInputException("Expected a " + 2 * YSM_PUBLIC_ID_SIZE + " character public id and a "
+                    + 2 * YSM_OTP_SIZE + " character OTP");
+        }
+        long id = parseHex(publicId, 0, 2 * YSM_PUBLIC_ID_SIZE);
+        long fingerprint = fingerprint(otp, 0);
+        if (isReplay(id, fingerprint)) {
+            return false;
+        }
+        return accept(id, fingerprint, hsm.decodeYubikeyOtp(hexToByteArray(publicId), keyHandle, hexToByteArray(aead), hexToByteArray(otp)));
+    }
+
+    /**
+     * Get the counters and timestamp of the last accepted OTP of a YubiKey.
+     *
+     * @param publicId the YubiKey public id in hex
+     * @return the counters and timestamp, or null if no OTP of the YubiKey has been accepted
+     * @throws YubiHSMInputException if the public id is not 6 bytes of hex
+     */
+    public OtpDecodeResult getLastOtp(String publicId) throws YubiHSMInputException {
+        if (publicId.length() != 2 * YSM_PUBLIC_ID_SIZE) {
+            throw new YubiHSMInputException("Expected a " + 2 * YSM_PUBLIC_ID_SIZE + " character public id, got " + publicId.length());
+        }
+        long id = parseHex(publicId, 0, 2 * YSM_PUBLIC_ID_SIZE);
+        long state;
+        Segment segment = segment(id);
+        synchronized (segment) {
+            int entry = segment.find(id);
+            if (entry < 0) {
+                return null;
+            }
+            state = segment.states[entry];
+        }
+        return new OtpDecodeResult((int) (state >>> 32) & 0xffff, (int) (state >>> 24) & 0xff,
+                (int) (state >>> 16) & 0xff, (int) state & 0xffff);
+    }
+
+    /** @return the number of OTPs rejected as replays */
+    public long getReplays() {
+        return replays.get();
+    }
+
+    /** @return the number of YubiKeys with state */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Get the number of journal syncs, each makes every state appended before it durable.
+     *
+     * @return the number of syncs
+     */
+    public long getSyncs() {
+        return syncs.get();
+    }
+
+    /**
+     * Compact the journal into the state file now if it is not empty. The file is written next to the state file
+     * and renamed over it, then the journal is truncated.
+     *
+     * @throws IOException if the validator has failed or is closed, or the state could not be written
+     */
+    public void flush() throws IOException {
+        synchronized (commitLock) {
+            synchronized (this) {
+                checkUsable();
+            }
+            checkpoint();
+        }
+    }
+
+    /**
+     * Stop the background compactions, make the accepted states durable and compact the journal.
+     *
+     * @throws IOException if the state could not be written
+     */
+    public void close() throws IOException {
+        long sequence;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            sequence = appended;
+        }
+        persister.shutdown();
+        try {
+            persister.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            commit(sequence);
+            flush();
+        } finally {
+            synchronized (this) {
+                closed = true;
+            }
+            journal.close();
+            journalFile.close();
+        }
+    }
+
+    /** The same OTP as the last accepted one, rejected without asking the YubiHSM */
+    private boolean isReplay(long publicId, long fingerprint) {
+        Segment segment = segment(publicId);
+        synchronized (segment) {
+            int entry = segment.find(publicId);
+            if (entry >= 0 && segment.fingerprints[entry] == fingerprint) {
+                replays.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Store the counters of a decrypted OTP if they are newer than the last accepted ones, and wait until they are
+     * durable. The state is appended to the journal under the segment lock, so the journal holds the states of a
+     * YubiKey in the order they were accepted.
+     */
+    private boolean accept(long publicId, long fingerprint, OtpDecodeResult decoded) throws IOException {
+        long state = (long) decoded.getUseCtr() << 32 | (long) decoded.getSessionCtr() << 24 | decoded.getTimestamp();
+        long sequence;
+        Segment segment = segment(publicId);
+        synchronized (segment) {
+            int entry = segment.find(publicId);
+            if (entry >= 0 && (state >>> 24) <= (segment.states[entry] >>> 24)) {
+                replays.incrementAndGet();
+                return false;
+            }
+            synchronized (this) {
+                checkUsable();
+                pending.add(new long[] {publicId, state, fingerprint});
+                sequence = ++appended;
+            }
+            if (entry < 0) {
+                entry = segment.insert(publicId);
+            }
+            segment.states[entry] = state;
+            segment.fingerprints[entry] = fingerprint;
+        }
+        commit(sequence);
+        return true;
+    }
+
+    /** Restore the state of a YubiKey from the state file or journal, unless the stored counters are newer */
+    private void restore(long publicId, long state, long fingerprint) {
+        Segment segment = segment(publicId);
+        synchronized (segment) {
+            int entry = segment.find(publicId);
+            if (entry < 0) {
+                entry = segment.insert(publicId);
+            } else if ((state >>> 24) < (segment.states[entry] >>> 24)) {
+                return;
+            }
+            segment.states[entry] = state;
+            segment.fingerprints[entry] = fingerprint;
+        }
+    }
+
+    /**
+     * Make every state up to a sequence number durable. The first caller to get the commit lock syncs the states of
+     * everyone who appended before it, the others find their state durable when they get the lock.
+     */
+    private void commit(long sequence) throws IOException {
+        synchronized (commitLock) {
+            if (durable >= sequence) {
+                return;
+            }
+            List<long[]> batch;
+            long last;
+            synchronized (this) {
+                checkUsable();
+                batch = pending;
+                pending = new ArrayList<long[]>();
+                last = appended;
+            }
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(batch.size() * JOURNAL_ENTRY_SIZE);
+                CRC32 crc = new CRC32();
+                for (long[] entry : batch) {
+                    int start = buffer.position();
+                    buffer.putLong(entry[0]).putLong(entry[1]).putLong(entry[2]);
+                    crc.reset();
+                    crc.update(buffer.array(), start, ENTRY_SIZE);
+                    buffer.putInt((int) crc.getValue());
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    journal.write(buffer, journal.size());
+                }
+                journal.force(false);
+                syncs.incrementAndGet();
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                }
+                log.error("Failed to sync the journal of {}, refusing further validations", file, e);
+                throw e;
+            }
+            durable = last;
+            if (journal.size() >= CHECKPOINT_SIZE) {
+                checkpoint();
+            }
+        }
+    }
+
+    /**
+     * Write the state file and empty the journal, called with the commit lock held. Every state in the journal was
+     * stored in the segments before it was appended, so the state file written now holds it.
+     */
+    private void checkpoint() throws IOException {
+        if (journal.size() == 0) {
+            return;
+        }
+        write();
+        journal.truncate(0);
+        journal.force(true);
+    }
+
+    /** Apply the journal entries left by the previous run, stopping at the first torn entry */
+    private void replay() throws IOException {
+        long size = journal.size();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, Integer.MAX_VALUE));
+        journal.read(buffer, 0);
+        buffer.flip();
+        CRC32 crc = new CRC32();
+        int entries = 0;
+        while (buffer.remaining() >= JOURNAL_ENTRY_SIZE) {
+            int start = buffer.position();
+            crc.reset();
+            crc.update(buffer.array(), start, ENTRY_SIZE);
+            if (buffer.getInt(start + ENTRY_SIZE) != (int) crc.getValue()) {
+                log.warn("Ignoring torn journal entry at offset {} of {}", start, file);
+                break;
+            }
+            restore(buffer.getLong(start), buffer.getLong(start + 8), buffer.getLong(start + 16));
+            buffer.position(start + JOURNAL_ENTRY_SIZE);
+            entries++;
+        }
+        if (entries > 0) {
+            log.info("Replayed {} journal entries into {}", entries, file);
+        }
+    }
+
+    private void checkUsable() throws IOException {
+        if (closed) {
+            throw new IOException(file + " is closed");
+        }
+        if (failure != null) {
+            throw new IOException(file + " failed to sync its journal", failure);
+        }
+    }
+
+    private void load() throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Read the whole file
+            }
+            buffer.flip();
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Not a YubiKey state file: " + file);
+            }
+            int count = buffer.getInt();
+            buffer.getInt();
+            if (buffer.remaining() != count * ENTRY_SIZE) {
+                throw new IOException("Truncated YubiKey state file: " + file);
+            }
+            for (int i = 0; i < count; i++) {
+                restore(buffer.getLong(), buffer.getLong(), buffer.getLong());
+            }
+            log.info("Loaded the state of {} YubiKeys from {}", count, file);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void write() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + size() * ENTRY_SIZE + SEGMENTS * ENTRY_SIZE);
+        buffer.position(HEADER_SIZE);
+        int count = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                if (buffer.remaining() < segment.size * ENTRY_SIZE) {
+                    ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2 + segment.size * ENTRY_SIZE);
+                    buffer.flip();
+                    larger.put(buffer);
+                    buffer = larger;
+                }
+                for (int i = 0; i < segment.keys.length; i++) {
+                    if (segment.keys[i] != 0) {
+                        buffer.putLong(segment.keys[i] & ~OCCUPIED).putLong(segment.states[i]).putLong(segment.fingerprints[i]);
+                        count++;
+                    }
+                }
+            }
+        }
+        buffer.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, count).putInt(12, 0);
+        buffer.flip();
+
+        File temporary = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            RandomAccessFile out = new RandomAccessFile(temporary, "rw");
+            try {
+                FileChannel channel = out.getChannel();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            } finally {
+                out.close();
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            temporary.delete();
+        }
+    }
+
+    private Segment segment(long publicId) {
+        return segments[hash(publicId) >>> 26];
+    }
+
+    /** Parse hex digits into a long, without allocating */
+    private static long parseHex(String hex, int start, int end) throws YubiHSMInputException {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(hex.charAt(i), 16);
+            if (digit < 0) {
+                throw new YubiHSMInputException("Invalid hex at position " + i);
+            }
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+
+    /** A 64 bit digest of the 16 byte OTP starting at the offset */
+    private static long fingerprint(String otp, int offset) throws YubiHSMInputException {
+        long high = parseHex(otp, offset, offset + YSM_OTP_SIZE);
+        long low = parseHex(otp, offset + YSM_OTP_SIZE, offset + 2 * YSM_OTP_SIZE);
+        return high * 0x9e3779b97f4a7c15L ^ low;
+    }
+
+    /** Spread the bits of a public id, the murmur3 finalizer */
+    private static int hash(long publicId) {
+        long h = publicId;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    /** An open addressing table of public ids, guarded by its own monitor */
+    private static final class Segment {
+        long[] keys = new long[16];
+        long[] states = new long[16];
+        long[] fingerprints = new long[16];
+        int size = 0;
+
+        /** Linear probing from the home entry, -1 if the public id is not in the table */
+        int find(long publicId) {
+            long key = publicId | OCCUPIED;
+            int mask = keys.length - 1;
+            int entry = hash(publicId) & mask;
+            while (keys[entry] != 0) {
+                if (keys[entry] == key) {
+                    return entry;
+                }
+                entry = (entry + 1) & mask;
+            }
+            return -1;
+        }
+
+        /** Add a public id that is not in the table, growing the table to keep it at most half full */
+        int insert(long publicId) {
+            if ((size + 1) * 2 > keys.length) {
+                long[] oldKeys = keys;
+                long[] oldStates = states;
+                long[] oldFingerprints = fingerprints;
+                keys = new long[oldKeys.length * 2];
+                states = new long[oldKeys.length * 2];
+                fingerprints = new long[oldKeys.length * 2];
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldKeys[i] != 0) {
+                        int entry = slot(oldKeys[i] & ~OCCUPIED);
+                        keys[entry] = oldKeys[i];
+                        states[entry] = oldStates[i];
+                        fingerprints[entry] = oldFingerprints[i];
+                    }
+                }
+            }
+            int entry = slot(publicId);
+            keys[entry] = publicId | OCCUPIED;
+            size++;
+            return entry;
+        }
+
+        /** The first empty entry in the probe sequence of a public id */
+        private int slot(long publicId) {
+            int mask = keys.length - 1;
+            int entry = hash(publicId) & mask;
+            while (keys[entry] != 0) {
+                entry = (entry + 1) & mask;
+            }
+            return entry;
+        }
+    }
+}
@@ -18,7 +18,9 @@ package org.unitedid.yhsm.internal;
 
 import org.unitedid.yhsm.YubiHSM;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 import static org.unitedid.yhsm.internal.Defines.*;
@@ -46,12 +48,66 @@ public class AEADCmd {
      * @throws YubiHSMErrorException error exception
      */
     public static Map<String, String> generateAEAD(DeviceHandler device, String nonce, int keyHandle, byte[] data) throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
-        byte[] nonceBA = validateNonce(hexToByteArray(nonce), true);
-        byte[] newdata = validateByteArray("data", data, 0, 0, YubiHSM.minHashLength);
-        byte[] cmdBuffer = concatAllArrays(nonceBA, leIntToBA(keyHandle), addLengthToData(newdata));
-        byte[] result = CommandHandler.execute(device, YSM_AEAD_GENERATE, cmdBuffer, true);
+        return generateAEAD(device, hexToByteArray(nonce), keyHandle, data).toMap();
+    }
 
-        return parseResult(result, nonce, keyHandle, YSM_AEAD_GENERATE);
+    /**
+     * Generate AEADCmd block from data for a specific key and nonce.
+     *
+     * @param device the YubiHSM device handler
+     * @param nonce the nonce
+     * @param keyHandle the key to use
+     * @param data is the byte array to turn into an AEAD
+     * @return the AEAD and nonce
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     */
+    public static AeadResult generateAEAD(DeviceHandler device, byte[] nonce, int keyHandle, byte[] data) throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
+        byte[] nonceBA = validateNonce(nonce, false);
+        validateByteArray("data", data, YSM_DATA_BUF_SIZE, 0, 0);
+        byte[] result;
+        device.lock();
+        try {
+            FrameEncoder frame = device.getFrameEncoder().begin(YSM_AEAD_GENERATE)
+                    .putNonce(nonceBA).putInt(keyHandle).putData(data, YubiHSM.minHashLength);
+            result = CommandHandler.execute(device, frame);
+        } finally {
+            device.unlock();
+        }
+
+        return parseResult(result, nonceBA, keyHandle, YSM_AEAD_GENERATE);
+    }
+
+    /**
+     * Generate one AEAD per data element. The commands are pipelined if the device has a pipeline depth above 1.
+     *
+     * @param device the YubiHSM device handler
+     * @param nonces the nonce for each AEAD
+     * @param keyHandle the key to use
+     * @param data the data for each AEAD
+     * @return a hash map with the AEAD and nonce for each data element, in the same order as the data
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     */
+    public static List<Map<String, String>> generateAEAD(DeviceHandler device, List<String> nonces, int keyHandle, List<byte[]> data) throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
+        if (nonces.size() != data.size()) {
+            throw new YubiHSMInputException("Expected one nonce per data element, got " + nonces.size() + " nonces and " + data.size() + " data elements");
+        }
+        CommandPipeline pipeline = new CommandPipeline(device);
+        for (int i = 0; i < data.size(); i++) {
+            byte[] nonceBA = validateNonce(hexToByteArray(nonces.get(i)), true);
+            byte[] newdata = validateByteArray("data", data.get(i), 0, 0, YubiHSM.minHashLength);
+            pipeline.addGroup(YSM_AEAD_GENERATE, concatAllArrays(nonceBA, leIntToBA(keyHandle), addLengthToData(newdata)));
+        }
+
+        byte[][] results = pipeline.execute();
+        List<Map<String, String>> aeads = new ArrayList<Map<String, String>>();
+        for (int i = 0; i < results.length; i++) {
+            aeads.add(parseResult(results[i], hexToByteArray(nonces.get(i)), keyHandle, YSM_AEAD_GENERATE).toMap());
+        }
+        return aeads;
     }
 
     /**
@@ -68,12 +124,34 @@ public class AEADCmd {
      * @throws YubiHSMErrorException error exception
      */
     public static Map<String, String> generateRandomAEAD(DeviceHandler device, String nonce, int keyHandle, int size) throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
-        byte[] nonceBA = validateNonce(hexToByteArray(nonce), true);
-        byte[] len = {(byte) ((size << 24) >> 24)};
-        byte[] cmdBuffer = concatAllArrays(nonceBA, leIntToBA(keyHandle), len);
-        byte[] result = CommandHandler.execute(device, YSM_RANDOM_AEAD_GENERATE, cmdBuffer, true);
+        return generateRandomAEAD(device, hexToByteArray(nonce), keyHandle, size).toMap();
+    }
+
+    /**
+     * Generate a random AEAD block using the YubiHSM internal TRNG.
+     *
+     * @param device the YubiHSM device handler
+     * @param nonce the nonce or public_id
+     * @param keyHandle the key to use
+     * @param size the resulting byte length of the AEAD
+     * @return the AEAD and nonce
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     */
+    public static AeadResult generateRandomAEAD(DeviceHandler device, byte[] nonce, int keyHandle, int size) throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
+        byte[] nonceBA = validateNonce(nonce, false);
+        byte[] result;
+        device.lock();
+        try {
+            FrameEncoder frame = device.getFrameEncoder().begin(YSM_RANDOM_AEAD_GENERATE)
+                    .putNonce(nonceBA).putInt(keyHandle).put((byte) size);
+            result = CommandHandler.execute(device, frame);
+        } finally {
+            device.unlock();
+        }
 
-        return parseResult(result, nonce, keyHandle, YSM_RANDOM_AEAD_GENERATE);
+        return parseResult(result, nonceBA, keyHandle, YSM_RANDOM_AEAD_GENERATE);
     }
 
     /**
@@ -92,11 +170,107 @@ public class AEADCmd {
      * @throws YubiHSMErrorException error exception
      */
     public static Map<String, String> generateBufferAEAD(DeviceHandler device, String nonce, int keyHandle) throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
-        byte[] nonceBA = validateNonce(hexToByteArray(nonce), true);
-        byte[] cmdBuffer = concatAllArrays(nonceBA, leIntToBA(keyHandle));
-        byte[] result = CommandHandler.execute(device, YSM_BUFFER_AEAD_GENERATE, cmdBuffer, true);
+        return generateBufferAEAD(device, hexToByteArray(nonce), keyHandle).toMap();
+    }
+
+    /**
+     * Generate AEAD block of data buffer for a specific key, see
+     * {@link #generateBufferAEAD(DeviceHandler, String, int)}.
+     *
+     * @param device the YubiHSM device handler
+     * @param nonce the nonce
+     * @param keyHandle the key to use
+     * @return the AEAD and nonce
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     */
+    public static AeadResult generateBufferAEAD(DeviceHandler device, byte[] nonce, int keyHandle) throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
+        byte[] nonceBA = validateNonce(nonce, false);
+        byte[] result;
+        device.lock();
+        try {
+            FrameEncoder frame = device.getFrameEncoder().begin(YSM_BUFFER_AEAD_GENERATE)
+                    .putNonce(nonceBA).putInt(keyHandle);
+            result = CommandHandler.execute(device, frame);
+        } finally {
+            device.unlock();
+        }
 
-        return parseResult(result, nonce, keyHandle, YSM_BUFFER_AEAD_GENERATE);
+        return parseResult(result, nonceBA, keyHandle, YSM_BUFFER_AEAD_GENERATE);
+    }
+
+    /**
+     * Generate one AEAD of the data buffer per data element: each element is loaded into the buffer and wrapped by
+     * the key, the load and buffer AEAD pairs are pipelined if the device has a pipeline depth above 1. A nonce of
+     * all zeros lets the YubiHSM pick a unique nonce from its internal nonce counter.
+     *
+     * @param device the YubiHSM device handler
+     * @param nonces the nonce for each AEAD, 6 bytes
+     * @param keyHandle the key to use
+     * @param data the data for each AEAD, at most YSM_DATA_BUF_SIZE bytes
+     * @return the nonce the YubiHSM used followed by the AEAD, for each data element in the same order
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     */
+    public static List<byte[]> generateBufferAEAD(DeviceHandler device, List<byte[]> nonces, int keyHandle, List<byte[]> data) throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
+        if (nonces.size() != data.size()) {
+            throw new YubiHSMInputException("Expected one nonce per data element, got " + nonces.size() + " nonces and " + data.size() + " data elements");
+        }
+        CommandPipeline pipeline = new CommandPipeline(device);
+        for (int i = 0; i < data.size(); i++) {
+            byte[] nonceBA = validateNonce(nonces.get(i), true);
+            byte[] dataBA = validateByteArray("data", data.get(i), YSM_DATA_BUF_SIZE, 0, 0);
+            pipeline.group()
+                    .add(YSM_BUFFER_LOAD, concatAllArrays(new byte[] {0}, addLengthToData(dataBA)))
+                    .add(YSM_BUFFER_AEAD_GENERATE, concatAllArrays(nonceBA, leIntToBA(keyHandle)));
+        }
+
+        byte[][] results = pipeline.execute();
+        List<byte[]> aeads = new ArrayList<byte[]>();
+        for (int i = 0; i < data.size(); i++) {
+            if (results[2 * i][0] != data.get(i).length) {
+                throw new YubiHSMErrorException("Incorrect number of bytes in buffer, got " + results[2 * i][0] + ", expected " + data.get(i).length);
+            }
+            byte[] result = results[2 * i + 1];
+            checkResult(result, keyHandle, YSM_BUFFER_AEAD_GENERATE);
+            AeadResult aead = new AeadResult(result);
+            aeads.add(concatAllArrays(aead.getNonce(), aead.getAead()));
+        }
+        return aeads;
+    }
+
+    /**
+     * Generate AEAD blocks of the data buffer for many keys, see {@link #generateBufferAEAD(DeviceHandler, String, int)}.
+     * The buffer is loaded once by the caller and stays resident, the buffer AEAD commands are pipelined if the device
+     * has a pipeline depth above 1. Replicating a YubiKey secret to many validation sites this way costs one buffer
+     * load.
+     *
+     * @param device the YubiHSM device handler
+     * @param nonce the nonce or public_id, all sites get the same nonce so it can not be left to the YubiHSM
+     * @param keyHandles the keys to use
+     * @return the AEAD for each key handle, in the same order
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     */
+    public static List<byte[]> generateBufferAEAD(DeviceHandler device, byte[] nonce, int[] keyHandles) throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
+        byte[] nonceBA = validateNonce(nonce, true);
+        if (Arrays.equals(nonceBA, new byte[YSM_AEAD_NONCE_SIZE])) {
+            throw new YubiHSMInputException("Nonce must be set, the YubiHSM would pick a different nonce for each key handle");
+        }
+        CommandPipeline pipeline = new CommandPipeline(device);
+        for (int keyHandle : keyHandles) {
+            pipeline.addGroup(YSM_BUFFER_AEAD_GENERATE, concatAllArrays(nonceBA, leIntToBA(keyHandle)));
+        }
+
+        byte[][] results = pipeline.execute();
+        List<byte[]> aeads = new ArrayList<byte[]>(keyHandles.length);
+        for (int i = 0; i < keyHandles.length; i++) {
+            aeads.add(parseResult(results[i], nonceBA, keyHandles[i], YSM_BUFFER_AEAD_GENERATE).getAead());
+        }
+        return aeads;
     }
 
     /**
@@ -119,9 +293,16 @@ public class AEADCmd {
         byte[] plainAndAead = concatAllArrays(plainBA, aeadBA);
         if (plainAndAead.length > (YSM_MAX_PKT_SIZE - 0x10))
             throw new YubiHSMInputException("Plaintext+aead too long");
-        byte[] nonceBA = validateNonce(hexToByteArray(nonce), true);
-        byte[] cmdBuffer = concatAllArrays(nonceBA, leIntToBA(keyHandle), addLengthToData(plainAndAead));
-        byte[] result = CommandHandler.execute(device, YSM_AEAD_DECRYPT_CMP, cmdBuffer, true);
+        byte[] nonceBA = validateNonce(hexToByteArray(nonce), false);
+        byte[] result;
+        device.lock();
+        try {
+            FrameEncoder frame = device.getFrameEncoder().begin(YSM_AEAD_DECRYPT_CMP)
+                    .putNonce(nonceBA).putInt(keyHandle).putData(plainAndAead, 0);
+            result = CommandHandler.execute(device, frame);
+        } finally {
+            device.unlock();
+        }
 
         return parseValidationResult(result, nonce, keyHandle);
     }
@@ -133,24 +314,32 @@ public class AEADCmd {
      * @param nonce the original nonce
      * @param keyHandle the key used to generate AEAD
      * @param command the YubiHSM command executed
-     * @return a hash map with the AEAD and nonce
+     * @return the AEAD and nonce
      * @throws YubiHSMCommandFailedException command failed exception
      * @throws YubiHSMErrorException error exception
      */
-    private static Map<String, String> parseResult(byte[] data, String nonce, int keyHandle, byte command) throws YubiHSMCommandFailedException, YubiHSMErrorException {
-        Map<String, String> result = new HashMap<String, String>();
+    private static AeadResult parseResult(byte[] data, byte[] nonce, int keyHandle, byte command) throws YubiHSMCommandFailedException, YubiHSMErrorException {
+        checkResult(data, keyHandle, command);
+        AeadResult result = new AeadResult(data);
+        validateCmdResponseBA("nonce", result.getNonce(), nonce);
 
-        if (data[10] == YSM_STATUS_OK) {
-            byte[] aead = rangeOfByteArray(data, YSM_AEAD_NONCE_SIZE + 6, data[11]);
-            validateCmdResponseBA("keyHandle", rangeOfByteArray(data, 6, 4), leIntToBA(keyHandle));
-            result.put("nonce", validateCmdResponseString("nonce",
-                                byteArrayToHex(rangeOfByteArray(data, 0, YSM_AEAD_NONCE_SIZE)), nonce));
-            result.put("aead", byteArrayToHex(aead));
-        } else {
+        return result;
+    }
+
+    /**
+     * Check the status and key handle of an AEAD generate response.
+     *
+     * @param data the data from the YubiHSM
+     * @param keyHandle the key used to generate AEAD
+     * @param command the YubiHSM command executed
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     */
+    private static void checkResult(byte[] data, int keyHandle, byte command) throws YubiHSMCommandFailedException, YubiHSMErrorException {
+        if (data[10] != YSM_STATUS_OK) {
             throw new YubiHSMCommandFailedException("Command " + getCommandString(command) + " failed: " + getCommandStatus(data[10]));
         }
-
-        return result;
+        validateCmdResponseBA("keyHandle", rangeOfByteArray(data, 6, 4), leIntToBA(keyHandle));
     }
 
     /**
@@ -165,7 +354,7 @@ public class AEADCmd {
      */
     private static boolean parseValidationResult(byte[] data, String nonce, int keyHandle) throws YubiHSMCommandFailedException, YubiHSMErrorException {
         validateCmdResponseBA("keyHandle", rangeOfByteArray(data, YSM_AEAD_NONCE_SIZE, 4), leIntToBA(keyHandle));
-        validateCmdResponseString("nonce", byteArrayToHex(new String(data, 0, YSM_AEAD_NONCE_SIZE).getBytes()), nonce);
+        validateCmdResponseString("nonce", byteArrayToHex(rangeOfByteArray(data, 0, YSM_AEAD_NONCE_SIZE)), nonce);
         if (data[10] == YSM_STATUS_OK) {
             return true;
         } else if (data[10] == YSM_MISMATCH) {
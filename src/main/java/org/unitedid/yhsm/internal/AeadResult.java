@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.unitedid.yhsm.internal.Defines.YSM_AEAD_NONCE_SIZE;
+import static org.unitedid.yhsm.utility.Utils.byteArrayToHex;
+import static org.unitedid.yhsm.utility.Utils.rangeOfByteArray;
+
+/** <code>AeadResult</code> a class that represent a generated AEAD and the nonce it was generated with */
+public class AeadResult {
+
+    private final byte[] nonce;
+    private final byte[] aead;
+
+    public AeadResult(byte[] nonce, byte[] aead) {
+        this.nonce = nonce;
+        this.aead = aead;
+    }
+
+    /** Parse an AEAD generate response: nonce, key handle, status, AEAD length and AEAD */
+    AeadResult(byte[] response) {
+        this(rangeOfByteArray(response, 0, YSM_AEAD_NONCE_SIZE),
+                rangeOfByteArray(response, YSM_AEAD_NONCE_SIZE + 6, response[YSM_AEAD_NONCE_SIZE + 5] & 0xff));
+    }
+
+    public byte[] getNonce() {
+        return nonce;
+    }
+
+    public byte[] getAead() {
+        return aead;
+    }
+
+    /**
+     * Get the result in the format of the map based methods.
+     *
+     * @return a hash map with the AEAD and nonce in hex
+     */
+    public Map<String, String> toMap() {
+        Map<String, String> result = new HashMap<String, String>();
+        result.put("nonce", byteArrayToHex(nonce));
+        result.put("aead", byteArrayToHex(aead));
+        return result;
+    }
+
+    public String toString() {
+        return "AEAD: " + byteArrayToHex(aead) + " Nonce: " + byteArrayToHex(nonce);
+    }
+}
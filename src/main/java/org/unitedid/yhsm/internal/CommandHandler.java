@@ -19,85 +19,187 @@ package org.unitedid.yhsm.internal;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+
 import static org.unitedid.yhsm.internal.Defines.*;
 import static org.unitedid.yhsm.utility.Utils.*;
 
 public class CommandHandler {
     private static final Logger log = LoggerFactory.getLogger(CommandHandler.class);
 
-    private CommandHandler() {}
+    /** YSM_NULL followed by zeros, a full packet that flushes any partial command */
+    private static final byte[] RESET_FRAME = new byte[YSM_MAX_PKT_SIZE];
 
-    protected static synchronized byte[] execute(DeviceHandler device, byte command, byte[] data, boolean readResponse) throws YubiHSMErrorException {
-        byte[] cmdBuffer;
+    private CommandHandler() {}
 
-        if (command != YSM_NULL) {
-            cmdBuffer = new byte[]{(byte) (((data.length + 1) << 24) >> 24), command};
-        } else {
-            cmdBuffer = new byte[]{command};
+    protected static byte[] execute(DeviceHandler device, byte command, byte[] data, boolean readResponse) throws YubiHSMErrorException {
+        device.lock();
+        try {
+            return executeLocked(device, command, data, readResponse);
+        } finally {
+            device.unlock();
         }
+    }
 
-        log.debug("CMD BUFFER: {}", byteArrayToHex(concatAllArrays(cmdBuffer, data)));
-        device.write(concatAllArrays(cmdBuffer, data));
+    static byte[] executeLocked(DeviceHandler device, byte command, byte[] data, boolean readResponse) throws YubiHSMErrorException {
+        byte[] frame = frame(command, data);
+        if (log.isDebugEnabled()) {
+            log.debug("CMD BUFFER: {}", byteArrayToHex(frame));
+        }
+        beforeSend(device, command);
+        long start = device.getMetrics().start();
+        device.write(frame);
 
-        try {
-            if (!readResponse) {
+        if (!readResponse) {
+            try {
                 Thread.sleep(10); // We just sleep for safety since we cant check if we got any output
-                return null;
-            }
-
-            int sleptTime = 0;
-            int timeout = 100; // We enforce a default just in case (100 ms)
-            if (device.getTimeout() > 0) {
-                timeout = (int) (device.getTimeout() * 1000); // Need milliseconds
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
             }
+            return null;
+        }
 
+        long timeout = responseTimeout(device);
+        if (log.isDebugEnabled()) {
             log.debug("CommandHandler ({}) timeout set to: {} ms ", getCommandString(command), timeout);
+        }
 
-            while (sleptTime <= timeout) {
-                Thread.sleep(1);
-                sleptTime += 1;
-                if (device.available() > 0) {
-                    break;
-                }
-            }
-            log.debug("CommandHandler slept for: {} ms", sleptTime);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+        byte[] response = readDevice(device, command, timeout, true);
+        device.getMetrics().completed(command, start, frame.length, response);
+        return response;
+    }
+
+    /**
+     * Send the frame encoded in the device frame encoder and read the response. The frame is written straight
+     * from the encoder buffer, the caller must hold the device lock from encoding until this returns.
+     *
+     * @param device the device handler
+     * @param encoder the encoder holding the frame, see {@link DeviceHandler#getFrameEncoder()}
+     * @return the response payload
+     * @throws YubiHSMErrorException if no response or a response to another command was received
+     */
+    protected static byte[] execute(DeviceHandler device, FrameEncoder encoder) throws YubiHSMErrorException {
+        int length = encoder.finish();
+        if (log.isDebugEnabled()) {
+            log.debug("CMD BUFFER: {}", byteArrayToHex(rangeOfByteArray(encoder.array(), 0, length)));
         }
+        beforeSend(device, encoder.getCommand());
+        long start = device.getMetrics().start();
+        device.write(encoder.array(), 0, length);
 
-        return readDevice(device, command);
+        byte[] response = readDevice(device, encoder.getCommand(), responseTimeout(device), true);
+        device.getMetrics().completed(encoder.getCommand(), start, length, response);
+        return response;
     }
 
-    private static byte[] readDevice(DeviceHandler device, byte command) throws YubiHSMErrorException {
-        byte[] result = new byte[0];
+    /**
+     * Forget the resident temporary key before sending a command that loads, clears or may clear it.
+     *
+     * @param device the device handler
+     * @param command the command about to be sent
+     */
+    private static void beforeSend(DeviceHandler device, byte command) {
+        switch (command) {
+            case YSM_TEMP_KEY_LOAD:
+            case YSM_HSM_UNLOCK:
+            case YSM_KEY_STORAGE_UNLOCK:
+            case YSM_KEY_STORE_DECRYPT:
+            case YSM_MONITOR_EXIT:
+                device.invalidateTemporaryKey();
+                break;
+            default:
+                break;
+        }
+    }
 
-        if (device.available() > 0) {
-            result = device.read(2);
+    /**
+     * Build the frame sent to the YubiHSM, the length of the rest of the frame, the command and the payload.
+     * YSM_NULL is sent without a length.
+     *
+     * @param command the command
+     * @param data the command payload
+     * @return the frame
+     */
+    static byte[] frame(byte command, byte[] data) {
+        if (command == YSM_NULL) {
+            return concatAllArrays(new byte[]{command}, data);
         }
-        if (result.length == 0) {
-            reset(device);
-            throw new YubiHSMErrorException("No data received from the YubiHSM!");
+        return concatAllArrays(new byte[]{(byte) (((data.length + 1) << 24) >> 24), command}, data);
+    }
+
+    /**
+     * Get the time to wait for a response from the device.
+     *
+     * @param device the device handler
+     * @return the timeout in milliseconds
+     */
+    static long responseTimeout(DeviceHandler device) {
+        long timeout = 100; // We enforce a default just in case (100 ms)
+        if (device.getTimeout() > 0) {
+            timeout = (long) (device.getTimeout() * 1000); // Need milliseconds
         }
+        return timeout;
+    }
 
-        if ((result[1] & YSM_RESPONSE) != 0) {
-            log.debug("Got response from ({}) {}", result[1], getCommandString((byte) (result[1] - YSM_RESPONSE)));
+    /**
+     * Read the response frame for a command. The device frame decoder parses the length and command bytes as they
+     * arrive and skips garbage, we only wait for bytes that have not been delivered yet.
+     *
+     * @param device the device handler
+     * @param command the command we expect a response to
+     * @param timeout the maximum time to wait for the whole frame in milliseconds
+     * @param strict true to discard stale responses to other commands, reset the device and throw if the response
+     *               is missing, false to give up on a response to another command and return null without a reset
+     * @return the response payload
+     * @throws YubiHSMErrorException if no response was received in strict mode
+     */
+    static byte[] readDevice(DeviceHandler device, byte command, long timeout, boolean strict) throws YubiHSMErrorException {
+        FrameDecoder decoder = device.getFrameDecoder();
+        byte[] data;
+        try {
+            data = decoder.readResponse(command, timeout, strict);
+        } catch (IOException e) {
+            throw new YubiHSMErrorException("Failed to read from " + device.getPortName(), e);
+        }
+        if (data == null) {
+            device.invalidateTemporaryKey();
+            device.getMetrics().timedOut(command);
+            return failed(device, strict, decoder.getFailure());
         }
+        if (log.isDebugEnabled()) {
+            log.debug("Got response from {}", getCommandString(command));
+        }
+        return data;
+    }
 
-        if (result[1] == (command | YSM_RESPONSE)) {
-            int len = (int)result[0] - 1;
-            return device.read(len);
-        } else {
-            reset(device);
-            throw new YubiHSMErrorException("YubiHSM responded to the wrong command. Expected " + getCommandString(command) + " but got " + getCommandString((byte) (result[1] - YSM_RESPONSE)));
+    private static byte[] failed(DeviceHandler device, boolean strict, String message) throws YubiHSMErrorException {
+        if (!strict) {
+            log.warn("{}: {}", device.getPortName(), message);
+            return null;
         }
+        reset(device);
+        throw new YubiHSMErrorException(message);
     }
 
+    /**
+     * Reset the YubiHSM command parser by sending YSM_NULL padded to a full packet. Nothing is sent back, so we do
+     * not wait, whatever was received so far is discarded and late responses are skipped by the frame decoder.
+     *
+     * @param device the device handler
+     * @throws YubiHSMErrorException if the receive buffer could not be discarded
+     */
     public static void reset(DeviceHandler device) throws YubiHSMErrorException {
         log.debug("Sending reset command to device {}", device.getPortName());
-        byte[] reset = new byte[YSM_MAX_PKT_SIZE - 1];
-        for (int i=0; i < YSM_MAX_PKT_SIZE - 1; i++) {
-            reset[i] = 0x00;
+        device.lock();
+        try {
+            device.getMetrics().reset();
+            device.invalidateTemporaryKey();
+            device.write(RESET_FRAME);
+            device.getFrameDecoder().discard();
+        } catch (IOException e) {
+            throw new YubiHSMErrorException("Failed to read from " + device.getPortName(), e);
+        } finally {
+            device.unlock();
         }
-        execute(device, YSM_NULL, reset, false);
     }
 }
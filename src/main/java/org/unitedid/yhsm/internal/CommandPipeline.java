@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm.internal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <code>CommandPipeline</code> runs a sequence of commands on one device with up to
+ * {@link DeviceHandler#getPipelineDepth()} frames in flight, so the device never waits for the host between
+ * commands. Responses arrive in the order the commands were sent and are matched against the expected
+ * command one by one.
+ *
+ * Commands are added in groups. A group is a sequence that depends on device state set up within the group, like a
+ * buffer load and the buffer AEAD that follows it. If a response does not match, the device is reset, switched to
+ * strict request/response mode and the pipeline resumes from the start of the group that was interrupted.
+ */
+class CommandPipeline {
+    /** Logger */
+    private final Logger log = LoggerFactory.getLogger(CommandPipeline.class);
+
+    private final DeviceHandler device;
+    private final List<Byte> commands = new ArrayList<Byte>();
+    private final List<byte[]> payloads = new ArrayList<byte[]>();
+    private final List<Integer> groupStarts = new ArrayList<Integer>();
+    private int groupStart = 0;
+
+    /**
+     * Constructor
+     *
+     * @param device the device handler
+     */
+    CommandPipeline(DeviceHandler device) {
+        this.device = device;
+    }
+
+    /**
+     * Start a new group, the commands added next are replayed together if the pipeline falls back to strict mode.
+     *
+     * @return this pipeline
+     */
+    CommandPipeline group() {
+        groupStart = commands.size();
+        return this;
+    }
+
+    /**
+     * Add a command to the current group.
+     *
+     * @param command the command
+     * @param data the command payload
+     * @return this pipeline
+     */
+    CommandPipeline add(byte command, byte[] data) {
+        commands.add(command);
+        payloads.add(data);
+        groupStarts.add(groupStart);
+        return this;
+    }
+
+    /**
+     * Add a command as a group of its own.
+     *
+     * @param command the command
+     * @param data the command payload
+     * @return this pipeline
+     */
+    CommandPipeline addGroup(byte command, byte[] data) {
+        return group().add(command, data);
+    }
+
+    int size() {
+        return commands.size();
+    }
+
+    /**
+     * Run the commands while holding the device lock.
+     *
+     * @return the response payloads, in the order the commands were added
+     * @throws YubiHSMErrorException if a command failed in strict mode
+     */
+    byte[][] execute() throws YubiHSMErrorException {
+        return execute(null);
+    }
+
+    /**
+     * Run the commands while holding the device lock, handing each response to a listener as it arrives. Once the
+     * listener asks to stop no more commands are sent, the responses to commands already in flight are still read.
+     *
+     * @param listener the listener, or null to run every command
+     * @return the response payloads, in the order the commands were added, null for commands never sent
+     * @throws YubiHSMErrorException if a command failed in strict mode
+     */
+    byte[][] execute(Listener listener) throws YubiHSMErrorException {
+        int n = commands.size();
+        byte[][] responses = new byte[n][];
+        device.lock();
+        try {
+            int depth = device.getPipelineDepth();
+            if (depth <= 1) {
+                executeStrict(responses, 0, listener);
+                return responses;
+            }
+
+            long timeout = CommandHandler.responseTimeout(device);
+            DeviceMetrics metrics = device.getMetrics();
+            long[] sentAt = new long[n];
+            int[] frameLengths = new int[n];
+            int sent = 0;
+            int received = 0;
+            boolean stopped = false;
+            while (received < n) {
+                while (!stopped && sent < n && sent - received < depth) {
+                    byte[] frame = CommandHandler.frame(commands.get(sent), payloads.get(sent));
+                    sentAt[sent] = metrics.start();
+                    frameLengths[sent] = frame.length;
+                    device.write(frame);
+                    sent++;
+                }
+                if (received == sent) {
+                    break;
+                }
+                byte[] response = CommandHandler.readDevice(device, commands.get(received), timeout, false);
+                if (response == null) {
+                    fallback(sent - received);
+                    if (!stopped) {
+                        executeStrict(responses, groupStarts.get(received), listener);
+                    }
+                    return responses;
+                }
+                metrics.completed(commands.get(received), sentAt[received], frameLengths[received], response);
+                responses[received] = response;
+                if (!stopped && listener != null && !listener.received(received, response)) {
+                    stopped = true;
+                }
+                received++;
+            }
+            return responses;
+        } finally {
+            device.unlock();
+        }
+    }
+
+    private void executeStrict(byte[][] responses, int from, Listener listener) throws YubiHSMErrorException {
+        for (int i = from; i < responses.length; i++) {
+            responses[i] = CommandHandler.executeLocked(device, commands.get(i), payloads.get(i), true);
+            if (listener != null && !listener.received(i, responses[i])) {
+                return;
+            }
+        }
+    }
+
+    /** Discard the frames in flight and turn pipelining off for the device */
+    private void fallback(int inFlight) throws YubiHSMErrorException {
+        log.warn("Pipelined response mismatch on {} with {} commands in flight, falling back to strict mode",
+                device.getPortName(), inFlight);
+        device.setPipelineDepth(1);
+        CommandHandler.reset(device);
+        try {
+            Thread.sleep(CommandHandler.responseTimeout(device) / 10);
+            device.flush();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new YubiHSMErrorException("Failed to flush " + device.getPortName(), e);
+        }
+    }
+
+    /** Receives the responses of a pipeline in order as they arrive */
+    interface Listener {
+        /**
+         * Handle a response, called with the device lock held. A response is handed over again if its group is
+         * replayed after a fallback to strict mode.
+         *
+         * @param index the index of the command
+         * @param response the response payload
+         * @return true to keep sending commands, false to stop
+         */
+        boolean received(int index, byte[] response);
+    }
+}
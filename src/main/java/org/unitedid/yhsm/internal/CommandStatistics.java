@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm.internal;
+
+import java.beans.ConstructorProperties;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * <code>CommandStatistics</code> is a snapshot of the metrics of one command on one device, see
+ * {@link DeviceMetrics#getCommandStatistics()}. Durations are in microseconds.
+ */
+public final class CommandStatistics {
+
+    private final String command;
+    private final long count;
+    private final long timeouts;
+    private final long bytesOut;
+    private final long bytesIn;
+    private final long latencyMean;
+    private final long latencyP50;
+    private final long latencyP99;
+    private final long latencyMax;
+    private final long queueWaitMean;
+    private final long queueWaitP99;
+    private final Map<String, Long> errorStatuses;
+
+    /**
+     * Constructor
+     *
+     * @param command the command name
+     * @param count the number of responses received
+     * @param timeouts the number of missing or out of order responses
+     * @param bytesOut the number of bytes sent
+     * @param bytesIn the number of bytes received
+     * @param latencyMean the mean time from sending the command to receiving the response
+     * @param latencyP50 the median latency, upper bound
+     * @param latencyP99 the 99th percentile latency, upper bound
+     * @param latencyMax the longest latency
+     * @param queueWaitMean the mean time waiting for the device lock before sending
+     * @param queueWaitP99 the 99th percentile queue wait, upper bound
+     * @param errorStatuses the number of responses per status other than YSM_STATUS_OK
+     */
+    @ConstructorProperties({"command", "count", "timeouts", "bytesOut", "bytesIn", "latencyMean", "latencyP50",
+            "latencyP99", "latencyMax", "queueWaitMean", "queueWaitP99", "errorStatuses"})
+    public CommandStatistics(String command, long count, long timeouts, long bytesOut, long bytesIn,
+                             long latencyMean, long latencyP50, long latencyP99, long latencyMax,
+                             long queueWaitMean, long queueWaitP99, Map<String, Long> errorStatuses) {
+        this.command = command;
+        this.count = count;
+        this.timeouts = timeouts;
+        this.bytesOut = bytesOut;
+        this.bytesIn = bytesIn;
+        this.latencyMean = latencyMean;
+        this.latencyP50 = latencyP50;
+        this.latencyP99 = latencyP99;
+        this.latencyMax = latencyMax;
+        this.queueWaitMean = queueWaitMean;
+        this.queueWaitP99 = queueWaitP99;
+        this.errorStatuses = Collections.unmodifiableMap(errorStatuses);
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getTimeouts() {
+        return timeouts;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    public long getLatencyMean() {
+        return latencyMean;
+    }
+
+    public long getLatencyP50() {
+        return latencyP50;
+    }
+
+    public long getLatencyP99() {
+        return latencyP99;
+    }
+
+    public long getLatencyMax() {
+        return latencyMax;
+    }
+
+    public long getQueueWaitMean() {
+        return queueWaitMean;
+    }
+
+    public long getQueueWaitP99() {
+        return queueWaitP99;
+    }
+
+    /**
+     * Get the number of responses per error status, ie YSM_KEY_HANDLE_INVALID or YSM_MISMATCH.
+     *
+     * @return a map from status name to count, statuses never seen are left out
+     */
+    public Map<String, Long> getErrorStatuses() {
+        return errorStatuses;
+    }
+
+    @Override
+    public String toString() {
+        return command + ": " + count + " responses, " + timeouts + " timeouts, latency mean/p50/p99/max " +
+                latencyMean + "/" + latencyP50 + "/" + latencyP99 + "/" + latencyMax + " us, queue wait mean/p99 " +
+                queueWaitMean + "/" + queueWaitP99 + " us, " + bytesOut + " bytes out, " + bytesIn + " bytes in" +
+                (errorStatuses.isEmpty() ? "" : ", errors " + errorStatuses);
+    }
+}
@@ -129,7 +129,15 @@ public class Defines {
     /** Last command executed successfully */
     final static public byte YSM_STATUS_OK = (byte) 0x80;
     final static public byte YSM_RESPONSE = (byte) 0x80;
+    final static public byte YSM_KEY_HANDLE_INVALID = (byte) 0x81;
+    final static public byte YSM_AEAD_INVALID = (byte) 0x82;
     final static public byte YSM_OTP_INVALID = (byte) 0x83;
+    final static public byte YSM_OTP_REPLAY = (byte) 0x84;
+    final static public byte YSM_ID_DUPLICATE = (byte) 0x85;
+    final static public byte YSM_ID_NOT_FOUND = (byte) 0x86;
+    final static public byte YSM_DB_FULL = (byte) 0x87;
+    final static public byte YSM_FUNCTION_DISABLED = (byte) 0x89;
+    final static public byte YSM_INVALID_PARAMETER = (byte) 0x8c;
     final static public byte YSM_MISMATCH = (byte) 0x8b;
     final static public byte YSM_KEY_STORAGE_LOCKED = (byte) 0x8a;
 
@@ -16,98 +16,263 @@
 
 package org.unitedid.yhsm.internal;
 
-import jssc.SerialPort;
-import jssc.SerialPortException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
-import static org.unitedid.yhsm.utility.Utils.concatAllArrays;
 
 public class DeviceHandler {
     /** Logger */
     private final Logger log = LoggerFactory.getLogger(DeviceHandler.class);
 
-    /** The YubiHSM device */
-    private SerialPort device;
+    /** The link to the YubiHSM */
+    private final Transport transport;
 
-    private int readBytes = 0;
-    private int writtenBytes = 0;
+    private final AtomicLong writtenBytes = new AtomicLong();
 
     private float timeout = 0.5f;
 
+    /** Serializes commands sent to this device, other devices are not affected */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** The number of frames a CommandPipeline may have in flight, 1 means strict request/response */
+    private volatile int pipelineDepth = 1;
+
+    /** The frame buffer reused by every command sent to this device, guarded by the device lock */
+    private final FrameEncoder frameEncoder = new FrameEncoder();
+
+    /** The decoder of response frames from this device, guarded by the device lock */
+    private final FrameDecoder frameDecoder;
+
+    /** Per command metrics */
+    private final DeviceMetrics metrics;
+
+    /** The nonce, key handle and AEAD resident in the temporary key handle, guarded by the device lock */
+    private byte[] temporaryKeyNonce;
+    private int temporaryKeyHandle;
+    private byte[] temporaryKeyAead;
+
     /**
      * Constructor
      *
-     * @param deviceName the YubiHSM device name
+     * @param transport the transport connected to the YubiHSM
      */
-    DeviceHandler(String deviceName) throws YubiHSMErrorException {
-        device = new SerialPort(deviceName);
-        try {
-            device.openPort();
-            device.setParams(
-                    SerialPort.BAUDRATE_115200,
-                    SerialPort.DATABITS_8,
-                    SerialPort.STOPBITS_1,
-                    SerialPort.PARITY_NONE
-            );
-            device.setFlowControlMode(SerialPort.FLOWCONTROL_NONE);
-        } catch (SerialPortException e) {
-            throw new YubiHSMErrorException("Failed to open device " + deviceName, e);
-        }
+    public DeviceHandler(Transport transport) {
+        this.transport = transport;
+        this.frameDecoder = new FrameDecoder(transport);
+        this.metrics = new DeviceMetrics(this);
     }
 
     public void write(byte[] data) {
+        write(data, 0, data.length);
+    }
+
+    /**
+     * Write a range of bytes to the YubiHSM.
+     *
+     * @param data the buffer
+     * @param offset the offset in the buffer
+     * @param length the number of bytes to write
+     */
+    public void write(byte[] data, int offset, int length) {
         try {
-            writtenBytes += data.length;
-            device.writeBytes(data);
-        } catch (SerialPortException e) {
-            e.printStackTrace();
+            writtenBytes.addAndGet(length);
+            transport.write(data, offset, length);
+        } catch (IOException e) {
+            log.error("Failed to write to {}", getPortName(), e);
         }
     }
 
+    /**
+     * Read a number of bytes from the YubiHSM, waiting at most the device timeout for them to arrive.
+     *
+     * @param readNumBytes the number of bytes to read
+     * @return the bytes read, or an empty array if they did not arrive in time
+     */
     public byte[] read(int readNumBytes) {
-        byte[] data = new byte[readNumBytes];
+        return read(readNumBytes, (long) (timeout * 1000));
+    }
+
+    /**
+     * Read a number of bytes from the YubiHSM. The call returns as soon as the requested number of
+     * bytes have been delivered by the transport, nothing is consumed on timeout.
+     *
+     * @param readNumBytes the number of bytes to read
+     * @param timeoutMillis the maximum time to wait in milliseconds
+     * @return the bytes read, or an empty array if they did not arrive in time
+     */
+    public byte[] read(int readNumBytes, long timeoutMillis) {
+        lock.lock();
         try {
-            data = device.readBytes(readNumBytes);
-            readBytes += data.length;
-        } catch (SerialPortException e) {
-            e.printStackTrace();
+            byte[] data = new byte[readNumBytes];
+            if (frameDecoder.read(data, 0, readNumBytes, timeoutMillis)) {
+                return data;
+            }
+        } catch (IOException e) {
+            log.error("Failed to read from {}", getPortName(), e);
+        } finally {
+            lock.unlock();
         }
-
-        return data;
+        return new byte[0];
     }
 
     public int available() {
+        lock.lock();
         try {
-            return device.getInputBufferBytesCount();
-        } catch (SerialPortException e) {
-            e.printStackTrace();
+            return frameDecoder.available();
+        } catch (IOException e) {
+            log.error("Failed to read from {}", getPortName(), e);
+        } finally {
+            lock.unlock();
         }
         return 0;
     }
 
+    /**
+     * Read and log everything the YubiHSM has sent, line by line, without waiting for more.
+     *
+     * @return true
+     */
     public boolean drain() {
-        byte[] buffer = new byte[0];
-        while(available() > 0) {
-            byte[] b = read(1);
-            if ((char)b[0] == '\r') {
-                log.info("Drained: {}", new String(buffer, 0, buffer.length)); //TODO: Do we really need to log this? If not the loop can be simplified.
-                buffer = new byte[0];
-            } else {
-                buffer = concatAllArrays(buffer, b);
+        lock.lock();
+        try {
+            byte[] chunk = new byte[FrameDecoder.CAPACITY];
+            StringBuilder line = new StringBuilder();
+            int n;
+            while ((n = frameDecoder.readAvailable(chunk)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    if (chunk[i] == '\r') {
+                        log.info("Drained: {}", line);
+                        line.setLength(0);
+                    } else {
+                        line.append((char) (chunk[i] & 0xff));
+                    }
+                }
             }
+        } catch (IOException e) {
+            log.error("Failed to read from {}", getPortName(), e);
+        } finally {
+            lock.unlock();
         }
         return true;
     }
 
+    /**
+     * Discard all received but unread bytes.
+     *
+     * @throws IOException if the transport is broken
+     */
     public void flush() throws IOException {
+        lock.lock();
         try {
-            device.purgePort(SerialPort.PURGE_RXCLEAR | SerialPort.PURGE_TXCLEAR);
-        } catch (SerialPortException e) {
-            e.printStackTrace();
+            transport.purge();
+            frameDecoder.discard();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Acquire exclusive ownership of the device. The lock is reentrant, so a caller holding it can run a sequence
+     * of commands (like loading a temporary key and using it) without other threads interleaving their commands.
+     */
+    public void lock() {
+        if (metrics.isEnabled() && !lock.isHeldByCurrentThread()) {
+            long begin = System.nanoTime();
+            lock.lock();
+            metrics.lockAcquired(System.nanoTime() - begin);
+        } else {
+            lock.lock();
+        }
+    }
+
+    /**
+     * Release exclusive ownership of the device.
+     */
+    public void unlock() {
+        lock.unlock();
+    }
+
+    /**
+     * Get the frame encoder of this device. The encoder is shared by all commands, so it must only be used
+     * while holding the device lock, see {@link #lock()}.
+     *
+     * @return the frame encoder
+     */
+    public FrameEncoder getFrameEncoder() {
+        return frameEncoder;
+    }
+
+    /**
+     * Get the response frame decoder of this device, it must only be used while holding the device lock.
+     *
+     * @return the frame decoder
+     */
+    FrameDecoder getFrameDecoder() {
+        return frameDecoder;
+    }
+
+    /**
+     * Check if an AEAD is known to be loaded into the temporary key handle, called with the device lock held.
+     *
+     * @param nonce the nonce, padded to 6 bytes
+     * @param keyHandle the key handle the AEAD was loaded with
+     * @param aead the AEAD
+     * @return true if a YSM_TEMP_KEY_LOAD of the same nonce, key handle and AEAD is the last one that succeeded
+     */
+    boolean isTemporaryKeyResident(byte[] nonce, int keyHandle, byte[] aead) {
+        return temporaryKeyAead != null && temporaryKeyHandle == keyHandle &&
+                Arrays.equals(temporaryKeyAead, aead) && Arrays.equals(temporaryKeyNonce, nonce);
+    }
+
+    /**
+     * Remember the AEAD loaded into the temporary key handle, called with the device lock held. The nonce and AEAD
+     * are copied, the caller may reuse its buffers.
+     *
+     * @param nonce the nonce, padded to 6 bytes
+     * @param keyHandle the key handle the AEAD was loaded with
+     * @param aead the AEAD
+     */
+    void setTemporaryKey(byte[] nonce, int keyHandle, byte[] aead) {
+        temporaryKeyNonce = nonce.clone();
+        temporaryKeyHandle = keyHandle;
+        temporaryKeyAead = aead.clone();
+    }
+
+    /**
+     * Forget the temporary key, the next YSM_TEMP_KEY_LOAD is sent to the device. Called with the device lock held
+     * before anything that may change or clear the temporary key, ie a reset, a timeout or another load.
+     */
+    void invalidateTemporaryKey() {
+        temporaryKeyNonce = null;
+        temporaryKeyAead = null;
+    }
+
+    /**
+     * Get the number of command frames that may be in flight when running a pipeline of commands.
+     *
+     * @return the pipeline depth, 1 when pipelining is off
+     */
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * Allow up to depth command frames in flight when running a pipeline of commands, ie bulk HMAC or AEAD
+     * generation. Responses are matched in order, if one does not match the device falls back to depth 1.
+     * Single commands are not affected.
+     *
+     * @param depth the pipeline depth, 1 to turn pipelining off
+     */
+    public void setPipelineDepth(int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("Pipeline depth must be 1 or more");
         }
+        pipelineDepth = depth;
     }
 
     public float getTimeout() {
@@ -118,29 +283,48 @@ public class DeviceHandler {
         this.timeout = timeout;
     }
 
-    public int getReadBytes() {
-        return readBytes;
+    /**
+     * Get the number of bytes received from the YubiHSM.
+     *
+     * @return the number of bytes
+     */
+    public long getReadBytes() {
+        return frameDecoder.getReceivedBytes();
     }
 
-    public int getWrittenBytes() {
-        return writtenBytes;
+    /**
+     * Get the number of bytes sent to the YubiHSM.
+     *
+     * @return the number of bytes
+     */
+    public long getWrittenBytes() {
+        return writtenBytes.get();
+    }
+
+    /**
+     * Get the per command metrics of this device.
+     *
+     * @return the metrics
+     */
+    public DeviceMetrics getMetrics() {
+        return metrics;
     }
 
     public String getPortName() {
-        return device.getPortName();
+        return transport.getName();
+    }
+
+    /**
+     * Get the transport used to talk to the YubiHSM.
+     *
+     * @return the transport
+     */
+    public Transport getTransport() {
+        return transport;
     }
 
     public Object clone() throws CloneNotSupportedException
     {
         throw new CloneNotSupportedException();
     }
-
-    protected void finalize() throws Throwable {
-        try {
-            device.closePort();
-        } finally {
-            super.finalize();
-        }
-    }
 }
-
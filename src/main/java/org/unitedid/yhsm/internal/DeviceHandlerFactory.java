@@ -19,8 +19,11 @@ package org.unitedid.yhsm.internal;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.WeakHashMap;
 
 public class DeviceHandlerFactory {
     /** Logger */
@@ -28,6 +31,9 @@ public class DeviceHandlerFactory {
 
     private static Map<String, DeviceHandler> deviceHandlerFactoryMap = new HashMap<String, DeviceHandler>();
 
+    /** Device handlers of caller supplied transports, held only as long as some facade uses them */
+    private static final Map<Transport, WeakReference<DeviceHandler>> transportHandlers = new WeakHashMap<Transport, WeakReference<DeviceHandler>>();
+
     private DeviceHandlerFactory() {}
 
     public static DeviceHandler get(String device) throws YubiHSMErrorException {
@@ -35,7 +41,7 @@ public class DeviceHandlerFactory {
             DeviceHandler deviceHandler = deviceHandlerFactoryMap.get(device);
             if (deviceHandler == null) {
                 log.debug("Adding device {} to deviceHandlerFactory.", device);
-                deviceHandler = new DeviceHandler(device);
+                deviceHandler = new DeviceHandler(openTransport(device));
                 deviceHandlerFactoryMap.put(device, deviceHandler);
             } else {
                 log.debug("Returning device {} from deviceHandlerFactory.", device);
@@ -44,6 +50,44 @@ public class DeviceHandlerFactory {
         }
     }
 
+    /**
+     * Get the device handler of a transport. All users of one transport share the same device handler, and with it
+     * the device lock, the frame decoder and the temporary key state.
+     *
+     * @param transport the transport connected to the YubiHSM
+     * @return the device handler of the transport
+     */
+    public static DeviceHandler get(Transport transport) {
+        synchronized (transportHandlers) {
+            WeakReference<DeviceHandler> reference = transportHandlers.get(transport);
+            DeviceHandler deviceHandler = reference == null ? null : reference.get();
+            if (deviceHandler == null) {
+                deviceHandler = new DeviceHandler(transport);
+                transportHandlers.put(transport, new WeakReference<DeviceHandler>(deviceHandler));
+            }
+            return deviceHandler;
+        }
+    }
+
+    /**
+     * Open the transport for a device name, names on the form tcp://host:port are opened as a TCP connection,
+     * anything else as a serial device.
+     *
+     * @param device the device name
+     * @return the opened transport
+     * @throws YubiHSMErrorException if the device could not be opened
+     */
+    private static Transport openTransport(String device) throws YubiHSMErrorException {
+        if (device.startsWith("tcp://")) {
+            try {
+                return TcpTransport.open(device);
+            } catch (IOException e) {
+                throw new YubiHSMErrorException("Failed to open device " + device, e);
+            }
+        }
+        return new SerialTransport(device);
+    }
+
     public Object clone() throws CloneNotSupportedException {
         throw new CloneNotSupportedException();
     }
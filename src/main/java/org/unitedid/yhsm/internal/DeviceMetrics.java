@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm.internal;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.unitedid.yhsm.internal.Defines.*;
+
+/**
+ * <code>DeviceMetrics</code> collects per command metrics for one device, keyed by the command names in
+ * {@link Defines#COMMAND_TO_STRING}: latency from sending a command to receiving its response, time spent waiting
+ * for the device lock, bytes in and out, timeouts and error statuses. Byte counters, resets and temporary key loads
+ * are always counted.
+ *
+ * Collection is off until {@link #setEnabled(boolean)} or {@link #registerMBean()} is called, when off a command
+ * costs one volatile read. When on, recording is lock free and allocation free.
+ */
+public class DeviceMetrics implements DeviceMetricsMXBean {
+
+    /** The JMX domain the metrics are registered in */
+    public static final String JMX_DOMAIN = "org.unitedid.yhsm";
+
+    /** The offset of the status byte in the response to each command, -1 if the response has none */
+    private static final int[] STATUS_OFFSET = new int[128];
+    static {
+        Arrays.fill(STATUS_OFFSET, -1);
+        STATUS_OFFSET[YSM_AEAD_GENERATE] = 10;
+        STATUS_OFFSET[YSM_BUFFER_AEAD_GENERATE] = 10;
+        STATUS_OFFSET[YSM_RANDOM_AEAD_GENERATE] = 10;
+        STATUS_OFFSET[YSM_AEAD_DECRYPT_CMP] = 10;
+        STATUS_OFFSET[YSM_DB_YUBIKEY_AEAD_STORE] = 10;
+        STATUS_OFFSET[YSM_AEAD_YUBIKEY_OTP_DECODE] = 16;
+        STATUS_OFFSET[YSM_DB_OTP_VALIDATE] = 12;
+        STATUS_OFFSET[YSM_AES_ECB_BLOCK_ENCRYPT] = 20;
+        STATUS_OFFSET[YSM_AES_ECB_BLOCK_DECRYPT] = 20;
+        STATUS_OFFSET[YSM_AES_ECB_BLOCK_DECRYPT_CMP] = 4;
+        STATUS_OFFSET[YSM_HMAC_SHA1_GENERATE] = 4;
+        STATUS_OFFSET[YSM_TEMP_KEY_LOAD] = 10;
+        STATUS_OFFSET[YSM_NONCE_GET] = 0;
+        STATUS_OFFSET[YSM_RANDOM_RESEED] = 0;
+        STATUS_OFFSET[YSM_KEY_STORAGE_UNLOCK] = 0;
+        STATUS_OFFSET[YSM_HSM_UNLOCK] = 0;
+        STATUS_OFFSET[YSM_KEY_STORE_DECRYPT] = 0;
+    }
+
+    private final DeviceHandler device;
+    private final AtomicReferenceArray<CommandMetrics> commands = new AtomicReferenceArray<CommandMetrics>(128);
+    private final LongAdder resets = new LongAdder();
+    private final LongAdder temporaryKeyLoads = new LongAdder();
+    private final LongAdder temporaryKeyLoadsSkipped = new LongAdder();
+    private volatile boolean enabled = false;
+
+    /** Time the current lock holder waited for the device lock, -1 once recorded. Guarded by the device lock. */
+    private long pendingQueueWait = -1;
+
+    private ObjectName objectName;
+
+    /**
+     * Constructor
+     *
+     * @param device the device handler measured
+     */
+    DeviceMetrics(DeviceHandler device) {
+        this.device = device;
+    }
+
+    /**
+     * Turn collection on and register the metrics with the platform MBean server as
+     * <code>org.unitedid.yhsm:type=YubiHSM,name=&lt;device name&gt;</code>.
+     *
+     * @return the name the metrics were registered under
+     * @throws JMException if registration failed, ie the name is already registered
+     */
+    public synchronized ObjectName registerMBean() throws JMException {
+        if (objectName == null) {
+            ObjectName name = new ObjectName(JMX_DOMAIN + ":type=YubiHSM,name=" + ObjectName.quote(getDeviceName()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            objectName = name;
+        }
+        enabled = true;
+        return objectName;
+    }
+
+    /**
+     * Unregister the metrics from the platform MBean server, collection stays on.
+     *
+     * @throws JMException if unregistering failed
+     */
+    public synchronized void unregisterMBean() throws JMException {
+        if (objectName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            objectName = null;
+        }
+    }
+
+    public String getDeviceName() {
+        return device.getPortName();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public long getReadBytes() {
+        return device.getReadBytes();
+    }
+
+    public long getWrittenBytes() {
+        return device.getWrittenBytes();
+    }
+
+    public long getResets() {
+        return resets.sum();
+    }
+
+    /**
+     * Get the number of received bytes the frame decoder skipped, ie garbage or input discarded by a reset.
+     *
+     * @return the number of bytes
+     */
+    public long getSkippedBytes() {
+        return device.getFrameDecoder().getSkippedBytes();
+    }
+
+    /**
+     * Get the number of responses to timed out commands the frame decoder discarded.
+     *
+     * @return the number of responses
+     */
+    public long getStaleResponses() {
+        return device.getFrameDecoder().getStaleFrames();
+    }
+
+    /**
+     * Get the number of YSM_TEMP_KEY_LOAD requests, sent or skipped.
+     *
+     * @return the number of requests
+     */
+    public long getTemporaryKeyLoads() {
+        return temporaryKeyLoads.sum();
+    }
+
+    /**
+     * Get the number of YSM_TEMP_KEY_LOAD requests skipped because the AEAD was already resident.
+     *
+     * @return the number of skipped loads
+     */
+    public long getTemporaryKeyLoadsSkipped() {
+        return temporaryKeyLoadsSkipped.sum();
+    }
+
+    /**
+     * Get the share of YSM_TEMP_KEY_LOAD requests skipped because the AEAD was already resident.
+     *
+     * @return the skip ratio between 0 and 1, 0 if no key has been loaded
+     */
+    public double getTemporaryKeySkipRatio() {
+        long loads = temporaryKeyLoads.sum();
+        return loads == 0 ? 0 : (double) temporaryKeyLoadsSkipped.sum() / loads;
+    }
+
+    /**
+     * Get a snapshot of the metrics of every command seen since collection was turned on.
+     *
+     * @return a map from command name to statistics
+     */
+    public Map<String, CommandStatistics> getCommandStatistics() {
+        Map<String, CommandStatistics> statistics = new TreeMap<String, CommandStatistics>();
+        for (int i = 0; i < commands.length(); i++) {
+            CommandMetrics metrics = commands.get(i);
+            if (metrics != null) {
+                statistics.put(commandName(i), metrics.snapshot(commandName(i)));
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * Get a snapshot of the metrics of one command.
+     *
+     * @param command the command
+     * @return the statistics, all zero if the command has not been seen
+     */
+    public CommandStatistics getCommandStatistics(byte command) {
+        CommandMetrics metrics = commands.get(command & 0x7f);
+        return (metrics != null ? metrics : new CommandMetrics()).snapshot(commandName(command & 0x7f));
+    }
+
+    /**
+     * Forget the per command metrics and resets, the byte counters are kept.
+     */
+    public void clear() {
+        for (int i = 0; i < commands.length(); i++) {
+            commands.set(i, null);
+        }
+        resets.reset();
+        temporaryKeyLoads.reset();
+        temporaryKeyLoadsSkipped.reset();
+    }
+
+    /**
+     * Get the start time of a command.
+     *
+     * @return the current time, or 0 if collection is off
+     */
+    long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record the time spent waiting for the device lock, called with the lock held.
+     *
+     * @param nanos the wait time
+     */
+    void lockAcquired(long nanos) {
+        pendingQueueWait = nanos;
+    }
+
+    /**
+     * Record a response, called with the device lock held.
+     *
+     * @param command the command
+     * @param start the time the command was sent, see {@link #start()}
+     * @param bytesOut the length of the command frame
+     * @param response the response payload
+     */
+    void completed(byte command, long start, int bytesOut, byte[] response) {
+        if (!enabled || start == 0) {
+            return;
+        }
+        CommandMetrics metrics = get(command);
+        metrics.latency.record(System.nanoTime() - start);
+        if (pendingQueueWait >= 0) {
+            metrics.queueWait.record(pendingQueueWait);
+            pendingQueueWait = -1;
+        }
+        metrics.bytesOut.add(bytesOut);
+        metrics.bytesIn.add(response.length + 2);
+        int offset = STATUS_OFFSET[command & 0x7f];
+        if (offset >= 0 && offset < response.length && response[offset] != YSM_STATUS_OK) {
+            metrics.statuses.incrementAndGet(response[offset] & 0xff);
+        }
+    }
+
+    /**
+     * Record a missing or out of order response.
+     *
+     * @param command the command
+     */
+    void timedOut(byte command) {
+        if (enabled) {
+            get(command).timeouts.increment();
+        }
+    }
+
+    void reset() {
+        resets.increment();
+    }
+
+    /**
+     * Record a temporary key load request.
+     *
+     * @param skipped true if the AEAD was already resident and nothing was sent
+     */
+    void temporaryKeyLoad(boolean skipped) {
+        temporaryKeyLoads.increment();
+        if (skipped) {
+            temporaryKeyLoadsSkipped.increment();
+        }
+    }
+
+    private CommandMetrics get(byte command) {
+        int index = command & 0x7f;
+        CommandMetrics metrics = commands.get(index);
+        if (metrics == null) {
+            commands.compareAndSet(index, null, new CommandMetrics());
+            metrics = commands.get(index);
+        }
+        return metrics;
+    }
+
+    private static String commandName(int command) {
+        String name = COMMAND_TO_STRING.get(command);
+        return name != null ? name : String.format("0x%02x", command);
+    }
+
+    /** The counters of one command */
+    private static class CommandMetrics {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LatencyHistogram queueWait = new LatencyHistogram();
+        final LongAdder timeouts = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+        final AtomicLongArray statuses = new AtomicLongArray(256);
+
+        CommandStatistics snapshot(String name) {
+            Map<String, Long> errors = new TreeMap<String, Long>();
+            for (int i = 0; i < statuses.length(); i++) {
+                long n = statuses.get(i);
+                if (n > 0) {
+                    String status = getCommandStatus((byte) i);
+                    errors.put(status != null ? status : String.format("0x%02x", i), n);
+                }
+            }
+            return new CommandStatistics(name, latency.getCount(), timeouts.sum(), bytesOut.sum(), bytesIn.sum(),
+                    latency.getMeanNanos() / 1000, latency.getPercentileNanos(50) / 1000,
+                    latency.getPercentileNanos(99) / 1000, latency.getMaxNanos() / 1000,
+                    queueWait.getMeanNanos() / 1000, queueWait.getPercentileNanos(99) / 1000, errors);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm.internal;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link DeviceMetrics}.
+ */
+public interface DeviceMetricsMXBean {
+
+    String getDeviceName();
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getReadBytes();
+
+    long getWrittenBytes();
+
+    long getResets();
+
+    long getSkippedBytes();
+
+    long getStaleResponses();
+
+    long getTemporaryKeyLoads();
+
+    long getTemporaryKeyLoadsSkipped();
+
+    double getTemporaryKeySkipRatio();
+
+    Map<String, CommandStatistics> getCommandStatistics();
+
+    void clear();
+}
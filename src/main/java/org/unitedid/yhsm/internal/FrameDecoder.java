@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm.internal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+import static org.unitedid.yhsm.internal.Defines.*;
+
+/**
+ * <code>FrameDecoder</code> reads response frames from a transport into a ring buffer and parses the length and
+ * command bytes as they arrive. Bytes that cannot start a response frame are skipped one at a time and complete
+ * responses to other commands, ie stale responses left behind by a timed out command, are discarded whole. Nothing
+ * sleeps, the decoder only waits for bytes that have not arrived yet.
+ *
+ * Each device handler owns one decoder, it must only be used while holding the device lock.
+ */
+final class FrameDecoder {
+    /** Logger */
+    private static final Logger log = LoggerFactory.getLogger(FrameDecoder.class);
+
+    /** Ring buffer capacity, a power of two holding more than two of the largest frames */
+    static final int CAPACITY = 256;
+    private static final int MASK = CAPACITY - 1;
+
+    private final Transport transport;
+    private final byte[] ring = new byte[CAPACITY];
+    private int head = 0;
+    private int count = 0;
+
+    /* Only updated by the lock holder, volatile so they can be read by anyone */
+    private volatile long receivedBytes = 0;
+    private volatile long skippedBytes = 0;
+    private volatile long staleFrames = 0;
+
+    /** Why the last read returned null */
+    private String failure;
+
+    /**
+     * Constructor
+     *
+     * @param transport the transport to read from
+     */
+    FrameDecoder(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Read the response to a command.
+     *
+     * @param command the command we expect a response to
+     * @param timeoutMillis the maximum time to wait for the whole frame in milliseconds
+     * @param discardOther true to discard responses to other commands as stale and keep waiting, false to
+     *                     give up on the first complete response to another command, ie in a pipeline where
+     *                     responses must arrive in order
+     * @return the response payload, or null on timeout or mismatch, see {@link #getFailure()}
+     * @throws IOException if the transport is closed or broken
+     */
+    byte[] readResponse(byte command, long timeoutMillis, boolean discardOther) throws IOException {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        byte expected = (byte) (command | YSM_RESPONSE);
+        while (true) {
+            while (count >= 2 && !isResponseHeader(peek(0), peek(1))) {
+                skip(1);
+                skippedBytes++;
+            }
+            if (count >= 2) {
+                int length = peek(0) & 0xff;
+                if (count > length) {
+                    byte got = peek(1);
+                    if (got == expected) {
+                        byte[] payload = new byte[length - 1];
+                        copy(2, payload, length - 1);
+                        skip(length + 1);
+                        return payload;
+                    }
+                    skip(length + 1);
+                    String message = "YubiHSM responded to the wrong command. Expected " + getCommandString(command) +
+                            " but got " + getCommandString((byte) (got & ~YSM_RESPONSE));
+                    if (!discardOther) {
+                        failure = message;
+                        return null;
+                    }
+                    staleFrames++;
+                    log.debug("{}: discarded stale response. {}", transport.getName(), message);
+                    continue;
+                }
+            }
+            if (!fill(deadline)) {
+                failure = count < 2 ? "No data received from the YubiHSM!" :
+                        "Timeout waiting for " + ((peek(0) & 0xff) - 1) + " bytes of response data to " + getCommandString(command);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Read raw bytes, ie text printed by the YubiHSM in configuration mode. Nothing is consumed on timeout.
+     *
+     * @param dest the buffer to read into
+     * @param offset the offset in dest
+     * @param length the number of bytes, at most {@link #CAPACITY}
+     * @param timeoutMillis the maximum time to wait in milliseconds
+     * @return true if the bytes were read, false on timeout
+     * @throws IOException if the transport is closed or broken
+     */
+    boolean read(byte[] dest, int offset, int length, long timeoutMillis) throws IOException {
+        if (length > CAPACITY) {
+            throw new IllegalArgumentException("Cannot read more than " + CAPACITY + " bytes at once");
+        }
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        while (count < length) {
+            if (!fill(deadline)) {
+                return false;
+            }
+        }
+        copy(0, dest, offset, length);
+        skip(length);
+        return true;
+    }
+
+    /**
+     * Take the bytes that can be read without waiting.
+     *
+     * @param dest the buffer to read into
+     * @return the number of bytes read
+     * @throws IOException if the transport is closed or broken
+     */
+    int readAvailable(byte[] dest) throws IOException {
+        if (count == 0 && transport.available() > 0) {
+            fill(System.nanoTime());
+        }
+        int length = Math.min(count, dest.length);
+        copy(0, dest, 0, length);
+        skip(length);
+        return length;
+    }
+
+    /**
+     * Get the number of bytes that can be read without waiting.
+     *
+     * @return the number of buffered and received bytes
+     * @throws IOException if the transport is closed or broken
+     */
+    int available() throws IOException {
+        return count + transport.available();
+    }
+
+    /**
+     * Discard everything received so far without waiting, responses arriving later are skipped as stale.
+     *
+     * @throws IOException if the transport is closed or broken
+     */
+    void discard() throws IOException {
+        skippedBytes += count;
+        head = 0;
+        count = 0;
+        int available;
+        while ((available = Math.min(transport.available(), CAPACITY)) > 0) {
+            transport.readExact(ring, 0, available, 0);
+            receivedBytes += available;
+            skippedBytes += available;
+        }
+    }
+
+    String getFailure() {
+        return failure;
+    }
+
+    long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    long getSkippedBytes() {
+        return skippedBytes;
+    }
+
+    long getStaleFrames() {
+        return staleFrames;
+    }
+
+    /**
+     * Append bytes from the transport, everything already received or the next byte to arrive.
+     *
+     * @return false if nothing arrived before the deadline
+     */
+    private boolean fill(long deadline) throws IOException {
+        int free = CAPACITY - count;
+        int length = Math.min(transport.available(), free);
+        long timeoutMillis = 0;
+        if (length == 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            length = 1;
+            timeoutMillis = Math.max(1, remaining / 1000000L);
+        }
+        int tail = (head + count) & MASK;
+        length = Math.min(length, CAPACITY - tail);
+        if (!transport.readExact(ring, tail, length, timeoutMillis)) {
+            return false;
+        }
+        count += length;
+        receivedBytes += length;
+        return true;
+    }
+
+    private static boolean isResponseHeader(byte length, byte command) {
+        return (command & YSM_RESPONSE) != 0 && length > 0 && (length & 0xff) <= YSM_MAX_PKT_SIZE;
+    }
+
+    private byte peek(int index) {
+        return ring[(head + index) & MASK];
+    }
+
+    private void skip(int length) {
+        head = (head + length) & MASK;
+        count -= length;
+    }
+
+    private void copy(int index, byte[] dest, int length) {
+        copy(index, dest, 0, length);
+    }
+
+    private void copy(int index, byte[] dest, int offset, int length) {
+        int start = (head + index) & MASK;
+        int first = Math.min(length, CAPACITY - start);
+        System.arraycopy(ring, start, dest, offset, first);
+        System.arraycopy(ring, 0, dest, offset + first, length - first);
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm.internal;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.unitedid.yhsm.internal.Defines.*;
+
+/**
+ * <code>FrameEncoder</code> writes a command frame, length, command, key handle, flags, nonce and payload, straight
+ * into one buffer that is reused for every command sent to a device. Encoding a command allocates nothing.
+ *
+ * Each device handler owns one encoder, it must only be used while holding the device lock.
+ */
+public final class FrameEncoder {
+
+    /** The length byte, the command and the largest payload the YubiHSM accepts */
+    static final int MAX_FRAME_SIZE = YSM_MAX_PKT_SIZE + 2;
+
+    private final byte[] buffer = new byte[MAX_FRAME_SIZE];
+    private int position = 0;
+
+    /**
+     * Start a new frame, discarding whatever was encoded before.
+     *
+     * @param command the command
+     * @return this encoder
+     */
+    public FrameEncoder begin(byte command) {
+        buffer[1] = command;
+        position = 2;
+        return this;
+    }
+
+    /**
+     * Append one byte, ie command flags or a length.
+     *
+     * @param value the byte
+     * @return this encoder
+     */
+    public FrameEncoder put(byte value) {
+        ensureCapacity(1);
+        buffer[position++] = value;
+        return this;
+    }
+
+    /**
+     * Append a little endian int, ie a key handle.
+     *
+     * @param value the int
+     * @return this encoder
+     */
+    public FrameEncoder putInt(int value) {
+        ensureCapacity(4);
+        buffer[position++] = (byte) value;
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) (value >>> 16);
+        buffer[position++] = (byte) (value >>> 24);
+        return this;
+    }
+
+    /**
+     * Append bytes as is.
+     *
+     * @param data the bytes
+     * @return this encoder
+     */
+    public FrameEncoder put(byte[] data) {
+        return put(data, 0, data.length);
+    }
+
+    /**
+     * Append a range of bytes as is.
+     *
+     * @param data the bytes
+     * @param offset the offset in data
+     * @param length the number of bytes
+     * @return this encoder
+     */
+    public FrameEncoder put(byte[] data, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(data, offset, buffer, position, length);
+        position += length;
+        return this;
+    }
+
+    /**
+     * Append a range of bytes from a buffer, ie a memory mapped file, read at absolute offsets so the buffer
+     * position is left alone and the buffer can be shared between threads.
+     *
+     * @param data the buffer
+     * @param offset the offset in data
+     * @param length the number of bytes
+     * @return this encoder
+     */
+    public FrameEncoder put(ByteBuffer data, int offset, int length) {
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            buffer[position++] = data.get(offset + i);
+        }
+        return this;
+    }
+
+    /**
+     * Append a nonce, zero padded to {@link Defines#YSM_AEAD_NONCE_SIZE} bytes.
+     *
+     * @param nonce the nonce, at most 6 bytes
+     * @return this encoder
+     */
+    public FrameEncoder putNonce(byte[] nonce) {
+        return putPadded(nonce, YSM_AEAD_NONCE_SIZE);
+    }
+
+    /**
+     * Append bytes zero padded to a fixed field length.
+     *
+     * @param data the bytes, at most length bytes
+     * @param length the field length
+     * @return this encoder
+     */
+    public FrameEncoder putPadded(byte[] data, int length) {
+        ensureCapacity(length);
+        System.arraycopy(data, 0, buffer, position, data.length);
+        Arrays.fill(buffer, position + data.length, position + length, (byte) 0);
+        position += length;
+        return this;
+    }
+
+    /**
+     * Append data preceded by its length byte, zero padded to at least paddingLength bytes.
+     *
+     * @param data the data
+     * @param paddingLength the minimum data length, 0 for no padding
+     * @return this encoder
+     */
+    public FrameEncoder putData(byte[] data, int paddingLength) {
+        int length = Math.max(data.length, paddingLength);
+        ensureCapacity(1 + length);
+        buffer[position++] = (byte) length;
+        return putPadded(data, length);
+    }
+
+    /**
+     * Get the command of the frame being encoded.
+     *
+     * @return the command
+     */
+    public byte getCommand() {
+        return buffer[1];
+    }
+
+    /**
+     * Complete the frame by writing its length byte.
+     *
+     * @return the number of bytes in the frame
+     */
+    public int finish() {
+        buffer[0] = (byte) (position - 1);
+        return position;
+    }
+
+    /**
+     * Get the number of bytes encoded so far, including the header.
+     *
+     * @return the frame length
+     */
+    public int length() {
+        return position;
+    }
+
+    /**
+     * Get the buffer holding the frame, only the first {@link #length()} bytes are valid.
+     *
+     * @return the buffer, not a copy
+     */
+    byte[] array() {
+        return buffer;
+    }
+
+    private void ensureCapacity(int length) {
+        if (position + length > MAX_FRAME_SIZE) {
+            throw new IllegalStateException("Command " + getCommandString(buffer[1]) + " exceeds " + MAX_FRAME_SIZE + " bytes");
+        }
+    }
+}
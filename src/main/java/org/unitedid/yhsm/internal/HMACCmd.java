@@ -16,7 +16,8 @@
 
 package org.unitedid.yhsm.internal;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import static org.unitedid.yhsm.internal.Defines.*;
@@ -43,7 +44,25 @@ import static org.unitedid.yhsm.utility.Utils.*;
      * @throws YubiHSMInputException if an argument does not validate
      */
     public static Map<String, String> generateHMACSHA1(DeviceHandler deviceHandler, byte[] data, int keyHandle, byte flags, boolean last, boolean toBuffer) throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
-        byte [] dataBA = validateByteArray("data", data, YSM_MAX_PKT_SIZE - 6, 0, 0);
+        return generate(deviceHandler, data, keyHandle, flags, last, toBuffer).toMap();
+    }
+
+    /**
+     * Generate HMAC SHA1 using a key handle in the YubiHSM.
+     *
+     * @param deviceHandler the device handler
+     * @param data the data used to generate the SHA1
+     * @param keyHandle the key handle to use in the YubiHSM
+     * @param flags the commands flags, send (byte) 0 to use defaults
+     * @param last set to false to not get a hash generated for the initial request
+     * @param toBuffer set to true to get the SHA1 stored into the internal buffer, for use in some other cryptographic operations.
+     * @return the SHA1 hash
+     * @throws YubiHSMCommandFailedException if the YubiHSM fail to execute the command
+     * @throws YubiHSMErrorException if validation fail for some values returned by the YubiHSM
+     * @throws YubiHSMInputException if an argument does not validate
+     */
+    public static HmacResult generate(DeviceHandler deviceHandler, byte[] data, int keyHandle, byte flags, boolean last, boolean toBuffer) throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+        validateByteArray("data", data, YSM_MAX_PKT_SIZE - 6, 0, 0);
 
         if (flags == 0) {
             flags = YSM_HMAC_SHA1_RESET;
@@ -55,9 +74,7 @@ import static org.unitedid.yhsm.utility.Utils.*;
             }
         }
 
-        byte[] flagsBA = { flags };
-        byte[] cmdBuffer = concatAllArrays(leIntToBA(keyHandle), flagsBA, addLengthToData(dataBA));
-        byte[] result = CommandHandler.execute(deviceHandler, YSM_HMAC_SHA1_GENERATE, cmdBuffer, true);
+        byte[] result = execute(deviceHandler, data, keyHandle, flags);
         return parseResult(result, keyHandle, last);
     }
 
@@ -74,14 +91,39 @@ import static org.unitedid.yhsm.utility.Utils.*;
      * @throws YubiHSMInputException if an argument does not validate
      */
     public static byte[] execHMACSHA1_Raw(DeviceHandler deviceHandler, byte[] data, int keyHandle, byte flags) throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
-        byte [] dataBA = validateByteArray("data", data, YSM_DATA_BUF_SIZE, 0, 0);
-        byte[] flagsBA = { flags };
-        byte[] cmdBuffer = concatAllArrays(leIntToBA(keyHandle), flagsBA, addLengthToData(dataBA));
-        byte[] result = CommandHandler.execute(deviceHandler, YSM_HMAC_SHA1_GENERATE, cmdBuffer, true);
+        validateByteArray("data", data, YSM_DATA_BUF_SIZE, 0, 0);
+        byte[] result = execute(deviceHandler, data, keyHandle, flags);
         boolean isLast = (flags & YSM_HMAC_SHA1_FINAL) == YSM_HMAC_SHA1_FINAL;
         return parseResultRaw(result, keyHandle, isLast);
     }
 
+    /**
+     * Generate one HMAC SHA1 per data element, each in a single command. The commands are pipelined if the device
+     * has a pipeline depth above 1.
+     *
+     * @param deviceHandler the device handler
+     * @param data the data for each SHA1
+     * @param keyHandle the key handle to use in the YubiHSM
+     * @return the SHA1 hashes, in the same order as the data
+     * @throws YubiHSMCommandFailedException if the YubiHSM fail to execute a command
+     * @throws YubiHSMErrorException if validation fail for some values returned by the YubiHSM
+     * @throws YubiHSMInputException if an argument does not validate
+     */
+    public static List<byte[]> generateHMACSHA1(DeviceHandler deviceHandler, List<byte[]> data, int keyHandle) throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+        byte[] flagsBA = { YSM_HMAC_SHA1_RESET | YSM_HMAC_SHA1_FINAL };
+        CommandPipeline pipeline = new CommandPipeline(deviceHandler);
+        for (byte[] d : data) {
+            byte[] dataBA = validateByteArray("data", d, YSM_MAX_PKT_SIZE - 6, 0, 0);
+            pipeline.addGroup(YSM_HMAC_SHA1_GENERATE, concatAllArrays(leIntToBA(keyHandle), flagsBA, addLengthToData(dataBA)));
+        }
+
+        List<byte[]> hashes = new ArrayList<byte[]>();
+        for (byte[] result : pipeline.execute()) {
+            hashes.add(parseResultRaw(result, keyHandle, true));
+        }
+        return hashes;
+    }
+
     /**
      * Add more input to the HMAC SHA1.
      *
@@ -96,6 +138,23 @@ import static org.unitedid.yhsm.utility.Utils.*;
      * @throws YubiHSMInputException if an argument does not validate
      */
     public static Map<String, String> next(DeviceHandler deviceHandler, byte[] data, int keyHandle, boolean last, boolean toBuffer) throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+        return update(deviceHandler, data, keyHandle, last, toBuffer).toMap();
+    }
+
+    /**
+     * Add more input to the HMAC SHA1.
+     *
+     * @param deviceHandler the device handler
+     * @param data the data to add before generating SHA1
+     * @param keyHandle the key handle to use in the YubiHSM
+     * @param last set to false to not get a hash generated after this call
+     * @param toBuffer set to true to get the SHA1 stored into the internal buffer, for use in some other cryptographic operations.
+     * @return the SHA1 hash
+     * @throws YubiHSMCommandFailedException if the YubiHSM fail to execute the command
+     * @throws YubiHSMErrorException if validation fail for some values returned by the YubiHSM
+     * @throws YubiHSMInputException if an argument does not validate
+     */
+    public static HmacResult update(DeviceHandler deviceHandler, byte[] data, int keyHandle, boolean last, boolean toBuffer) throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
         byte flags;
         if (last) {
             flags = YSM_HMAC_SHA1_FINAL;
@@ -106,41 +165,49 @@ import static org.unitedid.yhsm.utility.Utils.*;
             flags |= YSM_HMAC_SHA1_TO_BUFFER;
         }
 
-        byte[] flagsBA = { flags };
-        byte[] cmdBuffer = concatAllArrays(leIntToBA(keyHandle), flagsBA, addLengthToData(data));
-        byte[] result = CommandHandler.execute(deviceHandler, YSM_HMAC_SHA1_GENERATE, cmdBuffer, true);
+        validateByteArray("data", data, YSM_MAX_PKT_SIZE - 6, 0, 0);
+        byte[] result = execute(deviceHandler, data, keyHandle, flags);
         return parseResult(result, keyHandle, last);
     }
 
+    /**
+     * Encode a YSM_HMAC_SHA1_GENERATE command in the device frame encoder and send it.
+     *
+     * @param deviceHandler the device handler
+     * @param data the data, already validated
+     * @param keyHandle the key handle to use in the YubiHSM
+     * @param flags the command flags
+     * @return the response from the YubiHSM
+     * @throws YubiHSMErrorException if the YubiHSM did not respond
+     */
+    private static byte[] execute(DeviceHandler deviceHandler, byte[] data, int keyHandle, byte flags) throws YubiHSMErrorException {
+        deviceHandler.lock();
+        try {
+            FrameEncoder frame = deviceHandler.getFrameEncoder().begin(YSM_HMAC_SHA1_GENERATE)
+                    .putInt(keyHandle).put(flags).putData(data, 0);
+            return CommandHandler.execute(deviceHandler, frame);
+        } finally {
+            deviceHandler.unlock();
+        }
+    }
+
     /**
      * Parse the response from the YubiHSM for a previous command.
      *
      * @param data the data from the YubiHSM
      * @param keyHandle the key handle used for the command
      * @param last the boolean if this was the final request
-     * @return a map containing status and SHA1 hash
+     * @return the SHA1 hash
      * @throws YubiHSMCommandFailedException if the YubiHSM fail to execute the command
      * @throws YubiHSMErrorException if validation fail for some values returned by the YubiHSM
-     * @throws YubiHSMInputException if an argument does not validate
      */
-    private static Map<String, String> parseResult(byte[] data, int keyHandle, boolean last) throws YubiHSMErrorException, YubiHSMCommandFailedException, YubiHSMInputException {
-        Map<String, String> result = new HashMap<String, String>();
-        if (data[4] == YSM_STATUS_OK) {
-            validateCmdResponseBA("keyHandle", rangeOfByteArray(data, 0, 4), leIntToBA(keyHandle));
-            if (last) {
-                result.put("status", "OK");
-                result.put("hash", byteArrayToHex(rangeOfByteArray(data, 6, data[5])));
-            } else {
-                byte[] zeroHash = { 0x00 };
-                zeroHash = validateByteArray("zeroHash", zeroHash, 0, 0, 20);
-                result.put("status", "Expect more data");
-                result.put("hash", byteArrayToHex(zeroHash));
-            }
-        } else {
+    private static HmacResult parseResult(byte[] data, int keyHandle, boolean last) throws YubiHSMErrorException, YubiHSMCommandFailedException {
+        if (data[4] != YSM_STATUS_OK) {
             throw new YubiHSMCommandFailedException("Command " + getCommandString(YSM_HMAC_SHA1_GENERATE) + " failed: " + getCommandStatus(data[4]));
         }
+        validateCmdResponseBA("keyHandle", rangeOfByteArray(data, 0, 4), leIntToBA(keyHandle));
 
-        return result;
+        return new HmacResult(data, last);
     }
 
     /**
@@ -152,20 +219,8 @@ import static org.unitedid.yhsm.utility.Utils.*;
      * @return array of bytes
      * @throws YubiHSMCommandFailedException if the YubiHSM fail to execute the command
      * @throws YubiHSMErrorException if validation fail for some values returned by the YubiHSM
-     * @throws YubiHSMInputException if an argument does not validate
      */
-    private static byte[] parseResultRaw(byte[] data, int keyHandle, boolean last) throws YubiHSMErrorException, YubiHSMCommandFailedException, YubiHSMInputException {
-        if (data[4] == YSM_STATUS_OK) {
-            validateCmdResponseBA("keyHandle", rangeOfByteArray(data, 0, 4), leIntToBA(keyHandle));
-            if (last) {
-                return rangeOfByteArray(data, 6, data[5]);
-            } else {
-                byte[] zeroHash = { 0x00 };
-                zeroHash = validateByteArray("zeroHash", zeroHash, 0, 0, 20);
-                return zeroHash;
-            }
-        } else {
-            throw new YubiHSMCommandFailedException("Command " + getCommandString(YSM_HMAC_SHA1_GENERATE) + " failed: " + getCommandStatus(data[4]));
-        }
+    private static byte[] parseResultRaw(byte[] data, int keyHandle, boolean last) throws YubiHSMErrorException, YubiHSMCommandFailedException {
+        return parseResult(data, keyHandle, last).getHash();
     }
 }
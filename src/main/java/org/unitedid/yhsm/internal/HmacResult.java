@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.unitedid.yhsm.utility.Utils.byteArrayToHex;
+import static org.unitedid.yhsm.utility.Utils.rangeOfByteArray;
+
+/** <code>HmacResult</code> a class that represent the outcome of a YSM_HMAC_SHA1_GENERATE */
+public class HmacResult {
+
+    /** The hash of a request that was not the final one */
+    private static final byte[] ZERO_HASH = new byte[20];
+
+    private final boolean last;
+    private final byte[] hash;
+
+    public HmacResult(boolean last, byte[] hash) {
+        this.last = last;
+        this.hash = hash;
+    }
+
+    /** Parse a HMAC SHA1 response: key handle, status, hash length and hash */
+    HmacResult(byte[] response, boolean last) {
+        this(last, last ? rangeOfByteArray(response, 6, response[5] & 0xff) : ZERO_HASH.clone());
+    }
+
+    /**
+     * Check if the hash was generated, false if the YubiHSM expects more data.
+     *
+     * @return true for the final request
+     */
+    public boolean isLast() {
+        return last;
+    }
+
+    /**
+     * Get the SHA1 hash.
+     *
+     * @return the hash, 20 zero bytes if the YubiHSM expects more data
+     */
+    public byte[] getHash() {
+        return hash;
+    }
+
+    /**
+     * Get the result in the format of the map based methods.
+     *
+     * @return a map containing status and SHA1 hash in hex
+     */
+    public Map<String, String> toMap() {
+        Map<String, String> result = new HashMap<String, String>();
+        result.put("status", last ? "OK" : "Expect more data");
+        result.put("hash", byteArrayToHex(hash));
+        return result;
+    }
+
+    public String toString() {
+        return "HMAC: " + byteArrayToHex(hash) + (last ? "" : " (expect more data)");
+    }
+}
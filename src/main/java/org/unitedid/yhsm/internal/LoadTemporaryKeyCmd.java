@@ -38,28 +38,56 @@ public class LoadTemporaryKeyCmd {
      * @throws YubiHSMInputException argument exceptions
      */
     public static boolean execute(DeviceHandler device, String nonce, int keyHandle, String aead) throws YubiHSMInputException, YubiHSMErrorException, YubiHSMCommandFailedException {
-        byte[] nonceBA = validateNonce(hexToByteArray(nonce), true);
-        int maxAeadLength = YSM_MAX_KEY_SIZE + 4 + YSM_AEAD_MAC_SIZE;
-        byte[] aeadBA = validateByteArray("aead", hexToByteArray(aead), maxAeadLength, 0, 0);
-        byte[] cmdBuffer = concatAllArrays(nonceBA, leIntToBA(keyHandle), addLengthToData(aeadBA));
-        byte[] result = CommandHandler.execute(device, YSM_TEMP_KEY_LOAD, cmdBuffer, true);
+        return execute(device, hexToByteArray(nonce), keyHandle, hexToByteArray(aead));
+    }
 
-        return parseResult(result, nonce, keyHandle);
+    /**
+     * Load the content of an AEAD into the phantom key handle 0xffffffff.
+     *
+     * @param device the device handler
+     * @param nonce the nonce, at most 6 bytes
+     * @param keyHandle the key handle with permission to use YSM_TEMP_KEY_LOAD
+     * @param aead the AEAD to load into the phantom key handle
+     * @return returns true if the AEAD was successfully loaded
+     * @throws YubiHSMCommandFailedException command fail exception
+     * @throws YubiHSMErrorException error exception
+     * @throws YubiHSMInputException argument exceptions
+     */
+    public static boolean execute(DeviceHandler device, byte[] nonce, int keyHandle, byte[] aead) throws YubiHSMInputException, YubiHSMErrorException, YubiHSMCommandFailedException {
+        byte[] nonceBA = validateNonce(nonce, true);
+        int maxAeadLength = YSM_MAX_KEY_SIZE + 4 + YSM_AEAD_MAC_SIZE;
+        byte[] aeadBA = validateByteArray("aead", aead, maxAeadLength, 0, 0);
+        device.lock();
+        try {
+            if (device.isTemporaryKeyResident(nonceBA, keyHandle, aeadBA)) {
+                device.getMetrics().temporaryKeyLoad(true);
+                return true;
+            }
+            FrameEncoder frame = device.getFrameEncoder().begin(YSM_TEMP_KEY_LOAD)
+                    .putNonce(nonceBA).putInt(keyHandle).putData(aeadBA, 0);
+            byte[] result = CommandHandler.execute(device, frame);
+            device.getMetrics().temporaryKeyLoad(false);
+            parseResult(result, nonceBA, keyHandle);
+            device.setTemporaryKey(nonceBA, keyHandle, aeadBA);
+            return true;
+        } finally {
+            device.unlock();
+        }
     }
 
     /**
      * Parse the response from the YubiHSM
      *
      * @param result the data from the YubiHSM
-     * @param nonce the original nonce
+     * @param nonce the original nonce, padded to 6 bytes
      * @param keyHandle the original key handle
      * @return return true if the command completed successfully
      * @throws YubiHSMErrorException error exception
      * @throws YubiHSMCommandFailedException command failed exception
      */
-    private static boolean parseResult(byte[] result, String nonce, int keyHandle) throws YubiHSMErrorException, YubiHSMCommandFailedException {
+    private static boolean parseResult(byte[] result, byte[] nonce, int keyHandle) throws YubiHSMErrorException, YubiHSMCommandFailedException {
         if (result[10] == YSM_STATUS_OK) {
-            validateCmdResponseString("nonce", byteArrayToHex(rangeOfByteArray(result, 0, YSM_AEAD_NONCE_SIZE)), nonce);
+            validateCmdResponseBA("nonce", rangeOfByteArray(result, 0, YSM_AEAD_NONCE_SIZE), nonce);
             validateCmdResponseBA("keyHandle", rangeOfByteArray(result, 6, 4), leIntToBA(keyHandle));
             return true;
         } else {
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm.internal;
+
+import java.io.IOException;
+
+/**
+ * <code>LoopbackTransport</code> is an in-memory transport. On its own everything written is read back, as a pair
+ * the bytes written to one end are read from the other end, which lets a software YubiHSM sit at the far end.
+ */
+public class LoopbackTransport implements Transport {
+
+    private final String name;
+    private final ReceiveBuffer received = new ReceiveBuffer();
+    private LoopbackTransport peer;
+
+    /**
+     * Constructor for a loopback where everything written is read back.
+     *
+     * @param name the transport name
+     */
+    public LoopbackTransport(String name) {
+        this.name = name;
+        this.peer = this;
+    }
+
+    /**
+     * Create two connected transports.
+     *
+     * @param name the transport name
+     * @return the host end at index 0 and the device end at index 1
+     */
+    public static LoopbackTransport[] createPair(String name) {
+        LoopbackTransport host = new LoopbackTransport(name);
+        LoopbackTransport device = new LoopbackTransport(name + " (device)");
+        host.peer = device;
+        device.peer = host;
+        return new LoopbackTransport[] { host, device };
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        if (received.isClosed() || peer.received.isClosed()) {
+            throw new IOException("Transport closed");
+        }
+        peer.received.append(data, offset, length);
+    }
+
+    public boolean readExact(byte[] buffer, int offset, int length, long timeoutMillis) throws IOException {
+        return received.take(buffer, offset, length, timeoutMillis);
+    }
+
+    public int available() {
+        return received.available();
+    }
+
+    public void purge() {
+        received.clear();
+    }
+
+    public void close() {
+        received.close();
+        peer.received.close();
+    }
+
+    public String getName() {
+        return name;
+    }
+}
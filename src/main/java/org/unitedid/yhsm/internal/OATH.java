@@ -16,51 +16,60 @@
 
 package org.unitedid.yhsm.internal;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.unitedid.yhsm.YubiHSM;
-import org.unitedid.yhsm.utility.IntRange;
 
-import java.text.DecimalFormat;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
-import static org.unitedid.yhsm.internal.Defines.YSM_TEMP_KEY_HANDLE;
+import static org.unitedid.yhsm.internal.Defines.*;
 import static org.unitedid.yhsm.utility.Utils.*;
 
 /** <code>OATH</code> implements OATH HOTP/TOTP validation*/
 public class OATH {
+    /** Logger */
+    private static final Logger log = LoggerFactory.getLogger(OATH.class);
+
+    /** Powers of ten indexed by the number of OTP digits */
+    private static final int[] POWERS_OF_TEN = {1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000};
 
     /** Private constructor */
     private OATH() {}
 
     /**
-     * Validate OTP by a token whose seed is available to the YubiHSM through an AEAD.
+     * Generate the OTP of a token whose seed is available to the YubiHSM through an AEAD. The temporary key load
+     * and the HMAC are atomic per device, calls on other devices run in parallel.
      *
      * @param hsm the current hsm object
      * @param keyHandle a keyHandle with the permission YSM_TEMP_KEY_LOAD enabled
      * @param nonce the nonce used to generate the AEAD
      * @param aead the AEAD based on the token seed
      * @param counter the current OTP counter
-     * @param otp the token OTP
+     * @param otp the token OTP, only its length is used
 
-     * @return return next counter value on success, 0 if the OTP couldn't be validated
+     * @return the OTP for the counter
      * @throws YubiHSMInputException argument exceptions
      * @throws YubiHSMCommandFailedException command failed exception
      * @throws YubiHSMErrorException error exception
      */
-    public static synchronized String HOTP(YubiHSM hsm, int keyHandle, String nonce, String aead,
+    public static String HOTP(YubiHSM hsm, int keyHandle, String nonce, String aead,
                                                int counter, String otp)
             throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
-        int otpLength = otp.trim().length();
-        if (otpLength < 6 || otpLength > 8) {
-            throw new YubiHSMInputException(
-                    "OTP not of required length, should be between 6-8 digits long but was " + otpLength);
-        }
-
-        hsm.loadTemporaryKey(nonce, keyHandle, aead);
-
-        String hmac = hsm.generateHMACSHA1(longToByteArray(counter), YSM_TEMP_KEY_HANDLE, true, false).get("hash");
-        String code = truncate(hmac, otpLength);
+        int otpLength = validateOtpLength(otp);
 
-        return code;
+        DeviceHandler device = hsm.getRawDevice();
+        device.lock();
+        try {
+            LoadTemporaryKeyCmd.execute(device, nonce, keyHandle, aead);
+            byte[] hmac = HMACCmd.execHMACSHA1_Raw(device, longToByteArray(counter), YSM_TEMP_KEY_HANDLE,
+                    (byte) (YSM_HMAC_SHA1_RESET | YSM_HMAC_SHA1_FINAL));
+            return formatOtp(truncate(hmac, otpLength), otpLength);
+        } finally {
+            device.unlock();
+        }
     }
 
     /**
@@ -82,14 +91,104 @@ public class OATH {
                                    String otp, int lookAhead)
             throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
 
-        lookAhead += counter;
-        for (; counter < lookAhead; counter++) {
-            if (HOTP(hsm, keyHandle, nonce, aead, counter, otp).equals(otp)) {
-                return counter + 1;
+        long match = findCounter(hsm.getRawDevice(), keyHandle, nonce, aead, counter, lookAhead, otp);
+
+        return match < 0 ? 0 : (int) match + 1;
+    }
+
+    /**
+     * Resynchronise an OATH-HOTP token that has drifted far from the stored counter, RFC 4226 section 7.4. The
+     * user provides two consecutive OTPs and the window is searched for a counter producing the first followed by
+     * one producing the second. The AEAD is loaded once and the HMACs are pipelined if the device has a pipeline
+     * depth above 1, no more HMACs are sent once the pair is found.
+     *
+     * @param hsm the current hsm object
+     * @param keyHandle a keyHandle with the permission YSM_TEMP_KEY_LOAD enabled
+     * @param nonce the nonce used to generate the AEAD
+     * @param aead the AEAD based on the token seed
+     * @param counter the current OTP counter
+     * @param otp1 the first OTP
+     * @param otp2 the OTP following otp1
+     * @param window the number of counters to search for the first OTP, ie 1000
+     * @return the next counter to use, the number of HMACs and the time the device was held
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     */
+    public static OathResync resyncHOTP(YubiHSM hsm, int keyHandle, String nonce, String aead, long counter,
+                                        String otp1, String otp2, int window)
+            throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
+        int otpLength = validateOtpLength(otp1);
+        if (validateOtpLength(otp2) != otpLength) {
+            throw new YubiHSMInputException("The OTPs must have the same length");
+        }
+        int code1 = parseOtp(otp1);
+        int code2 = parseOtp(otp2);
+        if (code1 < 0 || code2 < 0 || window <= 0) {
+            return new OathResync(-1, 0, 0);
+        }
+
+        DeviceHandler device = hsm.getRawDevice();
+        byte[] header = {0, 0, 0, 0, YSM_HMAC_SHA1_RESET | YSM_HMAC_SHA1_FINAL, 8};
+        System.arraycopy(leIntToBA(YSM_TEMP_KEY_HANDLE), 0, header, 0, 4);
+        CommandPipeline pipeline = new CommandPipeline(device);
+        for (int i = 0; i <= window; i++) {
+            pipeline.addGroup(YSM_HMAC_SHA1_GENERATE, concatAllArrays(header, longToByteArray(counter + i)));
+        }
+
+        ResyncListener listener = new ResyncListener(code1, code2, otpLength);
+        byte[][] responses;
+        long deviceNanos;
+        device.lock();
+        try {
+            long start = System.nanoTime();
+            LoadTemporaryKeyCmd.execute(device, nonce, keyHandle, aead);
+            responses = pipeline.execute(listener);
+            deviceNanos = System.nanoTime() - start;
+        } finally {
+            device.unlock();
+        }
+        if (listener.status != YSM_STATUS_OK) {
+            throw new YubiHSMCommandFailedException("Command " + getCommandString(YSM_HMAC_SHA1_GENERATE) + " failed: " + getCommandStatus(listener.status));
+        }
+
+        int hmacs = 0;
+        for (byte[] response : responses) {
+            if (response != null) {
+                hmacs++;
             }
         }
+        return new OathResync(listener.second < 0 ? -1 : counter + listener.second + 1, hmacs, deviceNanos);
+    }
+
+    /** Looks for two adjacent counters producing the OTPs as the HMACs of a resynchronisation arrive */
+    private static class ResyncListener implements CommandPipeline.Listener {
+        private final int code1;
+        private final int code2;
+        private final int otpLength;
+        private boolean previousMatched = false;
+        int second = -1;
+        byte status = YSM_STATUS_OK;
+
+        ResyncListener(int code1, int code2, int otpLength) {
+            this.code1 = code1;
+            this.code2 = code2;
+            this.otpLength = otpLength;
+        }
 
-        return 0;
+        public boolean received(int index, byte[] response) {
+            if (response[4] != YSM_STATUS_OK) {
+                status = response[4];
+                return false;
+            }
+            int code = truncateAt(response, 6, otpLength);
+            if (previousMatched && code == code2) {
+                second = index;
+                return false;
+            }
+            previousMatched = code == code1;
+            return true;
+        }
     }
 
     /**
@@ -114,15 +213,346 @@ public class OATH {
                                    int period, int drift, int backwardDrift, int forwardDrift)
             throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
         long time = System.currentTimeMillis() / 1000;
-        int window = -(int) (time / period);
-        for (int i : new IntRange(Math.max(window, -backwardDrift), forwardDrift + 1)) {
-            int timeDrift = (drift + i) * period;
-            int t = (int) ((time + timeDrift) / period);
-            if (HOTP(hsm, keyHandle, nonce, aead, t, otp).equals(otp)) {
-                return true;
+        long[] steps = new long[backwardDrift + forwardDrift + 1];
+        int count = totpSteps(time / period + drift, backwardDrift, forwardDrift, 0, steps);
+
+        return findCounter(hsm.getRawDevice(), keyHandle, nonce, aead, steps, count, otp) >= 0;
+    }
+
+    /**
+     * Order the steps of a TOTP window by likelihood: the expected step first, then alternating outward with the
+     * earlier step first, since a code is more often entered late than early.
+     *
+     * @param expected the expected step, the current time step adjusted for drift
+     * @param backwardDrift the number of steps allowed before the expected step
+     * @param forwardDrift the number of steps allowed after the expected step
+     * @param minStep the first step that may be used, ie one past the last step accepted for the token
+     * @param steps receives the steps, at least backwardDrift + forwardDrift + 1 long
+     * @return the number of steps
+     */
+    public static int totpSteps(long expected, int backwardDrift, int forwardDrift, long minStep, long[] steps) {
+        int count = 0;
+        minStep = Math.max(minStep, 0);
+        if (expected >= minStep) {
+            steps[count++] = expected;
+        }
+        for (int i = 1; i <= Math.max(backwardDrift, forwardDrift); i++) {
+            if (i <= backwardDrift && expected - i >= minStep) {
+                steps[count++] = expected - i;
+            }
+            if (i <= forwardDrift && expected + i >= minStep) {
+                steps[count++] = expected + i;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Find the counter in a window that produces an OTP. The AEAD is loaded into the temporary key handle once,
+     * then the counters are run through HMAC SHA1 one by one until the first match. The device lock is held
+     * throughout so no other command can replace the temporary key.
+     *
+     * @param device the device handler
+     * @param keyHandle a keyHandle with the permission YSM_TEMP_KEY_LOAD enabled
+     * @param nonce the nonce used to generate the AEAD
+     * @param aead the AEAD based on the token seed
+     * @param first the first counter to try
+     * @param count the number of counters to try
+     * @param otp the token OTP
+     * @return the matching counter, -1 if no counter in the window produced the OTP
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     */
+    static long findCounter(DeviceHandler device, int keyHandle, String nonce, String aead, long first, int count, String otp)
+            throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
+        int otpLength = validateOtpLength(otp);
+        int code = parseOtp(otp);
+        if (count <= 0 || code < 0) {
+            return -1;
+        }
+
+        byte[] counterBA = new byte[8];
+        device.lock();
+        try {
+            LoadTemporaryKeyCmd.execute(device, nonce, keyHandle, aead);
+            for (long counter = first; counter < first + count; counter++) {
+                if (hotp(device, counterBA, counter, otpLength) == code) {
+                    return counter;
+                }
+            }
+        } finally {
+            device.unlock();
+        }
+        return -1;
+    }
+
+    /**
+     * Find the counter in a window that produces an OTP. The AEAD is loaded into the temporary key handle once,
+     * each counter costs one HMAC.
+     *
+     * @param hsm the YubiHSM
+     * @param keyHandle a keyHandle with the permission YSM_TEMP_KEY_LOAD enabled
+     * @param nonce the nonce used to generate the AEAD
+     * @param aead the AEAD based on the token seed
+     * @param first the first counter to try
+     * @param count the number of counters to try
+     * @param otp the token OTP
+     * @return the matching counter, -1 if no counter produced the OTP
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     */
+    public static long findCounter(YubiHSM hsm, int keyHandle, String nonce, String aead, long first, int count, String otp)
+            throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
+        return findCounter(hsm.getRawDevice(), keyHandle, nonce, aead, first, count, otp);
+    }
+
+    /**
+     * Find the counter among a list of candidates that produces an OTP, trying them in order. The AEAD is loaded
+     * into the temporary key handle once, each candidate costs one HMAC.
+     *
+     * @param hsm the YubiHSM
+     * @param keyHandle a keyHandle with the permission YSM_TEMP_KEY_LOAD enabled
+     * @param nonce the nonce used to generate the AEAD
+     * @param aead the AEAD based on the token seed
+     * @param counters the counters to try, most likely first
+     * @param count the number of counters to try
+     * @param otp the token OTP
+     * @return the matching counter, -1 if no counter produced the OTP
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     */
+    public static long findCounter(YubiHSM hsm, int keyHandle, String nonce, String aead, long[] counters, int count, String otp)
+            throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
+        return findCounter(hsm.getRawDevice(), keyHandle, nonce, aead, counters, count, otp);
+    }
+
+    /**
+     * Validate a batch of OATH-HOTP and OATH-TOTP OTPs. The requests are grouped by token so the AEAD of each token
+     * is loaded into the temporary key handle once, and the HMACs of a token run back to back, pipelined if the
+     * device has a pipeline depth above 1. The device lock is held for the whole batch.
+     *
+     * A request whose OTP is malformed or whose AEAD the YubiHSM rejects does not match, the other requests are
+     * still validated.
+     *
+     * @param hsm the current hsm object
+     * @param keyHandle a keyHandle with the permission YSM_TEMP_KEY_LOAD enabled
+     * @param requests the requests
+     * @return the counter or time step after the matching one for each request in request order, 0 if the OTP did not
+     *         validate, the same as {@link #validateHOTP}
+     * @throws YubiHSMCommandFailedException if an HMAC failed
+     * @throws YubiHSMErrorException error exception
+     */
+    public static long[] validate(YubiHSM hsm, int keyHandle, List<OathRequest> requests)
+            throws YubiHSMCommandFailedException, YubiHSMErrorException {
+        long[] results = new long[requests.size()];
+
+        Map<String, List<Integer>> tokens = new LinkedHashMap<String, List<Integer>>();
+        for (int i = 0; i < requests.size(); i++) {
+            OathRequest request = requests.get(i);
+            String token = request.getNonce() + ":" + request.getAead();
+            List<Integer> indexes = tokens.get(token);
+            if (indexes == null) {
+                indexes = new ArrayList<Integer>();
+                tokens.put(token, indexes);
+            }
+            indexes.add(i);
+        }
+
+        DeviceHandler device = hsm.getRawDevice();
+        device.lock();
+        try {
+            for (List<Integer> indexes : tokens.values()) {
+                OathRequest first = requests.get(indexes.get(0));
+                try {
+                    LoadTemporaryKeyCmd.execute(device, first.getNonce(), keyHandle, first.getAead());
+                } catch (YubiHSMCommandFailedException e) {
+                    log.warn("Skipping {} OTPs of nonce {}: {}", indexes.size(), first.getNonce(), e.getMessage());
+                    continue;
+                } catch (YubiHSMInputException e) {
+                    log.warn("Skipping {} OTPs of nonce {}: {}", indexes.size(), first.getNonce(), e.getMessage());
+                    continue;
+                }
+                if (device.getPipelineDepth() > 1) {
+                    validatePipelined(device, requests, indexes, results);
+                } else {
+                    validateStrict(device, requests, indexes, results);
+                }
             }
+        } finally {
+            device.unlock();
         }
-        return false;
+        return results;
+    }
+
+    /** Validate the requests of one token with its key resident, stopping at the first match of each request */
+    private static void validateStrict(DeviceHandler device, List<OathRequest> requests, List<Integer> indexes, long[] results)
+            throws YubiHSMCommandFailedException, YubiHSMErrorException {
+        byte[] counterBA = new byte[8];
+        for (int index : indexes) {
+            OathRequest request = requests.get(index);
+            int otpLength = batchOtpLength(request.getOtp());
+            if (otpLength == 0) {
+                continue;
+            }
+            int code = parseOtp(request.getOtp());
+            long[] counters = request.getCounters();
+            try {
+                for (int i = 0; i < request.getCount(); i++) {
+                    if (hotp(device, counterBA, counters[i], otpLength) == code) {
+                        results[index] = counters[i] + 1;
+                        break;
+                    }
+                }
+            } catch (YubiHSMInputException e) {
+                throw new YubiHSMErrorException("Failed to validate OTP", e);
+            }
+        }
+    }
+
+    /** Validate the requests of one token with its key resident, sending every candidate HMAC in one pipeline */
+    private static void validatePipelined(DeviceHandler device, List<OathRequest> requests, List<Integer> indexes, long[] results)
+            throws YubiHSMCommandFailedException, YubiHSMErrorException {
+        List<byte[]> data = new ArrayList<byte[]>();
+        for (int index : indexes) {
+            OathRequest request = requests.get(index);
+            if (batchOtpLength(request.getOtp()) == 0) {
+                continue;
+            }
+            for (int i = 0; i < request.getCount(); i++) {
+                data.add(longToByteArray(request.getCounters()[i]));
+            }
+        }
+        if (data.isEmpty()) {
+            return;
+        }
+        List<byte[]> hmacs;
+        try {
+            hmacs = HMACCmd.generateHMACSHA1(device, data, YSM_TEMP_KEY_HANDLE);
+        } catch (YubiHSMInputException e) {
+            throw new YubiHSMErrorException("Failed to validate OTP", e);
+        }
+
+        int next = 0;
+        for (int index : indexes) {
+            OathRequest request = requests.get(index);
+            int otpLength = batchOtpLength(request.getOtp());
+            if (otpLength == 0) {
+                continue;
+            }
+            int code = parseOtp(request.getOtp());
+            try {
+                for (int i = 0; i < request.getCount(); i++, next++) {
+                    if (results[index] == 0 && truncate(hmacs.get(next), otpLength) == code) {
+                        results[index] = request.getCounters()[i] + 1;
+                    }
+                }
+            } catch (YubiHSMInputException e) {
+                throw new YubiHSMErrorException("Failed to validate OTP", e);
+            }
+        }
+    }
+
+    /** Get the length of an OTP in a batch, 0 if it is not 6-8 digits and can never match */
+    private static int batchOtpLength(String otp) {
+        if (otp == null || otp.length() < 6 || otp.length() > 8 || parseOtp(otp) < 0) {
+            return 0;
+        }
+        return otp.length();
+    }
+
+    /**
+     * Find the counter among a list of candidates that produces an OTP, trying them in order. The AEAD is loaded
+     * into the temporary key handle once and the device lock is held throughout.
+     *
+     * @param device the device handler
+     * @param keyHandle a keyHandle with the permission YSM_TEMP_KEY_LOAD enabled
+     * @param nonce the nonce used to generate the AEAD
+     * @param aead the AEAD based on the token seed
+     * @param counters the counters to try
+     * @param count the number of counters to try
+     * @param otp the token OTP
+     * @return the matching counter, -1 if no counter produced the OTP
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     */
+    static long findCounter(DeviceHandler device, int keyHandle, String nonce, String aead, long[] counters, int count, String otp)
+            throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
+        int otpLength = validateOtpLength(otp);
+        return findCounter(device, keyHandle, hexToByteArray(nonce), hexToByteArray(aead), counters, count,
+                parseOtp(otp), otpLength);
+    }
+
+    /**
+     * Find the counter among a list of candidates that produces an OTP, trying them in order. Works on the binary
+     * nonce, AEAD and OTP code, nothing is converted to or from hex.
+     *
+     * @param hsm the YubiHSM
+     * @param keyHandle a keyHandle with the permission YSM_TEMP_KEY_LOAD enabled
+     * @param nonce the nonce used to generate the AEAD, at most 6 bytes
+     * @param aead the AEAD based on the token seed
+     * @param counters the counters to try, most likely first
+     * @param count the number of counters to try
+     * @param code the OTP code, see {@link #parseOtp(String)}
+     * @param otpLength the number of OTP digits (6-8)
+     * @return the matching counter, -1 if no counter produced the OTP
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     */
+    public static long findCounter(YubiHSM hsm, int keyHandle, byte[] nonce, byte[] aead, long[] counters, int count,
+                                   int code, int otpLength)
+            throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
+        if (otpLength < 6 || otpLength > 8) {
+            throw new YubiHSMInputException(
+                    "OTP not of required length, should be between 6-8 digits long but was " + otpLength);
+        }
+        return findCounter(hsm.getRawDevice(), keyHandle, nonce, aead, counters, count, code, otpLength);
+    }
+
+    private static long findCounter(DeviceHandler device, int keyHandle, byte[] nonce, byte[] aead, long[] counters,
+                                    int count, int code, int otpLength)
+            throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
+        if (count <= 0 || code < 0) {
+            return -1;
+        }
+
+        byte[] counterBA = new byte[8];
+        device.lock();
+        try {
+            LoadTemporaryKeyCmd.execute(device, nonce, keyHandle, aead);
+            for (int i = 0; i < count; i++) {
+                if (hotp(device, counterBA, counters[i], otpLength) == code) {
+                    return counters[i];
+                }
+            }
+        } finally {
+            device.unlock();
+        }
+        return -1;
+    }
+
+    /** Generate the OTP of a counter with the temporary key, the caller holds the device lock */
+    private static int hotp(DeviceHandler device, byte[] counterBA, long counter, int otpLength)
+            throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
+        for (int i = 0; i < 8; i++) {
+            counterBA[i] = (byte) (counter >>> (56 - 8 * i));
+        }
+        byte[] hmac = HMACCmd.execHMACSHA1_Raw(device, counterBA, YSM_TEMP_KEY_HANDLE,
+                (byte) (YSM_HMAC_SHA1_RESET | YSM_HMAC_SHA1_FINAL));
+        return truncate(hmac, otpLength);
+    }
+
+    private static int validateOtpLength(String otp) throws YubiHSMInputException {
+        int otpLength = otp.trim().length();
+        if (otpLength < 6 || otpLength > 8) {
+            throw new YubiHSMInputException(
+                    "OTP not of required length, should be between 6-8 digits long but was " + otpLength);
+        }
+        return otpLength;
     }
 
     /**
@@ -137,17 +567,66 @@ public class OATH {
         byte[] hmacBA = hexToByteArray(hmac);
         validateByteArray("hmacBA", hmacBA, 0, 20, 0);
 
-        int offset = hmacBA[19] & 0xf;
-        int binCode = (hmacBA[offset] & 0x7f) << 24 |
-                (hmacBA[offset+1] & 0xff) << 16 |
-                (hmacBA[offset+2] & 0xff) << 8 |
-                (hmacBA[offset+3] & 0xff);
+        return formatOtp(truncate(hmacBA, otpLength), otpLength);
+    }
+
+    /**
+     * Truncate a raw HMAC to an OTP code as an int, without allocating.
+     *
+     * @param hmac the 20 byte hmac
+     * @param otpLength the length of the OTP (6-8 digits)
+     * @return the OTP code, compare it with {@link #parseOtp(String)}
+     * @throws YubiHSMInputException if the hmac is not 20 bytes or the OTP length is out of range
+     */
+    public static int truncate(byte[] hmac, int otpLength) throws YubiHSMInputException {
+        if (hmac.length != 20) {
+            throw new YubiHSMInputException("Wrong size of argument 'hmac', expected 20 but got " + hmac.length);
+        }
+        if (otpLength < 1 || otpLength >= POWERS_OF_TEN.length) {
+            throw new YubiHSMInputException("OTP length should be between 1-8 digits but was " + otpLength);
+        }
+        return truncateAt(hmac, 0, otpLength);
+    }
+
+    /** Truncate a 20 byte HMAC starting at an offset, the arguments are already validated */
+    private static int truncateAt(byte[] data, int start, int otpLength) {
+        int offset = start + (data[start + 19] & 0xf);
+        int binCode = (data[offset] & 0x7f) << 24 |
+                (data[offset+1] & 0xff) << 16 |
+                (data[offset+2] & 0xff) << 8 |
+                (data[offset+3] & 0xff);
+
+        return binCode % POWERS_OF_TEN[otpLength];
+    }
 
-        // Mmm leading zeros is a pain
-        char[] zeros = new char[otpLength];
-        Arrays.fill(zeros, '0');
-        DecimalFormat decimalFormat = new DecimalFormat(String.valueOf(zeros));
+    /**
+     * Parse an OTP into the int compared with {@link #truncate(byte[], int)}.
+     *
+     * @param otp the OTP
+     * @return the OTP as an int, -1 if it is not all digits and can never match
+     */
+    public static int parseOtp(String otp) {
+        if (otp.isEmpty() || otp.length() > 9) {
+            return -1;
+        }
+        int code = 0;
+        for (int i = 0; i < otp.length(); i++) {
+            int digit = otp.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            code = code * 10 + digit;
+        }
+        return code;
+    }
 
-        return decimalFormat.format(binCode % (Math.pow(10, otpLength)));
+    /** Format an OTP code with leading zeros */
+    private static String formatOtp(int code, int otpLength) {
+        char[] digits = new char[otpLength];
+        for (int i = otpLength - 1; i >= 0; i--) {
+            digits[i] = (char) ('0' + code % 10);
+            code /= 10;
+        }
+        return new String(digits);
     }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm.internal;
+
+/**
+ * <code>OathRequest</code> a class that represent one OATH OTP to validate in a batch, see
+ * {@link OATH#validate(org.unitedid.yhsm.YubiHSM, int, java.util.List)}. It holds the counters or time steps the
+ * OTP is checked against, most likely first.
+ */
+public class OathRequest {
+
+    private final String nonce;
+    private final String aead;
+    private final String otp;
+    private final long[] counters;
+    private final int count;
+
+    private OathRequest(String nonce, String aead, String otp, long[] counters, int count) {
+        this.nonce = nonce;
+        this.aead = aead;
+        this.otp = otp;
+        this.counters = counters;
+        this.count = count;
+    }
+
+    /**
+     * Create an OATH-HOTP request.
+     *
+     * @param nonce the nonce used to generate the AEAD
+     * @param aead the AEAD based on the token seed
+     * @param counter the current counter of the token
+     * @param otp the token OTP
+     * @param lookAhead the number of counters to check, starting with counter
+     * @return the request
+     */
+    public static OathRequest hotp(String nonce, String aead, long counter, String otp, int lookAhead) {
+        long[] counters = new long[Math.max(lookAhead, 0)];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = counter + i;
+        }
+        return new OathRequest(nonce, aead, otp, counters, counters.length);
+    }
+
+    /**
+     * Create an OATH-TOTP request.
+     *
+     * @param nonce the nonce used to generate the AEAD
+     * @param aead the AEAD based on the token seed
+     * @param time the time the OTP was received in seconds since the epoch
+     * @param otp the token OTP
+     * @param period the period between changes of the OTP value in seconds
+     * @param backwardDrift the number of steps allowed before the current step
+     * @param forwardDrift the number of steps allowed after the current step
+     * @return the request
+     */
+    public static OathRequest totp(String nonce, String aead, long time, String otp, int period, int backwardDrift, int forwardDrift) {
+        long[] steps = new long[backwardDrift + forwardDrift + 1];
+        int count = OATH.totpSteps(time / period, backwardDrift, forwardDrift, 0, steps);
+        return new OathRequest(nonce, aead, otp, steps, count);
+    }
+
+    public String getNonce() {
+        return nonce;
+    }
+
+    public String getAead() {
+        return aead;
+    }
+
+    public String getOtp() {
+        return otp;
+    }
+
+    long[] getCounters() {
+        return counters;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    public String toString() {
+        return "OathRequest: nonce " + nonce + " otp " + otp + " counters " + count;
+    }
+}
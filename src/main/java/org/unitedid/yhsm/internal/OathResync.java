@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm.internal;
+
+/** <code>OathResync</code> a class that represent the outcome of an OATH-HOTP resynchronisation */
+public class OathResync {
+
+    private final long counter;
+    private final int hmacs;
+    private final long deviceNanos;
+
+    public OathResync(long counter, int hmacs, long deviceNanos) {
+        this.counter = counter;
+        this.hmacs = hmacs;
+        this.deviceNanos = deviceNanos;
+    }
+
+    /**
+     * Get the counter to use for the next OTP, ie one past the counter of the second OTP.
+     *
+     * @return the next counter, -1 if the OTPs were not found in the window
+     */
+    public long getCounter() {
+        return counter;
+    }
+
+    public boolean isSynchronized() {
+        return counter >= 0;
+    }
+
+    /**
+     * Get the number of HMACs the YubiHSM computed.
+     *
+     * @return the number of HMACs
+     */
+    public int getHmacs() {
+        return hmacs;
+    }
+
+    /**
+     * Get the time the device was held for the resynchronisation, the key load and every HMAC.
+     *
+     * @return the time in nanoseconds
+     */
+    public long getDeviceNanos() {
+        return deviceNanos;
+    }
+
+    public String toString() {
+        return "OathResync: counter " + counter + " HMACs " + hmacs + " device time " + deviceNanos / 1000 + " us";
+    }
+}
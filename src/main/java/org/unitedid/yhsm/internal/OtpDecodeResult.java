@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** <code>OtpDecodeResult</code> a class that represent the counters and timestamp of a decrypted YubiKey OTP */
+public class OtpDecodeResult {
+
+    private final int useCtr;
+    private final int sessionCtr;
+    private final int tsHigh;
+    private final int tsLow;
+
+    public OtpDecodeResult(int useCtr, int sessionCtr, int tsHigh, int tsLow) {
+        this.useCtr = useCtr;
+        this.sessionCtr = sessionCtr;
+        this.tsHigh = tsHigh;
+        this.tsLow = tsLow;
+    }
+
+    /** Parse the little endian use counter, session counter, timestamp high byte and low bytes at the offset */
+    OtpDecodeResult(byte[] response, int offset) {
+        this((response[offset] & 0xff) | (response[offset + 1] & 0xff) << 8,
+                response[offset + 2] & 0xff,
+                response[offset + 3] & 0xff,
+                (response[offset + 4] & 0xff) | (response[offset + 5] & 0xff) << 8);
+    }
+
+    public int getUseCtr() {
+        return useCtr;
+    }
+
+    public int getSessionCtr() {
+        return sessionCtr;
+    }
+
+    public int getTsHigh() {
+        return tsHigh;
+    }
+
+    public int getTsLow() {
+        return tsLow;
+    }
+
+    /**
+     * Get the 24 bit timestamp of the OTP.
+     *
+     * @return the timestamp, in units of about 125 ms since the YubiKey was powered up
+     */
+    public int getTimestamp() {
+        return tsHigh << 16 | tsLow;
+    }
+
+    /**
+     * Get the result in the format of the map based methods.
+     *
+     * @return a map with useCtr, sessionCtr, tsHigh and tsLow
+     */
+    public Map<String, Integer> toMap() {
+        Map<String, Integer> result = new HashMap<String, Integer>();
+        result.put("useCtr", useCtr);
+        result.put("sessionCtr", sessionCtr);
+        result.put("tsHigh", tsHigh);
+        result.put("tsLow", tsLow);
+        return result;
+    }
+
+    public String toString() {
+        return "OTP: use counter " + useCtr + " session counter " + sessionCtr + " timestamp " + getTimestamp();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm.internal;
+
+import java.io.IOException;
+
+/**
+ * <code>ReceiveBuffer</code> holds bytes delivered by a transport until they are read. Readers block until the bytes
+ * they asked for have been appended, they are woken up as soon as that happens.
+ */
+class ReceiveBuffer {
+
+    private byte[] buffer = new byte[256];
+    private int head = 0;
+    private int count = 0;
+    private boolean closed = false;
+
+    /**
+     * Append received bytes and wake up waiting readers.
+     *
+     * @param data the received bytes
+     * @param offset the offset in data
+     * @param length the number of bytes
+     */
+    synchronized void append(byte[] data, int offset, int length) {
+        if (count + length > buffer.length) {
+            grow(count + length);
+        }
+        int tail = (head + count) % buffer.length;
+        int first = Math.min(length, buffer.length - tail);
+        System.arraycopy(data, offset, buffer, tail, first);
+        System.arraycopy(data, offset + first, buffer, 0, length - first);
+        count += length;
+        notifyAll();
+    }
+
+    /**
+     * Take exactly length bytes, nothing is consumed on timeout.
+     *
+     * @param dest the buffer to copy into
+     * @param offset the offset in dest
+     * @param length the number of bytes
+     * @param timeoutMillis the maximum time to wait in milliseconds
+     * @return true if the bytes were taken, false on timeout
+     * @throws IOException if the buffer has been closed
+     */
+    synchronized boolean take(byte[] dest, int offset, int length, long timeoutMillis) throws IOException {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        while (count < length) {
+            if (closed) {
+                throw new IOException("Transport closed");
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                wait(remaining / 1000000L, (int) (remaining % 1000000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        int first = Math.min(length, buffer.length - head);
+        System.arraycopy(buffer, head, dest, offset, first);
+        System.arraycopy(buffer, 0, dest, offset + first, length - first);
+        head = (head + length) % buffer.length;
+        count -= length;
+        return true;
+    }
+
+    synchronized int available() {
+        return count;
+    }
+
+    synchronized void clear() {
+        head = 0;
+        count = 0;
+    }
+
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    private void grow(int minCapacity) {
+        byte[] grown = new byte[Math.max(buffer.length * 2, minCapacity)];
+        int first = Math.min(count, buffer.length - head);
+        System.arraycopy(buffer, head, grown, 0, first);
+        System.arraycopy(buffer, 0, grown, first, count - first);
+        buffer = grown;
+        head = 0;
+    }
+}
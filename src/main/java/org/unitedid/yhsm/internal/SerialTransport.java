@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm.internal;
+
+import jssc.SerialPort;
+import jssc.SerialPortEvent;
+import jssc.SerialPortEventListener;
+import jssc.SerialPortException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/** <code>SerialTransport</code> talks to a YubiHSM attached as a serial device, ie /dev/ttyACM0 */
+public class SerialTransport implements Transport {
+    /** Logger */
+    private final Logger log = LoggerFactory.getLogger(SerialTransport.class);
+
+    /** The YubiHSM device */
+    private final SerialPort device;
+
+    /** Bytes delivered by the RXCHAR listener that have not been read yet */
+    private final ReceiveBuffer received = new ReceiveBuffer();
+
+    /**
+     * Constructor
+     *
+     * @param deviceName the YubiHSM device name
+     * @throws YubiHSMErrorException if the device could not be opened
+     */
+    public SerialTransport(String deviceName) throws YubiHSMErrorException {
+        device = new SerialPort(deviceName);
+        try {
+            device.openPort();
+            device.setParams(
+                    SerialPort.BAUDRATE_115200,
+                    SerialPort.DATABITS_8,
+                    SerialPort.STOPBITS_1,
+                    SerialPort.PARITY_NONE
+            );
+            device.setFlowControlMode(SerialPort.FLOWCONTROL_NONE);
+            device.addEventListener(new SerialPortEventListener() {
+                public void serialEvent(SerialPortEvent event) {
+                    if (event.isRXCHAR() && event.getEventValue() > 0) {
+                        receive(event.getEventValue());
+                    }
+                }
+            }, SerialPort.MASK_RXCHAR);
+        } catch (SerialPortException e) {
+            throw new YubiHSMErrorException("Failed to open device " + deviceName, e);
+        }
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        try {
+            if (offset == 0 && length == data.length) {
+                device.writeBytes(data);
+            } else {
+                device.writeBytes(Arrays.copyOfRange(data, offset, offset + length));
+            }
+        } catch (SerialPortException e) {
+            throw new IOException("Failed to write to device " + getName(), e);
+        }
+    }
+
+    public boolean readExact(byte[] buffer, int offset, int length, long timeoutMillis) throws IOException {
+        return received.take(buffer, offset, length, timeoutMillis);
+    }
+
+    public int available() {
+        return received.available();
+    }
+
+    public void purge() throws IOException {
+        try {
+            device.purgePort(SerialPort.PURGE_RXCLEAR | SerialPort.PURGE_TXCLEAR);
+        } catch (SerialPortException e) {
+            throw new IOException("Failed to purge device " + getName(), e);
+        }
+        received.clear();
+    }
+
+    public void close() throws IOException {
+        received.close();
+        try {
+            device.closePort();
+        } catch (SerialPortException e) {
+            throw new IOException("Failed to close device " + getName(), e);
+        }
+    }
+
+    public String getName() {
+        return device.getPortName();
+    }
+
+    /**
+     * Called from the serial port event thread when the YubiHSM has sent data.
+     *
+     * @param count the number of bytes waiting in the serial port input buffer
+     */
+    private void receive(int count) {
+        try {
+            byte[] data = device.readBytes(count);
+            if (data != null) {
+                received.append(data, 0, data.length);
+            }
+        } catch (SerialPortException e) {
+            log.error("Failed to read from device {}", getName(), e);
+        }
+    }
+}
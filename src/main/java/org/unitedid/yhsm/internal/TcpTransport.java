@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm.internal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * <code>TcpTransport</code> talks to a YubiHSM over a raw TCP connection, ie a serial port exported with ser2net
+ * in raw mode. The bytes on the socket are exactly the bytes on the serial line.
+ */
+public class TcpTransport implements Transport {
+    /** Logger */
+    private final Logger log = LoggerFactory.getLogger(TcpTransport.class);
+
+    private final String name;
+    private final Socket socket;
+    private final OutputStream out;
+    private final ReceiveBuffer received = new ReceiveBuffer();
+
+    /**
+     * Constructor
+     *
+     * @param host the host name
+     * @param port the TCP port
+     * @param connectTimeoutMillis the connect timeout in milliseconds
+     * @throws IOException if the connection could not be established
+     */
+    public TcpTransport(String host, int port, int connectTimeoutMillis) throws IOException {
+        name = "tcp://" + host + ":" + port;
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+        out = socket.getOutputStream();
+
+        final InputStream in = socket.getInputStream();
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                byte[] buffer = new byte[512];
+                try {
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        received.append(buffer, 0, n);
+                    }
+                } catch (IOException e) {
+                    if (!socket.isClosed()) {
+                        log.error("Connection to {} failed", name, e);
+                    }
+                } finally {
+                    received.close();
+                }
+            }
+        }, "YubiHSM " + name + " reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Open a transport from a name on the form tcp://host:port
+     *
+     * @param url the transport name
+     * @return the connected transport
+     * @throws IOException if the name is invalid or the connection could not be established
+     */
+    public static TcpTransport open(String url) throws IOException {
+        if (!url.startsWith("tcp://")) {
+            throw new IOException("Not a tcp:// device name: " + url);
+        }
+        String hostPort = url.substring("tcp://".length());
+        int colon = hostPort.lastIndexOf(':');
+        if (colon < 1) {
+            throw new IOException("Missing port in device name: " + url);
+        }
+        try {
+            return new TcpTransport(hostPort.substring(0, colon), Integer.parseInt(hostPort.substring(colon + 1)), 5000);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid port in device name: " + url);
+        }
+    }
+
+    public synchronized void write(byte[] data, int offset, int length) throws IOException {
+        out.write(data, offset, length);
+        out.flush();
+    }
+
+    public boolean readExact(byte[] buffer, int offset, int length, long timeoutMillis) throws IOException {
+        return received.take(buffer, offset, length, timeoutMillis);
+    }
+
+    public int available() {
+        return received.available();
+    }
+
+    public void purge() {
+        received.clear();
+    }
+
+    public void close() throws IOException {
+        received.close();
+        socket.close();
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm.internal;
+
+import java.io.IOException;
+
+/**
+ * <code>Transport</code> is the byte link between the host and a YubiHSM, used by the {@link DeviceHandler}.
+ *
+ * @see SerialTransport
+ * @see LoopbackTransport
+ * @see TcpTransport
+ */
+public interface Transport {
+
+    /**
+     * Write a frame to the YubiHSM.
+     *
+     * @param data the buffer holding the frame
+     * @param offset the offset of the frame in the buffer
+     * @param length the length of the frame
+     * @throws IOException if the write fails
+     */
+    void write(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Read exactly <code>length</code> bytes, returning as soon as they have arrived. Nothing is consumed if the
+     * bytes do not arrive in time.
+     *
+     * @param buffer the buffer to read into
+     * @param offset the offset in the buffer
+     * @param length the number of bytes to read
+     * @param timeoutMillis the maximum time to wait in milliseconds
+     * @return true if the bytes were read, false on timeout
+     * @throws IOException if the transport is closed or broken
+     */
+    boolean readExact(byte[] buffer, int offset, int length, long timeoutMillis) throws IOException;
+
+    /**
+     * Get the number of bytes that can be read without waiting.
+     *
+     * @return the number of bytes available
+     * @throws IOException if the transport is closed or broken
+     */
+    int available() throws IOException;
+
+    /**
+     * Discard all received but unread bytes.
+     *
+     * @throws IOException if the transport is broken
+     */
+    void purge() throws IOException;
+
+    /**
+     * Close the transport, waking up any reader.
+     *
+     * @throws IOException if closing fails
+     */
+    void close() throws IOException;
+
+    /**
+     * Get the name of the transport, ie the serial device name.
+     *
+     * @return the transport name
+     */
+    String getName();
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm.internal;
+
+import static org.unitedid.yhsm.internal.Defines.*;
+import static org.unitedid.yhsm.utility.Utils.*;
+
+/**
+ * <code>YubikeyDbCmd</code> implements the commands of the YubiHSM internal YubiKey database.
+ */
+public class YubikeyDbCmd {
+
+    /** Constructor */
+    private YubikeyDbCmd() {}
+
+    /**
+     * Store a YubiKey AEAD in the YubiHSM internal database. The YubiHSM decrypts the AEAD with the key handle and
+     * keeps the YubiKey key and uid, OTPs of the YubiKey can then be validated with {@link #validateOtp}.
+     *
+     * @param device the YubiHSM device handler
+     * @param publicId the YubiKey public id, also the nonce of the AEAD
+     * @param keyHandle the key handle with permission to use YSM_DB_YUBIKEY_AEAD_STORE
+     * @param aead the YubiKey AEAD, key and uid
+     * @return true if the YubiKey was stored, false if the public id was already in the database
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     */
+    public static boolean store(DeviceHandler device, byte[] publicId, int keyHandle, byte[] aead) throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
+        byte[] publicIdBA = validateByteArray("publicId", publicId, 0, YSM_PUBLIC_ID_SIZE, 0);
+        byte[] aeadBA = validateByteArray("aead", aead, 0, YSM_YUBIKEY_AEAD_SIZE, 0);
+        byte[] result;
+        device.lock();
+        try {
+            FrameEncoder frame = device.getFrameEncoder().begin(YSM_DB_YUBIKEY_AEAD_STORE)
+                    .put(publicIdBA).putInt(keyHandle).put(aeadBA);
+            result = CommandHandler.execute(device, frame);
+        } finally {
+            device.unlock();
+        }
+
+        byte status = result[YSM_PUBLIC_ID_SIZE + 4];
+        if (status == YSM_ID_DUPLICATE) {
+            return false;
+        } else if (status != YSM_STATUS_OK) {
+            throw new YubiHSMCommandFailedException("Command " + getCommandString(YSM_DB_YUBIKEY_AEAD_STORE) + " failed: " + getCommandStatus(status));
+        }
+        validateCmdResponseBA("publicId", rangeOfByteArray(result, 0, YSM_PUBLIC_ID_SIZE), publicIdBA);
+        validateCmdResponseBA("keyHandle", rangeOfByteArray(result, YSM_PUBLIC_ID_SIZE, 4), leIntToBA(keyHandle));
+        return true;
+    }
+
+    /**
+     * Validate a YubiKey OTP against the YubiHSM internal database. Only the public id and the OTP are sent, the
+     * YubiHSM also rejects OTPs whose counters are not newer than the last OTP it validated.
+     *
+     * @param device the YubiHSM device handler
+     * @param publicId the YubiKey public id
+     * @param otp the OTP without the public id
+     * @return the decrypted counters and timestamp, or null if the public id is not in the database
+     * @throws YubiHSMInputException argument exceptions
+     * @throws YubiHSMCommandFailedException if the OTP is invalid or replayed
+     * @throws YubiHSMErrorException error exception
+     */
+    public static OtpDecodeResult validateOtp(DeviceHandler device, byte[] publicId, byte[] otp) throws YubiHSMInputException, YubiHSMCommandFailedException, YubiHSMErrorException {
+        byte[] publicIdBA = validateByteArray("publicId", publicId, 0, YSM_PUBLIC_ID_SIZE, 0);
+        byte[] otpBA = validateByteArray("otp", otp, 0, YSM_OTP_SIZE, 0);
+        byte[] result;
+        device.lock();
+        try {
+            FrameEncoder frame = device.getFrameEncoder().begin(YSM_DB_OTP_VALIDATE).put(publicIdBA).put(otpBA);
+            result = CommandHandler.execute(device, frame);
+        } finally {
+            device.unlock();
+        }
+
+        return parseValidateResult(result, publicIdBA);
+    }
+
+    /**
+     * Parse the response from the YubiHSM for a previous YSM_DB_OTP_VALIDATE.
+     *
+     * @param data the result from the last command
+     * @param publicIdBA the public id in byte array format
+     * @return the decrypted fields, or null if the public id is not in the database
+     * @throws YubiHSMCommandFailedException command failed exception
+     * @throws YubiHSMErrorException error exception
+     */
+    private static OtpDecodeResult parseValidateResult(byte[] data, byte[] publicIdBA) throws YubiHSMCommandFailedException, YubiHSMErrorException {
+        byte status = data[YSM_PUBLIC_ID_SIZE + 2 + 1 + 1 + 2];
+        if (status == YSM_ID_NOT_FOUND) {
+            return null;
+        } else if (status != YSM_STATUS_OK) {
+            throw new YubiHSMCommandFailedException("Command " + getCommandString(YSM_DB_OTP_VALIDATE) + " failed: " + getCommandStatus(status));
+        }
+        validateCmdResponseBA("publicId", rangeOfByteArray(data, 0, YSM_PUBLIC_ID_SIZE), publicIdBA);
+
+        return new OtpDecodeResult(data, YSM_PUBLIC_ID_SIZE);
+    }
+}
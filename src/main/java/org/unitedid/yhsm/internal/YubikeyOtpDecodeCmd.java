@@ -19,7 +19,7 @@ package org.unitedid.yhsm.internal;
 import static org.unitedid.yhsm.internal.Defines.*;
 import static org.unitedid.yhsm.utility.Utils.*;
 
-import java.util.HashMap;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 public class YubikeyOtpDecodeCmd {
@@ -40,43 +40,105 @@ public class YubikeyOtpDecodeCmd {
      * @throws YubiHSMInputException argument exceptions
      */
     public static Map<String, Integer> execute(DeviceHandler device, String publicId, int keyHandle, String aead, String otp) throws YubiHSMInputException, YubiHSMErrorException, YubiHSMCommandFailedException {
-        byte[] publicIdBA = validateNonce(hexToByteArray(publicId), true);
-        byte[] otpBA = validateByteArray("otp", hexToByteArray(otp), 0, YSM_OTP_SIZE, 0);
-        byte[] aeadBA = validateByteArray("aead", hexToByteArray(aead), 0, YSM_YUBIKEY_AEAD_SIZE, 0);
-        byte[] cmdBuffer = concatAllArrays(publicIdBA, leIntToBA(keyHandle), otpBA, aeadBA);
-        byte[] result = CommandHandler.execute(device, YSM_AEAD_YUBIKEY_OTP_DECODE, cmdBuffer, true);
+        return execute(device, hexToByteArray(publicId), keyHandle, hexToByteArray(aead), hexToByteArray(otp)).toMap();
+    }
+
+    /**
+     * Decrypt a YubiKey OTP using an AEAD, see {@link #execute(DeviceHandler, String, int, String, String)}.
+     *
+     * @param device the device handler
+     * @param publicId the public id
+     * @param keyHandle the key handle with permission to use YSM_AEAD_YUBIKEY_OTP_DECODE
+     * @param aead the AEAD of the YubiKey
+     * @param otp the OTP without the public id
+     * @return the decrypted counters and timestamp
+     * @throws YubiHSMCommandFailedException command fail exception
+     * @throws YubiHSMErrorException error exception
+     * @throws YubiHSMInputException argument exceptions
+     */
+    public static OtpDecodeResult execute(DeviceHandler device, byte[] publicId, int keyHandle, byte[] aead, byte[] otp) throws YubiHSMInputException, YubiHSMErrorException, YubiHSMCommandFailedException {
+        byte[] publicIdBA = validateNonce(publicId, true);
+        byte[] otpBA = validateByteArray("otp", otp, 0, YSM_OTP_SIZE, 0);
+        byte[] aeadBA = validateByteArray("aead", aead, 0, YSM_YUBIKEY_AEAD_SIZE, 0);
+        byte[] result;
+        device.lock();
+        try {
+            FrameEncoder frame = device.getFrameEncoder().begin(YSM_AEAD_YUBIKEY_OTP_DECODE)
+                    .put(publicIdBA).putInt(keyHandle).put(otpBA).put(aeadBA);
+            result = CommandHandler.execute(device, frame);
+        } finally {
+            device.unlock();
+        }
 
         return parseResult(result, publicIdBA, keyHandle);
     }
+
+    /**
+     * Decrypt a YubiKey OTP with an AEAD read in place from a buffer, ie a memory mapped index. The public id, OTP
+     * and AEAD go straight into the command frame without intermediate copies.
+     *
+     * @param device the device handler
+     * @param otp the 6 byte public id followed by the 16 byte OTP
+     * @param offset the offset of the public id in otp
+     * @param keyHandle the key handle with permission to use YSM_AEAD_YUBIKEY_OTP_DECODE
+     * @param aead the buffer holding the AEAD of the YubiKey
+     * @param aeadOffset the offset of the AEAD in the buffer
+     * @return the decrypted counters and timestamp
+     * @throws YubiHSMCommandFailedException command fail exception
+     * @throws YubiHSMErrorException error exception
+     * @throws YubiHSMInputException argument exceptions
+     */
+    public static OtpDecodeResult execute(DeviceHandler device, byte[] otp, int offset, int keyHandle, ByteBuffer aead, int aeadOffset) throws YubiHSMInputException, YubiHSMErrorException, YubiHSMCommandFailedException {
+        if (offset < 0 || otp.length - offset < YSM_PUBLIC_ID_SIZE + YSM_OTP_SIZE) {
+            throw new YubiHSMInputException("Expected a " + YSM_PUBLIC_ID_SIZE + " byte public id and a " + YSM_OTP_SIZE + " byte OTP at offset " + offset);
+        }
+        byte[] result;
+        device.lock();
+        try {
+            FrameEncoder frame = device.getFrameEncoder().begin(YSM_AEAD_YUBIKEY_OTP_DECODE)
+                    .put(otp, offset, YSM_PUBLIC_ID_SIZE).putInt(keyHandle)
+                    .put(otp, offset + YSM_PUBLIC_ID_SIZE, YSM_OTP_SIZE).put(aead, aeadOffset, YSM_YUBIKEY_AEAD_SIZE);
+            result = CommandHandler.execute(device, frame);
+        } finally {
+            device.unlock();
+        }
+
+        byte status = result[YSM_PUBLIC_ID_SIZE + 4 + 2 + 1 + 1 + 2];
+        if (status != YSM_STATUS_OK) {
+            throw new YubiHSMCommandFailedException("Command " + getCommandString(YSM_AEAD_YUBIKEY_OTP_DECODE) + " failed: " + getCommandStatus(status));
+        }
+        for (int i = 0; i < YSM_PUBLIC_ID_SIZE; i++) {
+            if (result[i] != otp[offset + i]) {
+                validateCmdResponseBA("publicId", rangeOfByteArray(result, 0, YSM_PUBLIC_ID_SIZE), rangeOfByteArray(otp, offset, YSM_PUBLIC_ID_SIZE));
+            }
+        }
+        int echoed = (result[YSM_PUBLIC_ID_SIZE] & 0xff) | (result[YSM_PUBLIC_ID_SIZE + 1] & 0xff) << 8
+                | (result[YSM_PUBLIC_ID_SIZE + 2] & 0xff) << 16 | (result[YSM_PUBLIC_ID_SIZE + 3] & 0xff) << 24;
+        if (echoed != keyHandle) {
+            validateCmdResponseBA("keyHandle", rangeOfByteArray(result, YSM_PUBLIC_ID_SIZE, 4), leIntToBA(keyHandle));
+        }
+
+        return new OtpDecodeResult(result, YSM_PUBLIC_ID_SIZE + 4);
+    }
+
     /**
      *  Parse the response from the YubiHSM for a previous command.
      *
      * @param data the result from the last command
      * @param publicIdBA the public id in byte array format
      * @param keyHandle the key handle with permission to use YSM_TEMP_KEY_LOAD
-     * @return boolean indicating success
+     * @return the decrypted counters and timestamp
      * @throws YubiHSMCommandFailedException command failed exception
      */
-    private static Map<String, Integer> parseResult(byte[] data, byte[] publicIdBA, int keyHandle) throws YubiHSMCommandFailedException, YubiHSMErrorException {
-        Map<String, Integer> result = new HashMap<String, Integer>();
-
+    private static OtpDecodeResult parseResult(byte[] data, byte[] publicIdBA, int keyHandle) throws YubiHSMCommandFailedException, YubiHSMErrorException {
         byte status = data[YSM_PUBLIC_ID_SIZE + 4 + 2 + 1 + 1 + 2];
-        if (status == YSM_STATUS_OK) {
-            validateCmdResponseBA("publicId", rangeOfByteArray(data, 0, YSM_PUBLIC_ID_SIZE), publicIdBA);
-            validateCmdResponseBA("keyHandle", rangeOfByteArray(data, YSM_PUBLIC_ID_SIZE, 4), leIntToBA(keyHandle));
-            int useCtr = leBAToBeShort(rangeOfByteArray(data, YSM_PUBLIC_ID_SIZE + 4, 2));
-            int sessionCtr = data[YSM_PUBLIC_ID_SIZE + 4 + 2] & 0xff;
-            int timestampHigh = data[YSM_PUBLIC_ID_SIZE + 4 + 2 + 1] & 0xff;
-            int timestampLow = leBAToBeShort(rangeOfByteArray(data, YSM_PUBLIC_ID_SIZE + 4 + 2 + 1 + 1, 2));
-            result.put("useCtr", useCtr);
-            result.put("sessionCtr", sessionCtr);
-            result.put("tsHigh", timestampHigh);
-            result.put("tsLow", timestampLow);
-        } else {
+        if (status != YSM_STATUS_OK) {
             throw new YubiHSMCommandFailedException("Command " + getCommandString(YSM_AEAD_YUBIKEY_OTP_DECODE) + " failed: " + getCommandStatus(status));
         }
+        validateCmdResponseBA("publicId", rangeOfByteArray(data, 0, YSM_PUBLIC_ID_SIZE), publicIdBA);
+        validateCmdResponseBA("keyHandle", rangeOfByteArray(data, YSM_PUBLIC_ID_SIZE, 4), leIntToBA(keyHandle));
 
-        return result;
+        return new OtpDecodeResult(data, YSM_PUBLIC_ID_SIZE + 4);
     }
 }
 
@@ -0,0 +1,784 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm.utility;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.unitedid.yhsm.internal.LoopbackTransport;
+import org.unitedid.yhsm.internal.Transport;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.unitedid.yhsm.internal.Defines.*;
+
+/**
+ * <code>YubiHSMSimulator</code> is a software YubiHSM speaking the YubiHSM wire protocol at the far end of a
+ * {@link LoopbackTransport}. It keeps a key store, the data buffer, the temporary key, the HMAC state and the
+ * internal YubiKey database in memory and answers commands in the order they arrive, optionally after a configured
+ * service latency, so tests and benchmarks can run without hardware.
+ *
+ * <pre>
+ * YubiHSMSimulator simulator = new YubiHSMSimulator("sim0");
+ * simulator.addKey(0x2000, YubiHSMSimulator.PERMISSION_ALL, key);
+ * YubiHSM hsm = new YubiHSM(simulator.getTransport());
+ * </pre>
+ *
+ * Random numbers come from a seeded generator, two simulators configured the same way give the same answers.
+ */
+public class YubiHSMSimulator {
+    /** Logger */
+    private final Logger log = LoggerFactory.getLogger(YubiHSMSimulator.class);
+
+    /** Key permission flags */
+    public static final int PERMISSION_AEAD_GENERATE = 0x00000001;
+    public static final int PERMISSION_BUFFER_AEAD_GENERATE = 0x00000002;
+    public static final int PERMISSION_AEAD_DECRYPT_CMP = 0x00000004;
+    public static final int PERMISSION_RANDOM_AEAD_GENERATE = 0x00000008;
+    public static final int PERMISSION_DB_YUBIKEY_AEAD_STORE = 0x00000010;
+    public static final int PERMISSION_AEAD_YUBIKEY_OTP_DECODE = 0x00000020;
+    public static final int PERMISSION_DB_OTP_VALIDATE = 0x00000040;
+    public static final int PERMISSION_AES_ECB_BLOCK_ENCRYPT = 0x00002000;
+    public static final int PERMISSION_AES_ECB_BLOCK_DECRYPT = 0x00004000;
+    public static final int PERMISSION_AES_ECB_BLOCK_DECRYPT_CMP = 0x00008000;
+    public static final int PERMISSION_HMAC_SHA1_GENERATE = 0x00010000;
+    public static final int PERMISSION_TEMP_KEY_LOAD = 0x00020000;
+    /** Required to generate AEADs with a nonce chosen by the caller, otherwise the nonce must be zero */
+    public static final int PERMISSION_USER_NONCE = 0x20000000;
+    public static final int PERMISSION_ALL = 0xffffffff;
+
+    /** The simulated firmware version */
+    private static final byte[] VERSION = {1, 0, 4};
+    private static final byte PROTOCOL_VERSION = 1;
+    private static final int TEMP_KEY_HANDLE = 0xffffffff;
+    /** The number of YubiKeys the internal database holds */
+    private static final int DATABASE_SIZE = 1024;
+    /** How long the service thread waits for the rest of a frame before dropping it */
+    private static final long FRAME_TIMEOUT = 1000;
+
+    private final String name;
+    private final LoopbackTransport host;
+    private final LoopbackTransport device;
+    private final Thread serviceThread;
+    private volatile boolean closed = false;
+
+    private final Map<Integer, Key> keys = new HashMap<Integer, Key>();
+    private final Map<String, YubiKeyEntry> database = new HashMap<String, YubiKeyEntry>();
+    private final byte[] systemId = new byte[12];
+    private byte[] masterKey = null;
+    private Key tempKey = null;
+
+    private final byte[] buffer = new byte[YSM_DATA_BUF_SIZE];
+    private int bufferLength = 0;
+
+    private Mac hmac = null;
+    private int hmacKeyHandle;
+
+    private int nonceVolatile;
+    private final int powerUpCount;
+    private Random random;
+
+    private volatile long defaultLatency = 0;
+    private final long[] latency = new long[0x80];
+    private final AtomicLongArray commandCount = new AtomicLongArray(0x80);
+    private final AtomicInteger dropResponses = new AtomicInteger();
+
+    /**
+     * Constructor, starts the simulator with an empty key store.
+     *
+     * @param name the transport name
+     */
+    public YubiHSMSimulator(String name) {
+        this(name, 0);
+    }
+
+    /**
+     * Constructor, starts the simulator with an empty key store.
+     *
+     * @param name the transport name
+     * @param seed the seed for random numbers, nonces and the system id
+     */
+    public YubiHSMSimulator(String name, long seed) {
+        this.name = name;
+        random = new Random(seed);
+        random.nextBytes(systemId);
+        nonceVolatile = random.nextInt();
+        powerUpCount = random.nextInt() & 0xffff;
+        Arrays.fill(latency, -1);
+
+        LoopbackTransport[] pair = LoopbackTransport.createPair(name);
+        host = pair[0];
+        device = pair[1];
+        serviceThread = new Thread(new Runnable() {
+            public void run() {
+                service();
+            }
+        }, "YubiHSM simulator " + name);
+        serviceThread.setDaemon(true);
+        serviceThread.start();
+    }
+
+    /**
+     * Get the host end of the simulator, to be passed to {@link org.unitedid.yhsm.YubiHSM#YubiHSM(Transport)}.
+     *
+     * @return the transport
+     */
+    public Transport getTransport() {
+        return host;
+    }
+
+    /**
+     * Add a key to the key store, replacing any key with the same handle.
+     *
+     * @param keyHandle the key handle
+     * @param flags the permission flags, see PERMISSION_*
+     * @param key the key, 16 or 32 bytes
+     */
+    public synchronized void addKey(int keyHandle, int flags, byte[] key) {
+        if (key.length != KEY_SIZE && key.length != YSM_MAX_KEY_SIZE) {
+            throw new IllegalArgumentException("Key must be " + KEY_SIZE + " or " + YSM_MAX_KEY_SIZE + " bytes");
+        }
+        keys.put(keyHandle, new Key(flags, key));
+    }
+
+    /**
+     * Set the key store master key checked by YSM_KEY_STORE_DECRYPT and YSM_KEY_STORAGE_UNLOCK.
+     *
+     * @param key the master key, 32 bytes
+     */
+    public synchronized void setMasterKey(byte[] key) {
+        masterKey = key.clone();
+    }
+
+    /**
+     * Add a YubiKey to the internal database used by YSM_HSM_UNLOCK and YSM_DB_OTP_VALIDATE.
+     *
+     * @param publicId the YubiKey public id (6 bytes)
+     * @param uid the YubiKey private id (6 bytes)
+     * @param key the YubiKey AES key (16 bytes)
+     */
+    public synchronized void addYubiKey(byte[] publicId, byte[] uid, byte[] key) {
+        database.put(Utils.byteArrayToHex(publicId), new YubiKeyEntry(uid, key));
+    }
+
+    /**
+     * Set the service latency of every command without a latency of its own.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public void setLatency(long nanos) {
+        defaultLatency = nanos;
+    }
+
+    /**
+     * Set the service latency of one command, ie how long the simulated HSM spends before it responds.
+     *
+     * @param command the command, see Defines
+     * @param nanos the latency in nanoseconds
+     */
+    public void setLatency(byte command, long nanos) {
+        latency[command & 0x7f] = nanos;
+    }
+
+    /**
+     * Get the number of times a command has been received.
+     *
+     * @param command the command, see Defines
+     * @return the number of commands received
+     */
+    public long getCommandCount(byte command) {
+        return commandCount.get(command & 0x7f);
+    }
+
+    /**
+     * Execute the next commands without sending their responses, to test how the host handles a lost response.
+     *
+     * @param count the number of responses to drop
+     */
+    public void dropResponses(int count) {
+        dropResponses.addAndGet(count);
+    }
+
+    /**
+     * Stop the simulator, the host end of the transport is closed as well.
+     */
+    public void close() {
+        closed = true;
+        device.close();
+        serviceThread.interrupt();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** Read frames, execute them and send the responses until the transport is closed. */
+    private void service() {
+        byte[] length = new byte[1];
+        try {
+            while (!closed) {
+                if (!device.readExact(length, 0, 1, FRAME_TIMEOUT)) {
+                    continue;
+                }
+                int frameLength = length[0] & 0xff;
+                if (frameLength == 0) {
+                    /* YSM_NULL, sent as padding by reset */
+                    continue;
+                }
+                byte[] frame = new byte[frameLength];
+                if (!device.readExact(frame, 0, frameLength, FRAME_TIMEOUT)) {
+                    log.warn("{}: dropping incomplete frame", name);
+                    continue;
+                }
+                byte command = frame[0];
+                commandCount.incrementAndGet(command & 0x7f);
+                byte[] response = execute(command, Arrays.copyOfRange(frame, 1, frameLength));
+                if (response == null) {
+                    continue;
+                }
+                if (dropResponses.get() > 0 && dropResponses.getAndDecrement() > 0) {
+                    continue;
+                }
+                long nanos = latency[command & 0x7f];
+                if (nanos < 0) {
+                    nanos = defaultLatency;
+                }
+                if (nanos > 0) {
+                    LockSupport.parkNanos(nanos);
+                }
+                byte[] reply = new byte[response.length + 2];
+                reply[0] = (byte) (response.length + 1);
+                reply[1] = (byte) (command | YSM_RESPONSE);
+                System.arraycopy(response, 0, reply, 2, response.length);
+                device.write(reply, 0, reply.length);
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                log.debug("{}: transport closed", name);
+            }
+        }
+    }
+
+    /**
+     * Execute one command.
+     *
+     * @param command the command
+     * @param payload the command payload
+     * @return the response payload, or null if the command has no response
+     */
+    synchronized byte[] execute(byte command, byte[] payload) {
+        ByteBuffer in = ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            switch (command) {
+                case YSM_AEAD_GENERATE:
+                case YSM_BUFFER_AEAD_GENERATE:
+                case YSM_RANDOM_AEAD_GENERATE:
+                    return aeadGenerate(command, in);
+                case YSM_AEAD_DECRYPT_CMP:
+                    return aeadDecryptCompare(in);
+                case YSM_AEAD_YUBIKEY_OTP_DECODE:
+                    return yubikeyOtpDecode(in);
+                case YSM_DB_YUBIKEY_AEAD_STORE:
+                    return dbYubikeyAeadStore(in);
+                case YSM_DB_OTP_VALIDATE:
+                    return dbOtpValidate(in);
+                case YSM_AES_ECB_BLOCK_ENCRYPT:
+                case YSM_AES_ECB_BLOCK_DECRYPT:
+                case YSM_AES_ECB_BLOCK_DECRYPT_CMP:
+                    return aesEcb(command, in);
+                case YSM_HMAC_SHA1_GENERATE:
+                    return hmacSha1(in);
+                case YSM_TEMP_KEY_LOAD:
+                    return tempKeyLoad(in);
+                case YSM_BUFFER_LOAD:
+                    return bufferLoad(in, false);
+                case YSM_BUFFER_RANDOM_LOAD:
+                    return bufferLoad(in, true);
+                case YSM_NONCE_GET:
+                    return nonceGet(in);
+                case YSM_ECHO:
+                    return payload;
+                case YSM_RANDOM_GENERATE:
+                    return randomGenerate(in);
+                case YSM_RANDOM_RESEED:
+                    random = new Random(random.nextLong() ^ Arrays.hashCode(payload));
+                    return new byte[] {YSM_STATUS_OK};
+                case YSM_SYSTEM_INFO_QUERY:
+                    return ByteBuffer.allocate(16).put(VERSION).put(PROTOCOL_VERSION).put(systemId).array();
+                case YSM_KEY_STORAGE_UNLOCK:
+                    return new byte[] {masterKeyMatches(payload, KEY_SIZE) ? YSM_STATUS_OK : YSM_KEY_STORAGE_LOCKED};
+                case YSM_KEY_STORE_DECRYPT:
+                    return new byte[] {masterKeyMatches(payload, YSM_MAX_KEY_SIZE) ? YSM_STATUS_OK : YSM_MISMATCH};
+                case YSM_HSM_UNLOCK:
+                    return hsmUnlock(in);
+                case YSM_MONITOR_EXIT:
+                    return null;
+                default:
+                    log.warn("{}: unsupported command {}", name, command);
+                    return null;
+            }
+        } catch (RuntimeException e) {
+            /* Truncated payloads and the like */
+            log.warn("{}: invalid {} payload", name, getCommandString(command), e);
+            return null;
+        }
+    }
+
+    private byte[] aeadGenerate(byte command, ByteBuffer in) {
+        byte[] nonce = read(in, YSM_AEAD_NONCE_SIZE);
+        int keyHandle = in.getInt();
+        byte[] data;
+        int permission;
+        if (command == YSM_AEAD_GENERATE) {
+            data = readData(in);
+            permission = PERMISSION_AEAD_GENERATE;
+        } else if (command == YSM_BUFFER_AEAD_GENERATE) {
+            data = Arrays.copyOf(buffer, bufferLength);
+            permission = PERMISSION_BUFFER_AEAD_GENERATE;
+        } else {
+            int length = in.get() & 0xff;
+            data = length > YSM_DATA_BUF_SIZE ? null : randomBytes(length);
+            permission = PERMISSION_RANDOM_AEAD_GENERATE;
+        }
+
+        byte status = YSM_STATUS_OK;
+        byte[] aead = new byte[0];
+        Key key = keys.get(keyHandle);
+        if (data == null) {
+            status = YSM_INVALID_PARAMETER;
+        } else if (key == null) {
+            status = YSM_KEY_HANDLE_INVALID;
+        } else if (!key.permits(permission)) {
+            status = YSM_FUNCTION_DISABLED;
+        } else if (isZero(nonce)) {
+            nonce = nextNonce(1);
+        } else if (!key.permits(PERMISSION_USER_NONCE)) {
+            status = YSM_FUNCTION_DISABLED;
+        }
+        if (status == YSM_STATUS_OK) {
+            aead = aesCcm(key.key, keyHandle, nonce, data, true);
+        }
+
+        return ByteBuffer.allocate(12 + aead.length).order(ByteOrder.LITTLE_ENDIAN)
+                .put(nonce).putInt(keyHandle).put(status).put((byte) aead.length).put(aead).array();
+    }
+
+    private byte[] aeadDecryptCompare(ByteBuffer in) {
+        byte[] nonce = read(in, YSM_AEAD_NONCE_SIZE);
+        int keyHandle = in.getInt();
+        byte[] data = readData(in);
+        int plainLength = (data.length - YSM_AEAD_MAC_SIZE) / 2;
+
+        byte status = keyStatus(keyHandle, PERMISSION_AEAD_DECRYPT_CMP);
+        if (status == YSM_STATUS_OK) {
+            byte[] plaintext = plainLength < 0 ? null : aesCcm(keys.get(keyHandle).key, keyHandle, nonce,
+                    Arrays.copyOfRange(data, plainLength, data.length), false);
+            if (plaintext == null || !Arrays.equals(plaintext, Arrays.copyOf(data, plainLength))) {
+                status = YSM_MISMATCH;
+            }
+        }
+        return ByteBuffer.allocate(11).order(ByteOrder.LITTLE_ENDIAN).put(nonce).putInt(keyHandle).put(status).array();
+    }
+
+    private byte[] yubikeyOtpDecode(ByteBuffer in) {
+        byte[] publicId = read(in, YSM_PUBLIC_ID_SIZE);
+        int keyHandle = in.getInt();
+        byte[] otp = read(in, YSM_OTP_SIZE);
+        byte[] aead = read(in, YSM_YUBIKEY_AEAD_SIZE);
+
+        ByteBuffer out = ByteBuffer.allocate(17).order(ByteOrder.LITTLE_ENDIAN).put(publicId).putInt(keyHandle);
+        byte status = keyStatus(keyHandle, PERMISSION_AEAD_YUBIKEY_OTP_DECODE);
+        byte[] token = null;
+        if (status == YSM_STATUS_OK) {
+            byte[] secret = aesCcm(keys.get(keyHandle).key, keyHandle, publicId, aead, false);
+            if (secret == null) {
+                status = YSM_AEAD_INVALID;
+            } else {
+                token = decryptOtp(Arrays.copyOf(secret, KEY_SIZE), Arrays.copyOfRange(secret, KEY_SIZE, KEY_SIZE + UID_SIZE), otp);
+                if (token == null) {
+                    status = YSM_OTP_INVALID;
+                }
+            }
+        }
+        if (token != null) {
+            out.put(token, 6, 2).put(token[11]).put(token[10]).put(token, 8, 2);
+        } else {
+            out.put(new byte[6]);
+        }
+        return out.put(status).array();
+    }
+
+    private byte[] dbYubikeyAeadStore(ByteBuffer in) {
+        byte[] publicId = read(in, YSM_PUBLIC_ID_SIZE);
+        int keyHandle = in.getInt();
+        byte[] aead = read(in, YSM_YUBIKEY_AEAD_SIZE);
+
+        byte status = keyStatus(keyHandle, PERMISSION_DB_YUBIKEY_AEAD_STORE);
+        String id = Utils.byteArrayToHex(publicId);
+        if (status == YSM_STATUS_OK) {
+            byte[] secret = aesCcm(keys.get(keyHandle).key, keyHandle, publicId, aead, false);
+            if (secret == null) {
+                status = YSM_AEAD_INVALID;
+            } else if (database.containsKey(id)) {
+                status = YSM_ID_DUPLICATE;
+            } else if (database.size() >= DATABASE_SIZE) {
+                status = YSM_DB_FULL;
+            } else {
+                database.put(id, new YubiKeyEntry(Arrays.copyOfRange(secret, KEY_SIZE, KEY_SIZE + UID_SIZE),
+                        Arrays.copyOf(secret, KEY_SIZE)));
+            }
+        }
+        return ByteBuffer.allocate(11).order(ByteOrder.LITTLE_ENDIAN).put(publicId).putInt(keyHandle).put(status).array();
+    }
+
+    private byte[] dbOtpValidate(ByteBuffer in) {
+        byte[] publicId = read(in, YSM_PUBLIC_ID_SIZE);
+        byte[] otp = read(in, YSM_OTP_SIZE);
+
+        ByteBuffer out = ByteBuffer.allocate(13).order(ByteOrder.LITTLE_ENDIAN).put(publicId);
+        YubiKeyEntry entry = database.get(Utils.byteArrayToHex(publicId));
+        byte status = YSM_STATUS_OK;
+        byte[] token = null;
+        if (entry == null) {
+            status = YSM_ID_NOT_FOUND;
+        } else {
+            token = decryptOtp(entry.key, entry.uid, otp);
+            if (token == null) {
+                status = YSM_OTP_INVALID;
+            } else if (!entry.advance(token)) {
+                status = YSM_OTP_REPLAY;
+            }
+        }
+        if (token != null) {
+            out.put(token, 6, 2).put(token[11]).put(token[10]).put(token, 8, 2);
+        } else {
+            out.put(new byte[6]);
+        }
+        return out.put(status).array();
+    }
+
+    private byte[] hsmUnlock(ByteBuffer in) {
+        byte[] publicId = read(in, YSM_PUBLIC_ID_SIZE);
+        byte[] otp = read(in, YSM_OTP_SIZE);
+
+        YubiKeyEntry entry = database.get(Utils.byteArrayToHex(publicId));
+        if (entry == null) {
+            return new byte[] {YSM_INVALID_PARAMETER};
+        }
+        byte[] token = decryptOtp(entry.key, entry.uid, otp);
+        if (token == null) {
+            return new byte[] {YSM_OTP_INVALID};
+        }
+        if (!entry.advance(token)) {
+            return new byte[] {YSM_OTP_REPLAY};
+        }
+        return new byte[] {YSM_STATUS_OK};
+    }
+
+    private byte[] aesEcb(byte command, ByteBuffer in) {
+        int keyHandle = in.getInt();
+        byte[] block = read(in, YSM_BLOCK_SIZE);
+        int permission = command == YSM_AES_ECB_BLOCK_ENCRYPT ? PERMISSION_AES_ECB_BLOCK_ENCRYPT :
+                command == YSM_AES_ECB_BLOCK_DECRYPT ? PERMISSION_AES_ECB_BLOCK_DECRYPT : PERMISSION_AES_ECB_BLOCK_DECRYPT_CMP;
+
+        byte status = keyStatus(keyHandle, permission);
+        byte[] result = new byte[YSM_BLOCK_SIZE];
+        if (status == YSM_STATUS_OK) {
+            byte[] key = keyFor(keyHandle).key;
+            if (command == YSM_AES_ECB_BLOCK_ENCRYPT) {
+                result = aes(key, block, Cipher.ENCRYPT_MODE);
+            } else {
+                result = aes(key, block, Cipher.DECRYPT_MODE);
+            }
+        }
+        if (command == YSM_AES_ECB_BLOCK_DECRYPT_CMP) {
+            byte[] plaintext = read(in, YSM_BLOCK_SIZE);
+            if (status == YSM_STATUS_OK && !Arrays.equals(result, plaintext)) {
+                status = YSM_MISMATCH;
+            }
+            return ByteBuffer.allocate(5).order(ByteOrder.LITTLE_ENDIAN).putInt(keyHandle).put(status).array();
+        }
+        return ByteBuffer.allocate(21).order(ByteOrder.LITTLE_ENDIAN).putInt(keyHandle).put(result).put(status).array();
+    }
+
+    private byte[] hmacSha1(ByteBuffer in) {
+        int keyHandle = in.getInt();
+        byte flags = in.get();
+        byte[] data = readData(in);
+
+        byte status = keyStatus(keyHandle, PERMISSION_HMAC_SHA1_GENERATE);
+        byte[] hash = new byte[YSM_SHA1_HASH_SIZE];
+        if (status == YSM_STATUS_OK) {
+            if ((flags & YSM_HMAC_SHA1_RESET) != 0 || hmac == null || hmacKeyHandle != keyHandle) {
+                hmac = hmacInit(keyFor(keyHandle).key);
+                hmacKeyHandle = keyHandle;
+            }
+            hmac.update(data);
+            if ((flags & YSM_HMAC_SHA1_FINAL) != 0) {
+                hash = hmac.doFinal();
+                hmac = null;
+                if ((flags & YSM_HMAC_SHA1_TO_BUFFER) != 0) {
+                    System.arraycopy(hash, 0, buffer, 0, hash.length);
+                    bufferLength = hash.length;
+                }
+            }
+        }
+        return ByteBuffer.allocate(26).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(keyHandle).put(status).put((byte) hash.length).put(hash).array();
+    }
+
+    private byte[] tempKeyLoad(ByteBuffer in) {
+        byte[] nonce = read(in, YSM_AEAD_NONCE_SIZE);
+        int keyHandle = in.getInt();
+        byte[] aead = readData(in);
+
+        byte status = keyStatus(keyHandle, PERMISSION_TEMP_KEY_LOAD);
+        tempKey = null;
+        if (status == YSM_STATUS_OK) {
+            int keyLength = aead.length - YSM_AEAD_MAC_SIZE - 4;
+            byte[] plaintext = keyLength != KEY_SIZE && keyLength != 20 && keyLength != YSM_MAX_KEY_SIZE ? null :
+                    aesCcm(keys.get(keyHandle).key, keyHandle, nonce, aead, false);
+            if (plaintext == null) {
+                status = aead.length == 0 ? YSM_INVALID_PARAMETER : YSM_AEAD_INVALID;
+            } else {
+                int flags = ByteBuffer.wrap(plaintext, keyLength, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+                tempKey = new Key(flags, Arrays.copyOf(plaintext, keyLength));
+            }
+        }
+        return ByteBuffer.allocate(11).order(ByteOrder.LITTLE_ENDIAN).put(nonce).putInt(keyHandle).put(status).array();
+    }
+
+    private byte[] bufferLoad(ByteBuffer in, boolean random) {
+        int offset = in.get() & 0xff;
+        byte[] data = random ? randomBytes(in.get() & 0xff) : readData(in);
+        if (offset == 0) {
+            bufferLength = 0;
+        }
+        int length = Math.min(data.length, Math.max(0, YSM_DATA_BUF_SIZE - offset));
+        System.arraycopy(data, 0, buffer, Math.min(offset, YSM_DATA_BUF_SIZE), length);
+        if (length > 0) {
+            bufferLength = Math.max(bufferLength, offset + length);
+        }
+        return new byte[] {(byte) bufferLength};
+    }
+
+    private byte[] nonceGet(ByteBuffer in) {
+        int increment = in.getShort() & 0xffff;
+        return ByteBuffer.allocate(7).put(YSM_STATUS_OK).put(nextNonce(increment)).array();
+    }
+
+    private byte[] randomGenerate(ByteBuffer in) {
+        int length = in.get() & 0xff;
+        byte[] data = randomBytes(Math.min(length, YSM_MAX_PKT_SIZE - 2));
+        return ByteBuffer.allocate(data.length + 1).put((byte) data.length).put(data).array();
+    }
+
+    /** Return the current nonce and advance it, the nonce is the volatile counter followed by the power up count */
+    private byte[] nextNonce(int increment) {
+        byte[] nonce = ByteBuffer.allocate(YSM_AEAD_NONCE_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(nonceVolatile).putShort((short) powerUpCount).array();
+        nonceVolatile += increment;
+        return nonce;
+    }
+
+    private byte keyStatus(int keyHandle, int permission) {
+        Key key = keyFor(keyHandle);
+        if (key == null) {
+            return YSM_KEY_HANDLE_INVALID;
+        }
+        return key.permits(permission) ? YSM_STATUS_OK : YSM_FUNCTION_DISABLED;
+    }
+
+    private Key keyFor(int keyHandle) {
+        return keyHandle == TEMP_KEY_HANDLE ? tempKey : keys.get(keyHandle);
+    }
+
+    private boolean masterKeyMatches(byte[] key, int length) {
+        return masterKey == null || Arrays.equals(Arrays.copyOf(masterKey, length), Arrays.copyOf(key, length));
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Decrypt a YubiKey OTP and check its CRC and private id.
+     *
+     * @return the decrypted token, or null if the OTP is invalid
+     */
+    private static byte[] decryptOtp(byte[] key, byte[] uid, byte[] otp) {
+        byte[] token = aes(key, otp, Cipher.DECRYPT_MODE);
+        if (YubiKeyEmulator.crc16(token, 0, token.length) != YubiKeyEmulator.CRC_OK_RESIDUAL
+                || !Arrays.equals(uid, Arrays.copyOf(token, UID_SIZE))) {
+            return null;
+        }
+        return token;
+    }
+
+    /**
+     * The YubiHSM AEAD: AES CCM with an 8 byte MAC where the counter block holds the key handle and the nonce.
+     *
+     * @param key the AES key
+     * @param keyHandle the key handle
+     * @param nonce the nonce (6 bytes)
+     * @param data the plaintext when encrypting, the AEAD when decrypting
+     * @param encrypt true to encrypt
+     * @return the AEAD or the plaintext, null if the MAC does not match when decrypting
+     */
+    static byte[] aesCcm(byte[] key, int keyHandle, byte[] nonce, byte[] data, boolean encrypt) {
+        int length = encrypt ? data.length : data.length - YSM_AEAD_MAC_SIZE;
+        if (length < 0) {
+            return null;
+        }
+        try {
+            Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+
+            byte[] block = ccmBlock(0x01, keyHandle, nonce, 0);
+            byte[] result = new byte[length + (encrypt ? YSM_AEAD_MAC_SIZE : 0)];
+            byte[] plaintext = encrypt ? data : new byte[length];
+            for (int offset = 0, counter = 1; offset < length; offset += YSM_BLOCK_SIZE, counter++) {
+                byte[] stream = cipher.doFinal(ccmBlock(0x01, keyHandle, nonce, counter));
+                for (int i = offset; i < Math.min(length, offset + YSM_BLOCK_SIZE); i++) {
+                    result[i] = (byte) (data[i] ^ stream[i - offset]);
+                }
+            }
+            if (!encrypt) {
+                System.arraycopy(result, 0, plaintext, 0, length);
+            }
+
+            byte[] mac = cipher.doFinal(ccmBlock(((YSM_AEAD_MAC_SIZE - 2) / 2) << 3 | 0x01, keyHandle, nonce, length));
+            for (int offset = 0; offset < length; offset += YSM_BLOCK_SIZE) {
+                for (int i = offset; i < Math.min(length, offset + YSM_BLOCK_SIZE); i++) {
+                    mac[i - offset] ^= plaintext[i];
+                }
+                mac = cipher.doFinal(mac);
+            }
+            byte[] s0 = cipher.doFinal(block);
+            for (int i = 0; i < YSM_AEAD_MAC_SIZE; i++) {
+                mac[i] ^= s0[i];
+            }
+
+            if (encrypt) {
+                System.arraycopy(mac, 0, result, length, YSM_AEAD_MAC_SIZE);
+                return result;
+            }
+            byte[] expected = Arrays.copyOf(mac, YSM_AEAD_MAC_SIZE);
+            return Arrays.equals(expected, Arrays.copyOfRange(data, length, data.length)) ? plaintext : null;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES not available", e);
+        }
+    }
+
+    private static byte[] ccmBlock(int flags, int keyHandle, byte[] nonce, int counter) {
+        return ByteBuffer.allocate(YSM_BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+                .put((byte) flags).putInt(keyHandle).put(nonce).put(new byte[3])
+                .put((byte) (counter >> 8)).put((byte) counter).array();
+    }
+
+    private static byte[] aes(byte[] key, byte[] block, int mode) {
+        try {
+            Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+            cipher.init(mode, new SecretKeySpec(key, "AES"));
+            return cipher.doFinal(block);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES not available", e);
+        }
+    }
+
+    private static Mac hmacInit(byte[] key) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA1");
+            mac.init(new SecretKeySpec(key, "HmacSHA1"));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA1 not available", e);
+        }
+    }
+
+    private static byte[] read(ByteBuffer in, int length) {
+        byte[] data = new byte[length];
+        in.get(data);
+        return data;
+    }
+
+    /** Read a length prefixed field */
+    private static byte[] readData(ByteBuffer in) {
+        return read(in, in.get() & 0xff);
+    }
+
+    private static boolean isZero(byte[] data) {
+        for (byte b : data) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class Key {
+        final int flags;
+        final byte[] key;
+
+        Key(int flags, byte[] key) {
+            this.flags = flags;
+            this.key = key.clone();
+        }
+
+        boolean permits(int permission) {
+            return (flags & permission) == permission;
+        }
+    }
+
+    private static class YubiKeyEntry {
+        final byte[] uid;
+        final byte[] key;
+        int useCtr = -1;
+        int sessionCtr = -1;
+
+        YubiKeyEntry(byte[] uid, byte[] key) {
+            this.uid = uid.clone();
+            this.key = key.clone();
+        }
+
+        /** Accept the counters of a decrypted token if they are newer than the last seen */
+        boolean advance(byte[] token) {
+            int use = (token[6] & 0xff) | (token[7] & 0xff) << 8;
+            int session = token[11] & 0xff;
+            if (use < useCtr || (use == useCtr && session <= sessionCtr)) {
+                return false;
+            }
+            useCtr = use;
+            sessionCtr = session;
+            return true;
+        }
+    }
+}
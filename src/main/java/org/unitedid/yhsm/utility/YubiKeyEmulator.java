@@ -1,4 +1,165 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
 package org.unitedid.yhsm.utility;
 
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import static org.unitedid.yhsm.internal.Defines.*;
+
+/**
+ * <code>YubiKeyEmulator</code> generates YubiKey OTPs in software, for testing OTP validation against the
+ * {@link YubiHSMSimulator} or a YubiHSM without pressing a real YubiKey.
+ */
 public class YubiKeyEmulator {
+
+    /** The CRC16 residual of a correctly decrypted OTP */
+    public static final int CRC_OK_RESIDUAL = 0xf0b8;
+
+    private final byte[] publicId;
+    private final byte[] uid;
+    private final byte[] key;
+
+    private int useCtr;
+    private int sessionCtr = 0;
+    private int timestamp = 0;
+    private int random = 0x1234;
+
+    /**
+     * Constructor
+     *
+     * @param publicId the public id (usually 6 bytes)
+     * @param uid the private id (6 bytes)
+     * @param key the AES key (16 bytes)
+     * @param useCtr the initial use (power up) counter
+     */
+    public YubiKeyEmulator(byte[] publicId, byte[] uid, byte[] key, int useCtr) {
+        if (uid.length != UID_SIZE || key.length != KEY_SIZE) {
+            throw new IllegalArgumentException("Expected a " + UID_SIZE + " byte uid and a " + KEY_SIZE + " byte key");
+        }
+        this.publicId = publicId.clone();
+        this.uid = uid.clone();
+        this.key = key.clone();
+        this.useCtr = useCtr;
+    }
+
+    /**
+     * Simulate unplugging and inserting the YubiKey, increments the use counter and resets the session counter.
+     */
+    public void powerUp() {
+        useCtr++;
+        sessionCtr = 0;
+    }
+
+    /**
+     * Generate the next OTP without the public id.
+     *
+     * @return the 16 byte OTP in hex
+     */
+    public String nextOtp() {
+        return Utils.byteArrayToHex(nextOtpBytes());
+    }
+
+    /**
+     * Generate the next OTP as typed by a YubiKey, public id followed by the OTP in modhex.
+     *
+     * @return the modhex encoded OTP
+     */
+    public String nextModHexOtp() {
+        return ModHex.encode(Utils.byteArrayToHex(publicId) + nextOtp());
+    }
+
+    /**
+     * Generate the next OTP without the public id.
+     *
+     * @return the 16 byte OTP
+     */
+    public byte[] nextOtpBytes() {
+        byte[] token = new byte[YSM_BLOCK_SIZE];
+        System.arraycopy(uid, 0, token, 0, UID_SIZE);
+        token[6] = (byte) useCtr;
+        token[7] = (byte) (useCtr >> 8);
+        token[8] = (byte) timestamp;
+        token[9] = (byte) (timestamp >> 8);
+        token[10] = (byte) (timestamp >> 16);
+        token[11] = (byte) sessionCtr;
+        token[12] = (byte) random;
+        token[13] = (byte) (random >> 8);
+        int crc = ~crc16(token, 0, 14) & 0xffff;
+        token[14] = (byte) crc;
+        token[15] = (byte) (crc >> 8);
+
+        sessionCtr = (sessionCtr + 1) & 0xff;
+        if (sessionCtr == 0) {
+            powerUp();
+        }
+        timestamp = (timestamp + 8) & 0xffffff;
+        random = (random * 31 + 17) & 0xffff;
+
+        try {
+            Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+            return cipher.doFinal(token);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES not available", e);
+        }
+    }
+
+    public byte[] getPublicId() {
+        return publicId.clone();
+    }
+
+    public int getUseCtr() {
+        return useCtr;
+    }
+
+    public int getSessionCtr() {
+        return sessionCtr;
+    }
+
+    /**
+     * Calculate the ISO 13239 CRC16 used by YubiKey OTPs. Calculated over a whole decrypted OTP
+     * the result is {@link #CRC_OK_RESIDUAL}.
+     *
+     * @param data the data
+     * @param offset the offset in data
+     * @param length the number of bytes
+     * @return the CRC
+     */
+    public static int crc16(byte[] data, int offset, int length) {
+        int crc = 0xffff;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= data[i] & 0xff;
+            for (int bit = 0; bit < 8; bit++) {
+                int carry = crc & 1;
+                crc >>= 1;
+                if (carry != 0) {
+                    crc ^= 0x8408;
+                }
+            }
+        }
+        return crc;
+    }
+
+    @Override
+    public String toString() {
+        return "YubiKeyEmulator " + Utils.byteArrayToHex(publicId) + " uid " + Utils.byteArrayToHex(uid) +
+                " counters " + useCtr + "/" + sessionCtr + " key " + (Arrays.equals(key, new byte[KEY_SIZE]) ? "zero" : "set");
+    }
 }
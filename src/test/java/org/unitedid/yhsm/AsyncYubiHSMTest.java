@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm;
+
+import org.testng.annotations.AfterTest;
+import org.testng.annotations.BeforeTest;
+import org.testng.annotations.Test;
+import org.unitedid.yhsm.internal.YubiHSMCommandFailedException;
+import org.unitedid.yhsm.utility.YubiHSMSimulator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+public class AsyncYubiHSMTest extends SetupCommon {
+
+    private AsyncYubiHSM async;
+
+    @BeforeTest
+    public void setUp() throws Exception {
+        super.setUp();
+        async = new AsyncYubiHSM(hsm);
+    }
+
+    @AfterTest
+    public void tearDown() throws Exception {
+        async.shutdown();
+        async.awaitTermination(5, TimeUnit.SECONDS);
+        super.tearDown();
+    }
+
+    @Test
+    public void testEcho() throws Exception {
+        List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(async.echo("async" + i));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(futures.get(i).get(5, TimeUnit.SECONDS), "async" + i);
+        }
+    }
+
+    @Test
+    public void testHMACSHA1() throws Exception {
+        assertEquals(async.generateHMACSHA1("Sample #2", 0x3031).get().get("hash"), "0922d3405faa3d194f82a45830737d5cc6c75d24");
+    }
+
+    @Test
+    public void testCommandFailure() throws Exception {
+        try {
+            async.generateAEAD("f1f2f3f4f5f6", 2, "data").get();
+            fail("Expected YSM_FUNCTION_DISABLED");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof YubiHSMCommandFailedException);
+        }
+    }
+
+    @Test
+    public void testFacadesShareDevice() throws Exception {
+        AsyncYubiHSM other = new AsyncYubiHSM(hsm);
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            CompletableFuture<Boolean> blocker = async.submit(new AsyncYubiHSM.Task<Boolean>() {
+                public Boolean run(YubiHSM hsm) throws Exception {
+                    running.countDown();
+                    return release.await(5, TimeUnit.SECONDS);
+                }
+            });
+            assertTrue(running.await(5, TimeUnit.SECONDS));
+
+            /* The other facade queues behind the same I/O thread */
+            CompletableFuture<String> queued = other.echo("queued");
+            assertEquals(async.getQueueLength(), 1);
+            assertFalse(queued.isDone());
+            release.countDown();
+            assertTrue(blocker.get(5, TimeUnit.SECONDS));
+            assertEquals(queued.get(5, TimeUnit.SECONDS), "queued");
+
+            /* Shutting down one facade leaves the device to the others */
+            other.shutdown();
+            assertTrue(other.awaitTermination(5, TimeUnit.SECONDS));
+            assertTrue(other.echo("rejected").isCompletedExceptionally());
+            assertEquals(async.echo("running").get(5, TimeUnit.SECONDS), "running");
+        } finally {
+            release.countDown();
+            other.shutdown();
+        }
+    }
+
+    @Test
+    public void testQueueFull() throws Exception {
+        YubiHSMSimulator simulator = createSimulator("asyncQueue");
+        AsyncYubiHSM small = new AsyncYubiHSM(new YubiHSM(simulator.getTransport()), 1);
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            CompletableFuture<Boolean> blocker = small.submit(new AsyncYubiHSM.Task<Boolean>() {
+                public Boolean run(YubiHSM hsm) throws Exception {
+                    running.countDown();
+                    return release.await(5, TimeUnit.SECONDS);
+                }
+            });
+            assertTrue(running.await(5, TimeUnit.SECONDS));
+            CompletableFuture<String> queued = small.echo("queued");
+            CompletableFuture<String> rejected = small.echo("rejected");
+
+            assertTrue(rejected.isCompletedExceptionally());
+            try {
+                rejected.get();
+                fail("Expected the queue to be full");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+
+            release.countDown();
+            assertTrue(blocker.get(5, TimeUnit.SECONDS));
+            assertEquals(queued.get(5, TimeUnit.SECONDS), "queued");
+        } finally {
+            release.countDown();
+            small.shutdown();
+            small.awaitTermination(5, TimeUnit.SECONDS);
+            simulator.close();
+        }
+    }
+}
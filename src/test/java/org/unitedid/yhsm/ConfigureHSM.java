@@ -16,6 +16,7 @@
 
 package org.unitedid.yhsm;
 
+import org.testng.SkipException;
 import org.testng.annotations.*;
 import org.unitedid.yhsm.internal.CommandHandler;
 import org.unitedid.yhsm.utility.Utils;
@@ -34,6 +35,9 @@ public class ConfigureHSM extends SetupCommon {
 
     @Test
     public void testConfigureHSM() throws Exception {
+        if (isSimulated()) {
+            throw new SkipException("The simulator is configured by SetupCommon");
+        }
         System.out.println("Exiting HSM monitor mode (requires YubiHSM in 'debug' mode)");
         hsm.exitMonitorDebugMode();
         System.out.println("Configuring YubiHSM for test suite (" + hsm.getInfo().getSystemInfo() + ")");
@@ -83,14 +87,6 @@ public class ConfigureHSM extends SetupCommon {
         System.out.println(runCommand("keyload\r" + keyLine + esc, false));
     }
 
-    private String duplicateStr(String data, int times) {
-        String buffer = new String();
-        for (int i = 0; i < times; i++) {
-            buffer += data;
-        }
-        return buffer;
-    }
-
     private String runCommand(String command, boolean carrierReturn) throws Exception {
         if (carrierReturn) {
             deviceHandler.write((command + '\r').getBytes());
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.unitedid.yhsm.utility.YubiHSMSimulator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class HotpCounterStoreTest {
+
+    private File directory;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("hotp").toFile();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testCompareAndSet() throws Exception {
+        HotpCounterStore store = new HotpCounterStore(new File(directory, "counters"), 16);
+        try {
+            assertEquals(store.get("f1f2f3f4f5f6"), 0);
+            assertTrue(store.compareAndSet("f1f2f3f4f5f6", 0, 5));
+            assertFalse(store.compareAndSet("f1f2f3f4f5f6", 0, 6));
+            assertEquals(store.get("f1f2f3f4f5f6"), 5);
+            assertTrue(store.compareAndSet("f1f2f3f4f5f6", 5, 6));
+
+            /* Short nonces are zero padded like the YubiHSM pads them */
+            assertTrue(store.compareAndSet("f1f2", 0, 1));
+            assertEquals(store.get("f1f2000000"), 1);
+            assertEquals(store.size(), 2);
+        } finally {
+            store.close();
+        }
+
+        store = new HotpCounterStore(new File(directory, "counters"), 0);
+        try {
+            assertEquals(store.get("f1f2f3f4f5f6"), 6);
+            assertEquals(store.getCapacity(), 16);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testJournalReplayedAfterCrash() throws Exception {
+        File data = new File(directory, "counters");
+        HotpCounterStore store = new HotpCounterStore(data, 16);
+        File snapshot = new File(directory, "snapshot");
+        Files.copy(data.toPath(), snapshot.toPath());
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(store.compareAndSet(String.format("0000000000%02x", i), 0, i + 100));
+        }
+
+        /* Crash before the records reach the disk: only the empty data file and the journal survive */
+        File journal = new File(directory, "snapshot.journal");
+        Files.copy(new File(data.getPath() + ".journal").toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        FileOutputStream torn = new FileOutputStream(journal, true);
+        torn.write(new byte[] {0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 9, 1, 2, 3, 4, 5});
+        torn.close();
+        store.close();
+
+        HotpCounterStore recovered = new HotpCounterStore(snapshot, 0);
+        try {
+            assertEquals(recovered.size(), 10);
+            for (int i = 0; i < 10; i++) {
+                assertEquals(recovered.get(String.format("0000000000%02x", i)), i + 100);
+            }
+            assertEquals(journal.length(), 0);
+        } finally {
+            recovered.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentCompareAndSet() throws Exception {
+        final HotpCounterStore store = new HotpCounterStore(new File(directory, "counters"), 1024);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        return store.compareAndSet("f1f2f3f4f5f6", 0, 1);
+                    }
+                }));
+            }
+            int won = 0;
+            for (Future<Boolean> result : results) {
+                won += result.get() ? 1 : 0;
+            }
+            assertEquals(won, 1);
+
+            List<Future<Boolean>> updates = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 800; i++) {
+                final String nonce = String.format("%012x", i + 1);
+                updates.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        return store.compareAndSet(nonce, 0, 1);
+                    }
+                }));
+            }
+            for (Future<Boolean> update : updates) {
+                assertTrue(update.get());
+            }
+            assertTrue(store.getSyncs() <= 801, "Syncs: " + store.getSyncs());
+            assertEquals(store.size(), 801);
+        } finally {
+            executor.shutdown();
+            store.close();
+        }
+    }
+
+    @Test
+    public void testHotpValidatorPersistsCounter() throws Exception {
+        String nonce = "f1f2f3f4f5f6";
+        YubiHSMSimulator simulator = SetupCommon.createSimulator("hotp");
+        try {
+            YubiHSM hsm = new YubiHSM(simulator.getTransport());
+            String aead = hsm.generateOathAEAD(nonce, 8192, "3132333435363738393031323334353637383930");
+            File data = new File(directory, "counters");
+
+            HotpCounterStore store = new HotpCounterStore(data, 16);
+            HotpValidator validator = new HotpValidator(hsm, 8192, store);
+            assertTrue(validator.validate(nonce, aead, "755224"));
+            assertFalse(validator.validate(nonce, aead, "755224"));
+            assertTrue(validator.validate(nonce, aead, "359152"));
+            assertEquals(store.get(nonce), 3);
+            store.close();
+
+            store = new HotpCounterStore(data, 16);
+            validator = new HotpValidator(hsm, 8192, store);
+            assertFalse(validator.validate(nonce, aead, "359152"));
+            assertTrue(validator.validate(nonce, aead, "969429"));
+            store.close();
+        } finally {
+            simulator.close();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.unitedid.yhsm.utility.YubiHSMSimulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+import static org.unitedid.yhsm.internal.Defines.YSM_BUFFER_AEAD_GENERATE;
+import static org.unitedid.yhsm.utility.Utils.byteArrayToHex;
+
+public class OathProvisionerTest {
+
+    private final String seed = "3132333435363738393031323334353637383930";
+    private YubiHSMSimulator simulator;
+    private YubiHSM hsm;
+    private File directory;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        simulator = SetupCommon.createSimulator("provision");
+        hsm = new YubiHSM(simulator.getTransport());
+        hsm.setPipelineDepth(8);
+    }
+
+    @AfterClass
+    public void tearDown() throws Exception {
+        simulator.close();
+    }
+
+    @BeforeMethod
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("provision").toFile();
+    }
+
+    @AfterMethod
+    public void deleteDirectory() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testCsv() throws Exception {
+        File input = write("seeds.csv", "# id,seed,nonce\n\ntoken-1," + seed + ",f1f2f3f4f5f6\ntoken-2," + seed + "\ntoken-3," + seed + "\n");
+        File output = new File(directory, "aeads");
+
+        final List<Long> progress = new ArrayList<Long>();
+        OathProvisioner provisioner = new OathProvisioner(hsm, 8192);
+        provisioner.setBatchSize(2);
+        provisioner.setProgress(new OathProvisioner.Progress() {
+            public void update(long tokens, double tokensPerSecond) {
+                progress.add(tokens);
+            }
+        });
+        assertEquals(provision(provisioner, OathProvisioner.csv(input), output), 3);
+        assertEquals(progress.toString(), "[2, 3]");
+
+        List<OathProvisioner.Record> records = OathProvisioner.read(output);
+        assertEquals(records.size(), 3);
+        assertEquals(records.get(0).getId(), "token-1");
+        assertEquals(byteArrayToHex(records.get(0).getNonce()), "f1f2f3f4f5f6");
+
+        /* The YubiHSM picked distinct nonces for the others */
+        Set<String> nonces = new HashSet<String>();
+        for (OathProvisioner.Record record : records) {
+            nonces.add(byteArrayToHex(record.getNonce()));
+            assertEquals(hsm.validateOathHOTP(8192, byteArrayToHex(record.getNonce()), byteArrayToHex(record.getAead()), 0, "755224", 1), 1);
+        }
+        assertEquals(nonces.size(), 3);
+    }
+
+    @Test
+    public void testPskc() throws Exception {
+        File input = write("seeds.pskc", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<KeyContainer Version=\"1.0\" xmlns=\"urn:ietf:params:xml:ns:keyprov:pskc\">\n"
+                + "  <KeyPackage>\n"
+                + "    <Key Id=\"12345678\" Algorithm=\"urn:ietf:params:xml:ns:keyprov:pskc:hotp\">\n"
+                + "      <AlgorithmParameters><ResponseFormat Length=\"6\" Encoding=\"DECIMAL\"/></AlgorithmParameters>\n"
+                + "      <Data>\n"
+                + "        <Secret><PlainValue>MTIzNDU2Nzg5MDEyMzQ1Njc4OTA=</PlainValue></Secret>\n"
+                + "        <Counter><PlainValue>0</PlainValue></Counter>\n"
+                + "      </Data>\n"
+                + "    </Key>\n"
+                + "  </KeyPackage>\n"
+                + "</KeyContainer>\n");
+        File output = new File(directory, "aeads");
+
+        assertEquals(provision(new OathProvisioner(hsm, 8192), OathProvisioner.pskc(input), output), 1);
+        OathProvisioner.Record record = OathProvisioner.read(output).get(0);
+        assertEquals(record.getId(), "12345678");
+        assertEquals(hsm.validateOathHOTP(8192, byteArrayToHex(record.getNonce()), byteArrayToHex(record.getAead()), 0, "287082", 3), 2);
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            csv.append("token-").append(i).append(',').append(seed).append('\n');
+        }
+        File input = write("seeds.csv", csv.toString());
+        File output = new File(directory, "aeads");
+
+        OathProvisioner provisioner = new OathProvisioner(hsm, 8192);
+        provisioner.setBatchSize(4);
+        provision(provisioner, OathProvisioner.csv(write("partial.csv", csv.substring(0, csv.indexOf("token-6")))), output);
+
+        /* Interrupted in the middle of writing the sixth record */
+        RandomAccessFile file = new RandomAccessFile(output, "rw");
+        file.setLength(file.length() - 10);
+        file.close();
+
+        long generated = simulator.getCommandCount(YSM_BUFFER_AEAD_GENERATE);
+        assertEquals(provision(provisioner, OathProvisioner.csv(input), output), 5);
+        assertEquals(simulator.getCommandCount(YSM_BUFFER_AEAD_GENERATE), generated + 5);
+
+        List<OathProvisioner.Record> records = OathProvisioner.read(output);
+        assertEquals(records.size(), 10);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(records.get(i).getId(), "token-" + i);
+        }
+
+        try {
+            provision(new OathProvisioner(hsm, 8193), OathProvisioner.csv(input), output);
+            fail("Resumed with another key handle");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("key handle"));
+        }
+        try {
+            provision(provisioner, OathProvisioner.csv(write("other.csv", "other," + seed + "\n")), output);
+            fail("Resumed with other tokens");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("token-0"));
+        }
+    }
+
+    private long provision(OathProvisioner provisioner, OathProvisioner.SeedSource source, File output) throws Exception {
+        try {
+            return provisioner.provision(source, output);
+        } finally {
+            source.close();
+        }
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(directory, name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
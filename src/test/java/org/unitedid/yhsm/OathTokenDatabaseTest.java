@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.unitedid.yhsm.internal.YubiHSMInputException;
+import org.unitedid.yhsm.utility.Utils;
+import org.unitedid.yhsm.utility.YubiHSMSimulator;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.unitedid.yhsm.internal.Defines.YSM_HMAC_SHA1_GENERATE;
+
+public class OathTokenDatabaseTest {
+
+    private final byte[] nonce = {(byte) 0xf1, (byte) 0xf2, (byte) 0xf3, (byte) 0xf4, (byte) 0xf5, (byte) 0xf6};
+    private YubiHSMSimulator simulator;
+    private YubiHSM hsm;
+    private byte[] aead;
+    private File directory;
+    private HotpCounterStore store;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        simulator = SetupCommon.createSimulator("tokendb");
+        hsm = new YubiHSM(simulator.getTransport());
+        aead = Utils.hexToByteArray(hsm.generateOathAEAD("f1f2f3f4f5f6", 8192, "3132333435363738393031323334353637383930"));
+    }
+
+    @AfterClass
+    public void tearDown() throws Exception {
+        simulator.close();
+    }
+
+    @BeforeMethod
+    public void openStore() throws Exception {
+        directory = Files.createTempDirectory("tokendb").toFile();
+        store = new HotpCounterStore(new File(directory, "counters"), 1024);
+    }
+
+    @AfterMethod
+    public void closeStore() throws Exception {
+        store.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testHotp() throws Exception {
+        OathTokenDatabase db = new OathTokenDatabase(hsm, store, 16);
+        db.putHotp(42, nonce, 8192, aead, 0);
+
+        long hmacs = simulator.getCommandCount(YSM_HMAC_SHA1_GENERATE);
+        assertTrue(db.validate(42, 969429, 6));
+        assertEquals(simulator.getCommandCount(YSM_HMAC_SHA1_GENERATE), hmacs + 4);
+        assertEquals(db.getCounter(42), 4);
+
+        assertFalse(db.validate(42, "969429"));
+        assertTrue(db.validate(42, "338314"));
+        assertEquals(db.getCounter(42), 5);
+        assertFalse(db.validate(43, "338314"));
+    }
+
+    @Test
+    public void testTotp() throws Exception {
+        Clock clock = Clock.fixed(Instant.ofEpochSecond(2 * 30 + 5), ZoneOffset.UTC);
+        OathTokenDatabase db = new OathTokenDatabase(hsm, store, 16, 10, 1, 1, clock);
+        db.putTotp(7, nonce, 8192, aead, 30);
+
+        /* The token runs a step ahead */
+        assertTrue(db.validate(7, "969429"));
+        assertEquals(db.getCounter(7), 3);
+        assertEquals(db.getDrift(7), 1);
+
+        /* Only the step after the accepted one is left in the window */
+        long hmacs = simulator.getCommandCount(YSM_HMAC_SHA1_GENERATE);
+        assertFalse(db.validate(7, "969429"));
+        assertEquals(simulator.getCommandCount(YSM_HMAC_SHA1_GENERATE), hmacs + 1);
+    }
+
+    @Test
+    public void testIndex() throws Exception {
+        OathTokenDatabase db = new OathTokenDatabase(hsm, store, 1000);
+        for (long id = 0; id < 1000; id++) {
+            db.putHotp(id * 7919, nonce, 8192, aead, id);
+        }
+        assertEquals(db.size(), 1000);
+        for (long id = 0; id < 1000; id += 2) {
+            assertTrue(db.remove(id * 7919));
+        }
+        assertFalse(db.remove(0));
+        assertEquals(db.size(), 500);
+        for (long id = 0; id < 1000; id++) {
+            assertEquals(db.contains(id * 7919), id % 2 == 1);
+            assertEquals(db.getCounter(id * 7919), id % 2 == 1 ? id : -1);
+        }
+        for (long id = 0; id < 500; id++) {
+            db.putHotp(-id, nonce, 8192, aead, 0);
+        }
+        assertEquals(db.size(), 1000);
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        OathTokenDatabase db = new OathTokenDatabase(hsm, store, 16);
+        db.putHotp(1, nonce, 8192, aead, 3);
+        db.putTotp(2, new byte[] {1, 2, 3, 4, 5, 6}, 8192, aead, 60);
+        File file = File.createTempFile("tokens", ".db");
+        try {
+            db.save(file);
+            OathTokenDatabase loaded = new OathTokenDatabase(hsm, store, 16);
+            loaded.load(file);
+            assertEquals(loaded.size(), 2);
+            assertEquals(loaded.getCounter(1), 3);
+            assertEquals(loaded.getCounter(2), -1);
+            assertTrue(loaded.validate(1, "969429"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testCountersSurviveRestart() throws Exception {
+        Clock clock = Clock.fixed(Instant.ofEpochSecond(2 * 30 + 5), ZoneOffset.UTC);
+        byte[] totpNonce = {1, 2, 3, 4, 5, 6};
+        byte[] totpAead = Utils.hexToByteArray(hsm.generateOathAEAD("010203040506", 8192, "3132333435363738393031323334353637383930"));
+        OathTokenDatabase db = new OathTokenDatabase(hsm, store, 16, 10, 1, 1, clock);
+        db.putHotp(1, nonce, 8192, aead, 0);
+        db.putTotp(2, totpNonce, 8192, totpAead, 30);
+        assertTrue(db.validate(1, "969429"));
+        assertTrue(db.validate(2, "969429"));
+
+        /* A new process with the tokens provisioned from scratch */
+        store.close();
+        store = new HotpCounterStore(new File(directory, "counters"), 0);
+        db = new OathTokenDatabase(hsm, store, 16, 10, 1, 1, clock);
+        db.putHotp(1, nonce, 8192, aead, 0);
+        db.putTotp(2, totpNonce, 8192, totpAead, 30);
+        assertEquals(db.getCounter(1), 4);
+        assertEquals(db.getCounter(2), 3);
+        assertEquals(db.getDrift(2), 1);
+        assertFalse(db.validate(1, "969429"));
+        assertFalse(db.validate(2, "969429"));
+        assertTrue(db.validate(1, "338314"));
+    }
+
+    @Test(expectedExceptions = YubiHSMInputException.class)
+    public void testOtpLength() throws Exception {
+        OathTokenDatabase db = new OathTokenDatabase(hsm, store, 16);
+        db.putHotp(1, nonce, 8192, aead, 0);
+        long hmacs = simulator.getCommandCount(YSM_HMAC_SHA1_GENERATE);
+        try {
+            db.validate(1, 969429, 9);
+        } finally {
+            assertEquals(simulator.getCommandCount(YSM_HMAC_SHA1_GENERATE), hmacs);
+        }
+    }
+}
@@ -19,8 +19,19 @@ package org.unitedid.yhsm;
 import org.testng.annotations.AfterTest;
 import org.testng.annotations.BeforeTest;
 import org.unitedid.yhsm.internal.DeviceHandler;
+import org.unitedid.yhsm.utility.ModHex;
+import org.unitedid.yhsm.utility.Utils;
+import org.unitedid.yhsm.utility.YubiHSMSimulator;
+
+import java.io.File;
+import java.util.Arrays;
 
 public class SetupCommon {
+    /** Run the suite against simulators instead of hardware with -Dhsm.test.deviceName=simulator */
+    public static final String SIMULATOR = "simulator";
+    public static final String DEFAULT_DEVICE = "/dev/ttyACM0";
+    private static YubiHSMSimulator simulator;
+
     public YubiHSM hsm;
     public DeviceHandler deviceHandler;
     public int keyHandle = 8192;
@@ -31,11 +42,15 @@ public class SetupCommon {
 
     @BeforeTest
     public void setUp() throws Exception {
-        String deviceName = "/dev/ttyACM0";
+        String deviceName = DEFAULT_DEVICE;
         if (System.getProperty("hsm.test.deviceName") != null) {
             deviceName = System.getProperty("hsm.test.deviceName");
         }
-        hsm = new YubiHSM(deviceName);
+        if (isSimulated()) {
+            hsm = new YubiHSM(getSimulator().getTransport());
+        } else {
+            hsm = new YubiHSM(deviceName);
+        }
         deviceHandler = hsm.getRawDevice();
     }
 
@@ -45,4 +60,48 @@ public class SetupCommon {
         deviceHandler = null;
     }
 
+    /** True when running against the simulator, also the default when no device is given and none is attached */
+    public static boolean isSimulated() {
+        String deviceName = System.getProperty("hsm.test.deviceName");
+        return SIMULATOR.equals(deviceName) || (deviceName == null && !new File(DEFAULT_DEVICE).exists());
+    }
+
+    /** The simulator shared by the test classes, it keeps state between tests like a real YubiHSM */
+    public static synchronized YubiHSMSimulator getSimulator() throws Exception {
+        if (simulator == null) {
+            simulator = createSimulator(SIMULATOR);
+        }
+        return simulator;
+    }
+
+    /**
+     * Create a simulator holding the keys and the admin YubiKey that ConfigureHSM loads into a real YubiHSM.
+     *
+     * @param name the simulator name
+     * @return the simulator
+     */
+    public static YubiHSMSimulator createSimulator(String name) throws Exception {
+        YubiHSMSimulator sim = new YubiHSMSimulator(name);
+        for (int i = 0; i <= 30; i++) {
+            sim.addKey(i + 1, 1 << i, Utils.hexToByteArray(duplicateStr(String.format("%02x", i + 1), 32)));
+        }
+        sim.addKey(0x1000, 0x200, Utils.hexToByteArray(duplicateStr("06", 32)));
+        sim.addKey(0x1001, 0xe000, Utils.hexToByteArray(duplicateStr("1001", 16)));
+        sim.addKey(0x2000, 0xffffffff, Utils.hexToByteArray(duplicateStr("2000", 16)));
+        sim.addKey(0x3031, 0x10000, Utils.hexToByteArray("303132333435363738393a3b3c3d3e3f40414243000000000000000000000000"));
+        sim.addKey(0x20000002, 0x20000002, Utils.hexToByteArray(duplicateStr("20000002", 8)));
+        sim.addKey(0x20000008, 0x20000008, Utils.hexToByteArray(duplicateStr("20000008", 8)));
+        sim.setMasterKey(Arrays.copyOf(Utils.hexToByteArray("badabada"), 32));
+        sim.addYubiKey(Utils.hexToByteArray(ModHex.decode("ftftftfteeee")), Utils.hexToByteArray("f0f1f2f3f4f5"),
+                Utils.hexToByteArray(duplicateStr("4d", 16)));
+        return sim;
+    }
+
+    public static String duplicateStr(String data, int times) {
+        StringBuilder buffer = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            buffer.append(data);
+        }
+        return buffer.toString();
+    }
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.unitedid.yhsm.internal.OATH;
+import org.unitedid.yhsm.utility.YubiHSMSimulator;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.unitedid.yhsm.internal.Defines.YSM_HMAC_SHA1_GENERATE;
+
+public class TotpValidatorTest {
+
+    /** The OTPs of steps 0 to 4 of the RFC 4226 test seed */
+    private static final String[] OTPS = {"755224", "287082", "359152", "969429", "338314"};
+
+    private final String nonce = "f1f2f3f4f5f6";
+    private final int keyHandle = 8192;
+    private YubiHSMSimulator simulator;
+    private YubiHSM hsm;
+    private String aead;
+    private MutableClock clock;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        simulator = SetupCommon.createSimulator("totp");
+        hsm = new YubiHSM(simulator.getTransport());
+        aead = hsm.generateOathAEAD(nonce, keyHandle, "3132333435363738393031323334353637383930");
+        clock = new MutableClock();
+    }
+
+    @AfterClass
+    public void tearDown() throws Exception {
+        simulator.close();
+    }
+
+    @Test
+    public void testStepOrder() {
+        long[] steps = new long[5];
+        assertEquals(OATH.totpSteps(10, 2, 2, 0, steps), 5);
+        assertEquals(steps, new long[] {10, 9, 11, 8, 12});
+
+        assertEquals(OATH.totpSteps(10, 2, 2, 10, steps), 3);
+        assertEquals(steps[0], 10);
+        assertEquals(steps[1], 11);
+        assertEquals(steps[2], 12);
+
+        /* Steps before 0 do not exist */
+        assertEquals(OATH.totpSteps(1, 3, 1, 0, steps), 3);
+        assertEquals(steps[0], 1);
+        assertEquals(steps[1], 0);
+        assertEquals(steps[2], 2);
+
+        assertEquals(OATH.totpSteps(10, 2, 2, 13, steps), 0);
+    }
+
+    @Test
+    public void testCurrentStepCostsOneHmac() throws Exception {
+        TotpValidator validator = new TotpValidator(hsm, keyHandle, 30, 2, 2, clock);
+        clock.setSeconds(2 * 30 + 5);
+
+        long hmacs = simulator.getCommandCount(YSM_HMAC_SHA1_GENERATE);
+        assertTrue(validator.validate(nonce, aead, OTPS[2]));
+        assertEquals(simulator.getCommandCount(YSM_HMAC_SHA1_GENERATE), hmacs + 1);
+        assertEquals(validator.getLastStep(nonce, aead), 2);
+        assertEquals(validator.getDrift(nonce, aead), 0);
+    }
+
+    @Test
+    public void testReplayDoesNotTouchHsm() throws Exception {
+        TotpValidator validator = new TotpValidator(hsm, keyHandle, 30, 1, 1, clock);
+        clock.setSeconds(3 * 30 + 5);
+        assertTrue(validator.validate(nonce, aead, OTPS[3]));
+
+        long hmacs = simulator.getCommandCount(YSM_HMAC_SHA1_GENERATE);
+        assertFalse(validator.validate(nonce, aead, OTPS[3]));
+        assertEquals(simulator.getCommandCount(YSM_HMAC_SHA1_GENERATE), hmacs);
+
+        /* An earlier step is never accepted once a later one was used */
+        assertFalse(validator.validate(nonce, aead, OTPS[2]));
+        assertEquals(simulator.getCommandCount(YSM_HMAC_SHA1_GENERATE), hmacs);
+
+        /* The next step is accepted once it is expected */
+        clock.setSeconds(4 * 30 + 5);
+        assertTrue(validator.validate(nonce, aead, OTPS[4]));
+    }
+
+    @Test
+    public void testDriftIsLearned() throws Exception {
+        TotpValidator validator = new TotpValidator(hsm, keyHandle, 30, 1, 1, clock);
+        clock.setSeconds(1 * 30 + 5);
+
+        /* The token runs one step ahead */
+        assertTrue(validator.validate(nonce, aead, OTPS[2]));
+        assertEquals(validator.getDrift(nonce, aead), 1);
+
+        clock.setSeconds(2 * 30 + 5);
+        long hmacs = simulator.getCommandCount(YSM_HMAC_SHA1_GENERATE);
+        assertTrue(validator.validate(nonce, aead, OTPS[3]));
+        assertEquals(simulator.getCommandCount(YSM_HMAC_SHA1_GENERATE), hmacs + 1);
+
+        validator.forget(nonce, aead);
+        assertEquals(validator.getDrift(nonce, aead), 0);
+        assertEquals(validator.getLastStep(nonce, aead), -1);
+    }
+
+    /** A clock that only moves when told to */
+    private static class MutableClock extends Clock {
+        private volatile long millis;
+
+        void setSeconds(long seconds) {
+            millis = seconds * 1000;
+        }
+
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.unitedid.yhsm.internal.YubiHSMCommandFailedException;
+import org.unitedid.yhsm.internal.YubiHSMErrorException;
+import org.unitedid.yhsm.utility.Utils;
+import org.unitedid.yhsm.utility.YubiHSMSimulator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.*;
+import static org.unitedid.yhsm.internal.Defines.YSM_DB_YUBIKEY_AEAD_STORE;
+
+public class YubiHSMPoolTest {
+
+    private List<YubiHSMSimulator> simulators = new ArrayList<YubiHSMSimulator>();
+    private YubiHSMPool pool;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        List<YubiHSM> devices = new ArrayList<YubiHSM>();
+        for (int i = 0; i < 3; i++) {
+            YubiHSMSimulator simulator = SetupCommon.createSimulator("pool" + i);
+            simulator.setLatency(500000);
+            simulators.add(simulator);
+            devices.add(new YubiHSM(simulator.getTransport()));
+        }
+        pool = new YubiHSMPool(devices);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        for (YubiHSMSimulator simulator : simulators) {
+            simulator.close();
+        }
+        simulators.clear();
+    }
+
+    @Test
+    public void testVerifyKeyHandles() throws Exception {
+        pool.verifyKeyHandles(0x2000, 0x3031, 0x1001, 2);
+    }
+
+    @Test(expectedExceptions = YubiHSMErrorException.class)
+    public void testVerifyKeyHandlesMissingKey() throws Exception {
+        pool.verifyKeyHandles(0x4711);
+        simulators.get(1).addKey(0x4711, YubiHSMSimulator.PERMISSION_ALL, new byte[16]);
+        pool.verifyKeyHandles(0x4711);
+    }
+
+    @Test(expectedExceptions = YubiHSMErrorException.class)
+    public void testVerifyKeyHandlesDifferentKey() throws Exception {
+        simulators.get(2).addKey(0x2000, YubiHSMSimulator.PERMISSION_ALL, new byte[32]);
+        pool.verifyKeyHandles(0x2000);
+    }
+
+    @Test
+    public void testSpreadsLoad() throws Exception {
+        final int threads = 6;
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int c = 0; c < 50; c++) {
+                            assertEquals(pool.echo("pool"), "pool");
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        assertNull(failure.get());
+
+        long total = 0;
+        for (YubiHSMPool.DeviceUtilisation utilisation : pool.getUtilisation()) {
+            assertTrue(utilisation.getCompleted() > 0, utilisation.toString());
+            assertTrue(utilisation.getUtilisation() > 0.0 && utilisation.getUtilisation() <= 1.0);
+            assertEquals(utilisation.getOutstanding(), 0);
+            total += utilisation.getCompleted();
+        }
+        assertEquals(total, threads * 50);
+    }
+
+    @Test
+    public void testYubikeyPinnedToOneDevice() throws Exception {
+        byte[] secret = Utils.hexToByteArray("fcacd309a20ce1809c2db257f0e8d6ea534543524554");
+        String otp = "828e71152b15a4823bb34b6e6a5d4353";
+        for (int i = 1; i <= 6; i++) {
+            String publicId = String.format("4d4d4d%06x", i);
+            String aead = pool.getYubikeyDevice(publicId).generateAEAD(publicId, 0x2000, secret).get("aead");
+            assertEquals((int) pool.validateYubikeyOtp(publicId, 0x2000, aead, otp).get("useCtr"), 1);
+            try {
+                pool.validateYubikeyOtp(publicId, 0x2000, aead, otp);
+                fail("Replayed OTP validated on another device");
+            } catch (YubiHSMCommandFailedException e) {
+                assertEquals(e.getMessage(), "Command YSM_DB_OTP_VALIDATE failed: YSM_OTP_REPLAY");
+            }
+            assertSame(pool.getYubikeyDevice(publicId.toUpperCase()), pool.getYubikeyDevice(publicId));
+        }
+
+        long stores = 0;
+        for (YubiHSMSimulator simulator : simulators) {
+            stores += simulator.getCommandCount(YSM_DB_YUBIKEY_AEAD_STORE);
+        }
+        assertEquals(stores, 6);
+    }
+}
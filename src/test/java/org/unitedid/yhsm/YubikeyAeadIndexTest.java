@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.unitedid.yhsm.internal.OtpDecodeResult;
+import org.unitedid.yhsm.utility.Utils;
+import org.unitedid.yhsm.utility.YubiHSMSimulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class YubikeyAeadIndexTest {
+
+    private final String publicId = "4d4d4d000001";
+    private final String secret = "fcacd309a20ce1809c2db257f0e8d6ea" + "534543524554";
+    private YubiHSMSimulator simulator;
+    private YubiHSM hsm;
+    private String aead;
+    private File directory;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        simulator = SetupCommon.createSimulator("aeadindex");
+        hsm = new YubiHSM(simulator.getTransport());
+        aead = hsm.generateAEAD(publicId, 0x2000, Utils.hexToByteArray(secret)).get("aead");
+    }
+
+    @AfterClass
+    public void tearDown() throws Exception {
+        simulator.close();
+    }
+
+    @BeforeMethod
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("aeadindex").toFile();
+    }
+
+    @AfterMethod
+    public void deleteDirectory() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testDecode() throws Exception {
+        YubikeyAeadIndex index = new YubikeyAeadIndex(hsm, new File(directory, "index"));
+        assertEquals(index.size(), 0);
+        assertNull(index.decode(publicId + "828e71152b15a4823bb34b6e6a5d4353"));
+
+        index.rebuild(Arrays.asList(new YubikeyAeadIndex.Entry(publicId, 0x2000, aead)));
+        OtpDecodeResult result = index.decode(publicId + "828e71152b15a4823bb34b6e6a5d4353");
+        assertEquals(result.getUseCtr(), 1);
+        assertEquals(result.getTsLow(), 24133);
+        assertNull(index.decode("4d4d4d000002828e71152b15a4823bb34b6e6a5d4353"));
+
+        /* The binary path reads the OTP at an offset, ie from a request buffer */
+        byte[] request = Utils.hexToByteArray("ffff" + publicId + "c91e8472c2a76459a2a8b81c32d44955");
+        result = index.decode(request, 2);
+        assertEquals(result.getUseCtr(), 2);
+        assertEquals(result.getSessionCtr(), 4);
+    }
+
+    @Test
+    public void testRebuildAndReload() throws Exception {
+        File file = new File(directory, "index");
+        YubikeyAeadIndex index = new YubikeyAeadIndex(hsm, file);
+        List<YubikeyAeadIndex.Entry> entries = new ArrayList<YubikeyAeadIndex.Entry>();
+        byte[] aeadBA = Utils.hexToByteArray(aead);
+        for (int i = 0; i < 1000; i++) {
+            entries.add(new YubikeyAeadIndex.Entry(String.format("%012x", i * 7919L), i, Utils.byteArrayToHex(aeadBA)));
+        }
+        entries.add(new YubikeyAeadIndex.Entry("000000000000", 0x2000, aead));
+        index.rebuild(entries);
+        assertEquals(index.size(), 1000);
+        assertEquals(index.getKeyHandle("000000000000"), 0x2000);
+        for (int i = 1; i < 1000; i++) {
+            assertEquals(index.getKeyHandle(String.format("%012x", i * 7919L)), i);
+        }
+        assertFalse(index.contains("000000000001"));
+        assertEquals(Utils.byteArrayToHex(index.getAead(String.format("%012x", 7919L))), aead);
+
+        /* A second reader maps the file lazily and picks up swaps with reload */
+        YubikeyAeadIndex reader = new YubikeyAeadIndex(hsm, file);
+        assertEquals(reader.size(), 1000);
+        index.rebuild(Arrays.asList(new YubikeyAeadIndex.Entry(publicId, 0x2000, aead)));
+        assertTrue(reader.contains("000000000000"));
+        reader.reload();
+        assertFalse(reader.contains("000000000000"));
+        assertTrue(reader.contains(publicId.toUpperCase()));
+        assertEquals(directory.listFiles().length, 1);
+    }
+}
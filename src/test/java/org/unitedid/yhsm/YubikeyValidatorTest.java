@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.unitedid.yhsm.utility.Utils;
+import org.unitedid.yhsm.utility.YubiHSMSimulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.unitedid.yhsm.internal.Defines.YSM_AEAD_YUBIKEY_OTP_DECODE;
+
+public class YubikeyValidatorTest {
+
+    private final String publicId = "4d4d4d000001";
+    private final String otp1 = "828e71152b15a4823bb34b6e6a5d4353"; /* useCtr 1, sessionCtr 0 */
+    private final String otp2 = "c91e8472c2a76459a2a8b81c32d44955"; /* useCtr 2, sessionCtr 4 */
+    private YubiHSMSimulator simulator;
+    private YubiHSM hsm;
+    private String aead;
+    private File directory;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        simulator = SetupCommon.createSimulator("validator");
+        hsm = new YubiHSM(simulator.getTransport());
+        aead = hsm.generateAEAD(publicId, 0x2000, Utils.hexToByteArray("fcacd309a20ce1809c2db257f0e8d6ea534543524554")).get("aead");
+    }
+
+    @AfterClass
+    public void tearDown() throws Exception {
+        simulator.close();
+    }
+
+    @BeforeMethod
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("validator").toFile();
+    }
+
+    @AfterMethod
+    public void deleteDirectory() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testReplays() throws Exception {
+        YubikeyValidator validator = new YubikeyValidator(hsm, new File(directory, "state"));
+        try {
+            assertNull(validator.getLastOtp(publicId));
+            assertTrue(validator.validate(publicId, 0x2000, aead, otp2));
+            assertEquals(validator.getLastOtp(publicId).getUseCtr(), 2);
+
+            /* The same OTP again never reaches the YubiHSM */
+            long decodes = simulator.getCommandCount(YSM_AEAD_YUBIKEY_OTP_DECODE);
+            assertFalse(validator.validate(publicId, 0x2000, aead, otp2));
+            assertEquals(simulator.getCommandCount(YSM_AEAD_YUBIKEY_OTP_DECODE), decodes);
+
+            /* An older OTP is caught by its counters */
+            assertFalse(validator.validate(publicId, 0x2000, aead, otp1));
+            assertEquals(simulator.getCommandCount(YSM_AEAD_YUBIKEY_OTP_DECODE), decodes + 1);
+            assertEquals(validator.getReplays(), 2);
+        } finally {
+            validator.close();
+        }
+    }
+
+    @Test
+    public void testStatePersisted() throws Exception {
+        File state = new File(directory, "state");
+        File indexFile = new File(directory, "index");
+        YubikeyAeadIndex index = new YubikeyAeadIndex(hsm, indexFile);
+        index.rebuild(Arrays.asList(new YubikeyAeadIndex.Entry(publicId, 0x2000, aead)));
+
+        YubikeyValidator validator = new YubikeyValidator(hsm, index, state, 10);
+        assertTrue(validator.validate(publicId + otp1));
+        assertFalse(validator.validate("4d4d4d000002" + otp1));
+        for (int i = 0; i < 100 && !state.exists(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(state.exists());
+        validator.close();
+
+        validator = new YubikeyValidator(hsm, index, state, 10);
+        try {
+            assertEquals(validator.size(), 1);
+            assertFalse(validator.validate(publicId + otp1));
+            assertTrue(validator.validate(publicId + otp2));
+        } finally {
+            validator.close();
+        }
+    }
+
+    @Test
+    public void testAcceptedStateSurvivesCrash() throws Exception {
+        File state = new File(directory, "state");
+        YubikeyValidator crashed = new YubikeyValidator(hsm, null, state, 3600000);
+        try {
+            assertTrue(crashed.validate(publicId, 0x2000, aead, otp1));
+            assertEquals(crashed.getSyncs(), 1);
+            assertFalse(state.exists());
+
+            /* A crash in the middle of the next append leaves a torn entry */
+            RandomAccessFile journal = new RandomAccessFile(new File(directory, "state.journal"), "rw");
+            try {
+                journal.seek(journal.length());
+                journal.write(new byte[10]);
+            } finally {
+                journal.close();
+            }
+
+            YubikeyValidator validator = new YubikeyValidator(hsm, null, state, 3600000);
+            try {
+                assertEquals(validator.getLastOtp(publicId).getUseCtr(), 1);
+                assertFalse(validator.validate(publicId, 0x2000, aead, otp1));
+                assertTrue(validator.validate(publicId, 0x2000, aead, otp2));
+            } finally {
+                validator.close();
+            }
+        } finally {
+            crashed.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentValidation() throws Exception {
+        final YubikeyValidator validator = new YubikeyValidator(hsm, new File(directory, "state"));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        return validator.validate(publicId, 0x2000, aead, otp1);
+                    }
+                }));
+            }
+            int accepted = 0;
+            for (Future<Boolean> result : results) {
+                accepted += result.get() ? 1 : 0;
+            }
+            assertEquals(accepted, 1);
+            assertEquals(validator.getReplays(), 7);
+        } finally {
+            executor.shutdown();
+            validator.close();
+        }
+    }
+}
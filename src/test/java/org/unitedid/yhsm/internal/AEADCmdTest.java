@@ -59,6 +59,15 @@ public class AEADCmdTest extends SetupCommon {
         assertTrue(hsm.validateAEAD(nonce, 0x00002000, aead, secretBA));
     }
 
+    @Test
+    public void testGenerateAEADResult() throws Exception {
+        byte[] secretBA = Utils.hexToByteArray("ec1c263a5d9bd270db0b19b18ca5396b");
+        AeadResult result = hsm.generateAEAD(Utils.hexToByteArray(nonce), 0x00002000, secretBA);
+        assertEquals(result.getNonce(), Utils.hexToByteArray(nonce));
+        assertTrue(hsm.validateAEAD(nonce, 0x00002000, Utils.byteArrayToHex(result.getAead()), secretBA));
+        assertEquals(result.toMap(), hsm.generateAEAD(nonce, 0x00002000, secretBA));
+    }
+
     @Test
     public void testGenerateAEADBlocked() throws Exception {
         DefaultArtifactVersion minVersion = new DefaultArtifactVersion("1.0.4");
@@ -20,11 +20,14 @@ import org.testng.annotations.AfterTest;
 import org.testng.annotations.BeforeTest;
 import org.testng.annotations.Test;
 import org.unitedid.yhsm.SetupCommon;
+import org.unitedid.yhsm.utility.Utils;
 
+import java.util.List;
 import java.util.Map;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.fail;
 import static org.unitedid.yhsm.internal.Defines.YSM_DATA_BUF_SIZE;
 
 public class BufferCmdTest extends SetupCommon {
@@ -57,6 +60,24 @@ public class BufferCmdTest extends SetupCommon {
         assertNotSame(aead1, aead2);
     }
 
+    @Test
+    public void testBufferAEADForManyKeys() throws YubiHSMCommandFailedException, YubiHSMErrorException, YubiHSMInputException {
+        String nonce = "112233445566";
+        hsm.loadRandomBufferData(20, 0);
+        List<byte[]> aeads = hsm.generateBufferAEAD(Utils.hexToByteArray(nonce), new int[] {keyHandle, 0x20000002});
+
+        assertEquals(aeads.size(), 2);
+        assertEquals(Utils.byteArrayToHex(aeads.get(0)), hsm.generateBufferAEAD(nonce, keyHandle).get("aead"));
+        assertEquals(Utils.byteArrayToHex(aeads.get(1)), hsm.generateBufferAEAD(nonce, 0x20000002).get("aead"));
+
+        try {
+            hsm.generateBufferAEAD(new byte[6], new int[] {keyHandle});
+            fail("Buffer AEAD with a zero nonce for many keys");
+        } catch (YubiHSMInputException e) {
+            assertEquals(e.getMessage(), "Nonce must be set, the YubiHSM would pick a different nonce for each key handle");
+        }
+    }
+
     @Test
     public void testWouldOverflowBuffer() throws YubiHSMErrorException {
         assertEquals(hsm.loadRandomBufferData(16, YSM_DATA_BUF_SIZE - 8), 64);
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm.internal;
+
+import org.testng.SkipException;
+import org.testng.annotations.AfterTest;
+import org.testng.annotations.BeforeTest;
+import org.testng.annotations.Test;
+import org.unitedid.yhsm.SetupCommon;
+import org.unitedid.yhsm.YubiHSM;
+import org.unitedid.yhsm.utility.YubiHSMSimulator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.unitedid.yhsm.internal.Defines.YSM_ECHO;
+
+public class CommandHandlerTest {
+
+    private List<DeviceHandler> devices = new ArrayList<DeviceHandler>();
+    private List<YubiHSMSimulator> simulators = new ArrayList<YubiHSMSimulator>();
+
+    @BeforeTest
+    public void setUp() throws Exception {
+        if (SetupCommon.isSimulated()) {
+            /* Simulated devices spending 1 ms per command, roughly a USB round trip */
+            for (int i = 0; i < 4; i++) {
+                YubiHSMSimulator simulator = SetupCommon.createSimulator("simulator" + i);
+                simulator.setLatency(1000000);
+                simulators.add(simulator);
+                devices.add(new YubiHSM(simulator.getTransport()).getRawDevice());
+            }
+        }
+    }
+
+    @AfterTest
+    public void tearDown() throws Exception {
+        devices.clear();
+        for (YubiHSMSimulator simulator : simulators) {
+            simulator.close();
+        }
+        simulators.clear();
+    }
+
+    @Test
+    public void testDevicesServedConcurrently() throws Exception {
+        if (simulators.size() < 2) {
+            throw new SkipException("This test requires two or more simulated devices");
+        }
+        YubiHSMSimulator slow = simulators.get(0);
+        final DeviceHandler slowDevice = devices.get(0);
+
+        /* Keep an echo in flight on the first device while the others are used */
+        slow.setLatency(YSM_ECHO, 300000000L);
+        final CountDownLatch slowDone = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        try {
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        EchoCmd.execute(slowDevice, "slow");
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    } finally {
+                        slowDone.countDown();
+                    }
+                }
+            }).start();
+            while (slow.getCommandCount(YSM_ECHO) == 0 && slowDone.getCount() > 0) {
+                Thread.sleep(1);
+            }
+
+            for (DeviceHandler device : devices.subList(1, devices.size())) {
+                assertEquals(EchoCmd.execute(device, "fast"), "fast");
+            }
+            assertEquals(slowDone.getCount(), 1, "The other devices waited for the first one");
+            slowDone.await();
+            assertNull(failure.get());
+        } finally {
+            slow.setLatency(YSM_ECHO, 1000000);
+        }
+    }
+}
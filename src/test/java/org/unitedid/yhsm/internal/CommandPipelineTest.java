@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm.internal;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.unitedid.yhsm.SetupCommon;
+import org.unitedid.yhsm.YubiHSM;
+import org.unitedid.yhsm.utility.Utils;
+import org.unitedid.yhsm.utility.YubiHSMSimulator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.testng.Assert.*;
+import static org.unitedid.yhsm.internal.Defines.*;
+
+public class CommandPipelineTest {
+
+    private YubiHSMSimulator simulator;
+    private YubiHSM hsm;
+    private DeviceHandler device;
+    private List<byte[]> data = new ArrayList<byte[]>();
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        simulator = SetupCommon.createSimulator("pipeline");
+        hsm = new YubiHSM(simulator.getTransport());
+        device = hsm.getRawDevice();
+        data.clear();
+        for (int i = 0; i < 50; i++) {
+            data.add(("Sample #" + i).getBytes());
+        }
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        simulator.close();
+    }
+
+    @Test
+    public void testPipelinedHMACMatchesStrict() throws Exception {
+        List<byte[]> strict = hsm.generateHMACSHA1(data, 0x3031);
+        hsm.setPipelineDepth(8);
+        List<byte[]> pipelined = hsm.generateHMACSHA1(data, 0x3031);
+
+        assertEquals(pipelined.size(), data.size());
+        for (int i = 0; i < data.size(); i++) {
+            assertEquals(pipelined.get(i), strict.get(i));
+        }
+        assertEquals(Utils.byteArrayToHex(pipelined.get(2)), Utils.byteArrayToHex(hsm.generateHMACSHA1(data.get(2), 0x3031, false)));
+        assertEquals(device.getPipelineDepth(), 8);
+    }
+
+    @Test
+    public void testPipelinedAEAD() throws Exception {
+        List<String> nonces = new ArrayList<String>();
+        for (int i = 0; i < data.size(); i++) {
+            nonces.add(String.format("f1f2f3f4%04x", i));
+        }
+        hsm.setPipelineDepth(4);
+        List<Map<String, String>> aeads = hsm.generateAEAD(nonces, 0x2000, data);
+
+        for (int i = 0; i < data.size(); i++) {
+            assertEquals(aeads.get(i).get("nonce"), nonces.get(i));
+            assertTrue(hsm.validateAEAD(nonces.get(i), 0x2000, aeads.get(i).get("aead"), data.get(i)));
+        }
+    }
+
+    @Test
+    public void testFallbackToStrictOnMismatch() throws Exception {
+        device.setPipelineDepth(4);
+        CommandPipeline pipeline = new CommandPipeline(device);
+        for (int i = 0; i < 10; i++) {
+            pipeline.addGroup(YSM_ECHO, Utils.addLengthToData(("echo" + i).getBytes()));
+            pipeline.addGroup(YSM_RANDOM_GENERATE, new byte[] {8});
+        }
+
+        /* The first echo response is lost, the pipeline sees the random response where it expects the echo */
+        simulator.dropResponses(1);
+        byte[][] responses = pipeline.execute();
+
+        assertEquals(device.getPipelineDepth(), 1);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(new String(responses[2 * i], 1, responses[2 * i][0]), "echo" + i);
+            assertEquals(responses[2 * i + 1].length, 9);
+        }
+        assertEquals(hsm.echo("after"), "after");
+    }
+
+    @Test
+    public void testListenerStopsSending() throws Exception {
+        device.setPipelineDepth(4);
+        CommandPipeline pipeline = new CommandPipeline(device);
+        for (int i = 0; i < 20; i++) {
+            pipeline.addGroup(YSM_ECHO, Utils.addLengthToData(("echo" + i).getBytes()));
+        }
+
+        byte[][] responses = pipeline.execute(new CommandPipeline.Listener() {
+            public boolean received(int index, byte[] response) {
+                return index < 5;
+            }
+        });
+
+        /* Index 5 stops the pipeline, the three commands in flight behind it are still read */
+        assertEquals(simulator.getCommandCount(YSM_ECHO), 9);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(responses[i] != null, i < 9);
+        }
+        assertEquals(hsm.echo("after"), "after");
+    }
+}
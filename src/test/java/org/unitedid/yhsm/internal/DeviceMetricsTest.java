@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm.internal;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.unitedid.yhsm.SetupCommon;
+import org.unitedid.yhsm.YubiHSM;
+import org.unitedid.yhsm.utility.YubiHSMSimulator;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+
+import static org.testng.Assert.*;
+import static org.unitedid.yhsm.internal.Defines.*;
+
+public class DeviceMetricsTest {
+
+    private YubiHSMSimulator simulator;
+    private YubiHSM hsm;
+    private DeviceMetrics metrics;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        simulator = SetupCommon.createSimulator("metrics");
+        hsm = new YubiHSM(simulator.getTransport());
+        metrics = hsm.getMetrics();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        metrics.unregisterMBean();
+        simulator.close();
+    }
+
+    @Test
+    public void testDisabledByDefault() throws Exception {
+        hsm.echo("off");
+
+        assertFalse(metrics.isEnabled());
+        assertTrue(metrics.getCommandStatistics().isEmpty());
+        assertTrue(metrics.getWrittenBytes() > 0);
+        assertEquals(metrics.getReadBytes(), hsm.getRawDevice().getReadBytes());
+    }
+
+    @Test
+    public void testLatencyAndBytes() throws Exception {
+        metrics.setEnabled(true);
+        simulator.setLatency(YSM_ECHO, 2000000);
+        for (int i = 0; i < 10; i++) {
+            hsm.echo("metrics");
+        }
+
+        CommandStatistics echo = metrics.getCommandStatistics(YSM_ECHO);
+        assertEquals(echo.getCommand(), "YSM_ECHO");
+        assertEquals(echo.getCount(), 10);
+        assertEquals(echo.getBytesOut(), 10 * (2 + 1 + 7));
+        assertEquals(echo.getBytesIn(), 10 * (2 + 1 + 7));
+        assertTrue(echo.getLatencyMean() >= 2000, echo.toString());
+        assertTrue(echo.getLatencyP99() >= echo.getLatencyP50(), echo.toString());
+        assertTrue(echo.getLatencyMax() >= echo.getLatencyP99(), echo.toString());
+        assertTrue(echo.getErrorStatuses().isEmpty());
+    }
+
+    @Test
+    public void testErrorStatusesAndTimeouts() throws Exception {
+        metrics.setEnabled(true);
+        long resets = metrics.getResets();
+        try {
+            hsm.generateHMACSHA1("data", 0x12345678, true, false);
+            fail("Expected an invalid key handle");
+        } catch (YubiHSMCommandFailedException e) {
+            /* expected */
+        }
+        simulator.dropResponses(1);
+        try {
+            hsm.getRandom(8);
+            fail("Expected a timeout");
+        } catch (YubiHSMErrorException e) {
+            /* expected */
+        }
+
+        CommandStatistics hmac = metrics.getCommandStatistics(YSM_HMAC_SHA1_GENERATE);
+        assertEquals(hmac.getErrorStatuses().get("YSM_KEY_HANDLE_INVALID"), Long.valueOf(1));
+        assertEquals(metrics.getCommandStatistics(YSM_RANDOM_GENERATE).getTimeouts(), 1);
+        assertEquals(metrics.getResets(), resets + 1);
+    }
+
+    @Test
+    public void testJmx() throws Exception {
+        ObjectName name = metrics.registerMBean();
+        hsm.echo("jmx");
+
+        assertTrue(metrics.isEnabled());
+        TabularData statistics = (TabularData) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "CommandStatistics");
+        assertEquals(statistics.size(), 1);
+        assertEquals(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "DeviceName"), "metrics");
+    }
+}
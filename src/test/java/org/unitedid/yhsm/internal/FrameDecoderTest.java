@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm.internal;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.unitedid.yhsm.SetupCommon;
+import org.unitedid.yhsm.YubiHSM;
+import org.unitedid.yhsm.utility.YubiHSMSimulator;
+
+import static org.testng.Assert.*;
+import static org.unitedid.yhsm.internal.Defines.*;
+
+public class FrameDecoderTest {
+
+    private LoopbackTransport host;
+    private LoopbackTransport device;
+    private FrameDecoder decoder;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        LoopbackTransport[] pair = LoopbackTransport.createPair("decoder");
+        host = pair[0];
+        device = pair[1];
+        decoder = new FrameDecoder(host);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        host.close();
+    }
+
+    @Test
+    public void testSkipsGarbageAndStaleResponses() throws Exception {
+        send(new byte[]{0x00, 0x00, 0x7f, 0x01});
+        send(response(YSM_RANDOM_GENERATE, new byte[]{4, 1, 2, 3, 4}));
+        send(response(YSM_ECHO, new byte[]{2, 'o', 'k'}));
+
+        long begin = System.nanoTime();
+        byte[] payload = decoder.readResponse(YSM_ECHO, 100, true);
+        long elapsed = System.nanoTime() - begin;
+
+        assertEquals(payload, new byte[]{2, 'o', 'k'});
+        assertEquals(decoder.getSkippedBytes(), 4);
+        assertEquals(decoder.getStaleFrames(), 1);
+        assertEquals(decoder.available(), 0);
+        assertTrue(elapsed < 5000000L, "Resynchronisation took " + elapsed + " ns");
+    }
+
+    @Test
+    public void testFrameSplitAcrossReads() throws Exception {
+        final byte[] frame = response(YSM_ECHO, new byte[]{3, 'a', 'b', 'c'});
+        send(new byte[]{frame[0], frame[1], frame[2]});
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                    device.write(frame, 3, frame.length - 3);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }).start();
+
+        assertEquals(decoder.readResponse(YSM_ECHO, 1000, true), new byte[]{3, 'a', 'b', 'c'});
+    }
+
+    @Test
+    public void testOtherResponseInOrderMode() throws Exception {
+        send(response(YSM_RANDOM_GENERATE, new byte[]{1, 9}));
+        send(response(YSM_ECHO, new byte[]{1, 'x'}));
+
+        assertNull(decoder.readResponse(YSM_ECHO, 100, false));
+        assertTrue(decoder.getFailure().contains("YSM_RANDOM_GENERATE"));
+        assertEquals(decoder.readResponse(YSM_ECHO, 100, false), new byte[]{1, 'x'});
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        send(new byte[]{5, (byte) (YSM_ECHO | YSM_RESPONSE), 1});
+
+        assertNull(decoder.readResponse(YSM_ECHO, 20, true));
+        assertTrue(decoder.getFailure().startsWith("Timeout waiting for 4 bytes"));
+        decoder.discard();
+        assertEquals(decoder.available(), 0);
+    }
+
+    @Test
+    public void testStaleResponseAfterTimeout() throws Exception {
+        YubiHSMSimulator simulator = SetupCommon.createSimulator("stale");
+        try {
+            YubiHSM hsm = new YubiHSM(simulator.getTransport(), 0.02f);
+            simulator.setLatency(YSM_RANDOM_GENERATE, 100000000L);
+            try {
+                hsm.getRandom(8);
+                fail("Expected a timeout");
+            } catch (YubiHSMErrorException e) {
+                assertEquals(e.getMessage(), "No data received from the YubiHSM!");
+            }
+            simulator.setLatency(YSM_RANDOM_GENERATE, 0);
+            Thread.sleep(150);
+
+            assertEquals(hsm.echo("after timeout"), "after timeout");
+            assertEquals(hsm.getRawDevice().getFrameDecoder().getStaleFrames(), 1);
+        } finally {
+            simulator.close();
+        }
+    }
+
+    private void send(byte[] data) throws Exception {
+        device.write(data, 0, data.length);
+    }
+
+    private static byte[] response(byte command, byte[] payload) {
+        byte[] frame = new byte[payload.length + 2];
+        frame[0] = (byte) (payload.length + 1);
+        frame[1] = (byte) (command | YSM_RESPONSE);
+        System.arraycopy(payload, 0, frame, 2, payload.length);
+        return frame;
+    }
+}
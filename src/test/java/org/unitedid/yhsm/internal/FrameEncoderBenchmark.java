@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm.internal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.unitedid.yhsm.internal.Defines.*;
+import static org.unitedid.yhsm.utility.Utils.*;
+
+/**
+ * Compares encoding commands with the pooled {@link FrameEncoder} against building them with array concatenation.
+ * Run the main method from the test classpath, the GC profiler reports gc.alloc.rate.norm, the bytes allocated
+ * per encoded command, which is 0 for the encoder.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameEncoderBenchmark {
+
+    private final FrameEncoder encoder = new FrameEncoder();
+    private final byte[] nonce = {0x01, 0x02, 0x03, 0x04, 0x05, 0x06};
+    private final byte[] data = "00000000000000ff".getBytes();
+    private int keyHandle = 0x3031;
+
+    @Benchmark
+    public int encodeHMAC() {
+        return encoder.begin(YSM_HMAC_SHA1_GENERATE).putInt(keyHandle)
+                .put((byte) (YSM_HMAC_SHA1_RESET | YSM_HMAC_SHA1_FINAL)).putData(data, 0).finish();
+    }
+
+    @Benchmark
+    public int encodeAEAD() {
+        return encoder.begin(YSM_AEAD_GENERATE).putNonce(nonce).putInt(keyHandle).putData(data, 20).finish();
+    }
+
+    @Benchmark
+    public byte[] concatHMAC() {
+        byte[] flags = {YSM_HMAC_SHA1_RESET | YSM_HMAC_SHA1_FINAL};
+        return CommandHandler.frame(YSM_HMAC_SHA1_GENERATE, concatAllArrays(leIntToBA(keyHandle), flags, addLengthToData(data)));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(FrameEncoderBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm.internal;
+
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.testng.Assert.*;
+import static org.unitedid.yhsm.internal.Defines.*;
+import static org.unitedid.yhsm.utility.Utils.*;
+
+public class FrameEncoderTest {
+
+    private final FrameEncoder encoder = new FrameEncoder();
+    private final byte[] nonce = {0x01, 0x02, 0x03, 0x04};
+    private final byte[] data = "Sample #2".getBytes();
+
+    @Test
+    public void testHMACFrameMatchesFrame() throws Exception {
+        int length = encoder.begin(YSM_HMAC_SHA1_GENERATE).putInt(0x3031)
+                .put((byte) (YSM_HMAC_SHA1_RESET | YSM_HMAC_SHA1_FINAL)).putData(data, 0).finish();
+        byte[] expected = CommandHandler.frame(YSM_HMAC_SHA1_GENERATE, concatAllArrays(leIntToBA(0x3031),
+                new byte[]{YSM_HMAC_SHA1_RESET | YSM_HMAC_SHA1_FINAL}, addLengthToData(data)));
+
+        assertEquals(Arrays.copyOf(encoder.array(), length), expected);
+    }
+
+    @Test
+    public void testAEADFrameMatchesFrame() throws Exception {
+        int length = encoder.begin(YSM_AEAD_GENERATE).putNonce(nonce).putInt(0x2000).putData(data, 20).finish();
+        byte[] expected = CommandHandler.frame(YSM_AEAD_GENERATE, concatAllArrays(validateNonce(nonce, true),
+                leIntToBA(0x2000), addLengthToData(validateByteArray("data", data, 0, 0, 20))));
+
+        assertEquals(Arrays.copyOf(encoder.array(), length), expected);
+    }
+
+    @Test
+    public void testPutFromBuffer() throws Exception {
+        ByteBuffer source = ByteBuffer.wrap(concatAllArrays(new byte[3], data));
+        int length = encoder.begin(YSM_AEAD_GENERATE).put(source, 3, data.length).finish();
+
+        assertEquals(Arrays.copyOfRange(encoder.array(), 2, length), data);
+        assertEquals(source.position(), 0);
+    }
+
+    @Test
+    public void testReuseClearsPadding() throws Exception {
+        encoder.begin(YSM_AEAD_GENERATE).put(new byte[40]).put((byte) 0xff).finish();
+        Arrays.fill(encoder.array(), (byte) 0xff);
+        int length = encoder.begin(YSM_AEAD_GENERATE).putNonce(nonce).putInt(0x2000).putData(data, 20).finish();
+
+        assertEquals(length, 2 + YSM_AEAD_NONCE_SIZE + 4 + 1 + 20);
+        assertEquals(encoder.array()[6], 0);
+        assertEquals(encoder.array()[length - 1], 0);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testFrameTooLong() throws Exception {
+        encoder.begin(YSM_HMAC_SHA1_GENERATE).putInt(1).put((byte) 0).putData(new byte[YSM_MAX_PKT_SIZE], 0);
+    }
+
+    @Test
+    public void testEncodeAllocatesNothing() throws Exception {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            throw new SkipException("Thread allocation counters are not available");
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        for (int i = 0; i < 100000; i++) {
+            encode(i);
+        }
+
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 100000; i++) {
+            encode(i);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        /* Reading the counter itself may allocate a little, 100000 encodes of 31 bytes would show */
+        assertTrue(allocated < 10000, "Encoding allocated " + allocated + " bytes");
+    }
+
+    private int encode(int keyHandle) {
+        return encoder.begin(YSM_AEAD_GENERATE).putNonce(nonce).putInt(keyHandle).putData(data, 20).finish();
+    }
+}
@@ -20,10 +20,13 @@ import org.testng.annotations.AfterTest;
 import org.testng.annotations.BeforeTest;
 import org.testng.annotations.Test;
 import org.unitedid.yhsm.SetupCommon;
+import org.unitedid.yhsm.utility.Utils;
 
 import java.util.Map;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
 import static org.unitedid.yhsm.internal.Defines.YSM_HMAC_SHA1_FINAL;
 import static org.unitedid.yhsm.internal.Defines.YSM_HMAC_SHA1_RESET;
 import static org.unitedid.yhsm.internal.Defines.YSM_SHA1_HASH_SIZE;
@@ -71,6 +74,17 @@ public class HMACCmdTest extends SetupCommon {
         assertEquals(result.get("hash"), expectedHash);
     }
 
+    @Test
+    public void testHMACSHA1Result() throws Exception {
+        HmacResult result = HMACCmd.generate(deviceHandler, data.substring(0, 3).getBytes(), keyHandle, YSM_HMAC_SHA1_RESET, false, false);
+        assertFalse(result.isLast());
+        assertEquals(result.toMap().get("hash"), expectedNextHash);
+        result = HMACCmd.update(deviceHandler, data.substring(3).getBytes(), keyHandle, true, false);
+        assertTrue(result.isLast());
+        assertEquals(Utils.byteArrayToHex(result.getHash()), expectedHash);
+        assertEquals(result.toMap().get("status"), "OK");
+    }
+
     @Test
     public void testHMACSHA1Interupted() throws Exception {
         Map<String, String> result = hsm.generateHMACSHA1(data.substring(0, 3), keyHandle, false, false);
@@ -16,18 +16,20 @@
 
 package org.unitedid.yhsm.internal;
 
+import org.testng.SkipException;
 import org.testng.annotations.AfterTest;
 import org.testng.annotations.BeforeTest;
 import org.testng.annotations.Test;
 import org.unitedid.yhsm.SetupCommon;
 import org.unitedid.yhsm.utility.Utils;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.List;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertTrue;
-import static org.unitedid.yhsm.internal.Defines.YSM_TEMP_KEY_HANDLE;
+import static org.unitedid.yhsm.internal.Defines.*;
 
 
 public class OATHTest extends SetupCommon {
@@ -98,6 +100,40 @@ public class OATHTest extends SetupCommon {
         }
     }
 
+    @Test
+    public void testTruncateRaw() throws Exception {
+        byte[] hmac = Utils.hexToByteArray("543c61f8f9aeb35f6dbc3a6847c3fe288cc0ee4c");
+
+        assertEquals(OATH.truncate(hmac, 6), OATH.parseOtp("026920"));
+        assertEquals(OATH.truncate(hmac, 8), OATH.parseOtp(OATH.truncate("543c61f8f9aeb35f6dbc3a6847c3fe288cc0ee4c", 8)));
+        assertEquals(OATH.parseOtp("02692x"), -1);
+        assertEquals(OATH.parseOtp(" 026920"), -1);
+    }
+
+    @Test
+    public void testTruncateAllocatesNothing() throws Exception {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            throw new SkipException("Thread allocation counters are not available");
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        byte[] hmac = Utils.hexToByteArray("cc93cf18508d94934c64b65d8ba7667fb7cde4b0");
+        int code = OATH.parseOtp("755224");
+        int matches = 0;
+        for (int i = 0; i < 100000; i++) {
+            matches += OATH.truncate(hmac, 6) == code ? 1 : 0;
+        }
+
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 100000; i++) {
+            matches += OATH.truncate(hmac, 6) == code ? 1 : 0;
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        assertEquals(matches, 200000);
+        assertTrue(allocated < 10000, "Truncation allocated " + allocated + " bytes");
+    }
+
     @Test(expectedExceptions = YubiHSMInputException.class)
     public void testOathHotpTruncateHMACLength() throws YubiHSMInputException {
         OATH.truncate("cccccccccccccccccccccccccccccccccccccccccc", 6);
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm.internal;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.unitedid.yhsm.SetupCommon;
+import org.unitedid.yhsm.YubiHSM;
+import org.unitedid.yhsm.utility.Utils;
+import org.unitedid.yhsm.utility.YubiHSMSimulator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+import static org.unitedid.yhsm.internal.Defines.*;
+
+/** OATH validation on a simulator of its own, counting the commands each validation sends */
+public class OathDeviceTest {
+
+    private final String nonce = "f1f2f3f4f5f6";
+    private final int keyHandle = 8192;
+    private YubiHSMSimulator simulator;
+    private YubiHSM hsm;
+    private String aead;
+    private String other;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        simulator = SetupCommon.createSimulator("oath");
+        hsm = new YubiHSM(simulator.getTransport());
+        aead = hsm.generateOathAEAD(nonce, keyHandle, "3132333435363738393031323334353637383930");
+        other = hsm.generateOathAEAD(nonce, keyHandle, "3132333435363738393031323334353637383931");
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        simulator.close();
+    }
+
+    @Test
+    public void testOathHotpWindowLoadsKeyOnce() throws Exception {
+        assertEquals(hsm.validateOathHOTP(keyHandle, nonce, aead, 0, "338314", 10), 5);
+        assertEquals(simulator.getCommandCount(YSM_TEMP_KEY_LOAD), 1);
+        assertEquals(simulator.getCommandCount(YSM_HMAC_SHA1_GENERATE), 5);
+
+        assertEquals(hsm.validateOathHOTP(keyHandle, nonce, aead, 0, "000000", 10), 0);
+        assertEquals(simulator.getCommandCount(YSM_HMAC_SHA1_GENERATE), 15);
+    }
+
+    @Test
+    public void testTemporaryKeyResidency() throws Exception {
+        assertEquals(hsm.validateOathHOTP(keyHandle, nonce, aead, 0, "755224", 10), 1);
+        assertEquals(hsm.validateOathHOTP(keyHandle, nonce, aead, 1, "287082", 10), 2);
+        assertEquals(simulator.getCommandCount(YSM_TEMP_KEY_LOAD), 1);
+
+        /* Another token replaces the temporary key */
+        assertEquals(hsm.validateOathHOTP(keyHandle, nonce, other, 0, "504140", 10), 1);
+        assertEquals(hsm.validateOathHOTP(keyHandle, nonce, aead, 2, "359152", 10), 3);
+        assertEquals(simulator.getCommandCount(YSM_TEMP_KEY_LOAD), 3);
+
+        /* A timeout may leave anything in the temporary key */
+        simulator.dropResponses(1);
+        try {
+            hsm.echo("lost");
+            fail("Expected a timeout");
+        } catch (YubiHSMErrorException e) {
+            /* expected */
+        }
+        assertEquals(hsm.validateOathHOTP(keyHandle, nonce, aead, 3, "969429", 10), 4);
+        assertEquals(simulator.getCommandCount(YSM_TEMP_KEY_LOAD), 4);
+
+        assertEquals(hsm.getMetrics().getTemporaryKeyLoads(), 5);
+        assertEquals(hsm.getMetrics().getTemporaryKeyLoadsSkipped(), 1);
+        assertEquals(hsm.getMetrics().getTemporaryKeySkipRatio(), 0.2, 0.0001);
+    }
+
+    @Test
+    public void testReusedAeadBufferIsLoadedAgain() throws Exception {
+        byte[] nonceBA = Utils.hexToByteArray(nonce);
+        byte[] buffer = Utils.hexToByteArray(aead);
+        long[] counters = {0};
+
+        assertEquals(OATH.findCounter(hsm, keyHandle, nonceBA, buffer, counters, 1, OATH.parseOtp("755224"), 6), 0);
+        assertEquals(simulator.getCommandCount(YSM_TEMP_KEY_LOAD), 1);
+
+        /* The caller reuses its buffer for the AEAD of another token */
+        byte[] otherBA = Utils.hexToByteArray(other);
+        System.arraycopy(otherBA, 0, buffer, 0, otherBA.length);
+        assertEquals(OATH.findCounter(hsm, keyHandle, nonceBA, buffer, counters, 1, OATH.parseOtp("504140"), 6), 0);
+        assertEquals(simulator.getCommandCount(YSM_TEMP_KEY_LOAD), 2);
+    }
+
+    @Test
+    public void testBatchValidationLoadsEachKeyOnce() throws Exception {
+        List<OathRequest> requests = new ArrayList<OathRequest>();
+        requests.add(OathRequest.hotp(nonce, aead, 0, "338314", 10));
+        requests.add(OathRequest.hotp(nonce, other, 0, "504140", 5));
+        requests.add(OathRequest.hotp(nonce, aead, 2, "359152", 5));
+        requests.add(OathRequest.hotp(nonce, aead, 0, "000000", 3));
+        requests.add(OathRequest.hotp(nonce, aead, 0, "12ab56", 3));
+        requests.add(OathRequest.totp(nonce, aead, 2 * 30 + 5, "359152", 30, 1, 1));
+        long[] expected = {5, 1, 3, 0, 0, 3};
+
+        assertEquals(hsm.validateOath(keyHandle, requests), expected);
+        assertEquals(simulator.getCommandCount(YSM_TEMP_KEY_LOAD), 2);
+        /* Strict mode stops at the first match: 5 + 1 + 3 + 1 for the first token, 1 for the other */
+        assertEquals(simulator.getCommandCount(YSM_HMAC_SHA1_GENERATE), 11);
+
+        /* Pipelined every candidate is sent, the malformed OTP costs nothing */
+        hsm.setPipelineDepth(4);
+        assertEquals(hsm.validateOath(keyHandle, requests), expected);
+        assertEquals(simulator.getCommandCount(YSM_TEMP_KEY_LOAD), 4);
+        assertEquals(simulator.getCommandCount(YSM_HMAC_SHA1_GENERATE), 11 + 10 + 5 + 5 + 3 + 3);
+    }
+
+    @Test
+    public void testResyncFindsConsecutiveOtps() throws Exception {
+        String otp500 = OATH.HOTP(hsm, keyHandle, nonce, aead, 500, "000000");
+        String otp501 = OATH.HOTP(hsm, keyHandle, nonce, aead, 501, "000000");
+        long hmacs = simulator.getCommandCount(YSM_HMAC_SHA1_GENERATE);
+
+        OathResync resync = hsm.resyncOathHOTP(keyHandle, nonce, aead, 0, otp500, otp501, 1000);
+        assertEquals(resync.getCounter(), 502);
+        assertEquals(resync.getHmacs(), 502);
+        assertEquals(simulator.getCommandCount(YSM_HMAC_SHA1_GENERATE), hmacs + 502);
+        assertTrue(resync.getDeviceNanos() > 0);
+
+        /* Pipelined, at most the commands in flight are computed past the match */
+        hsm.setPipelineDepth(8);
+        resync = hsm.resyncOathHOTP(keyHandle, nonce, aead, 400, otp500, otp501, 1000);
+        assertEquals(resync.getCounter(), 502);
+        assertTrue(resync.getHmacs() >= 102 && resync.getHmacs() <= 109, "HMACs: " + resync.getHmacs());
+
+        /* The OTPs in the wrong order are never adjacent */
+        resync = hsm.resyncOathHOTP(keyHandle, nonce, aead, 0, otp501, otp500, 600);
+        assertFalse(resync.isSynchronized());
+        assertEquals(resync.getHmacs(), 601);
+    }
+
+    @Test
+    public void testHotpRunsConcurrentlyAcrossDevices() throws Exception {
+        final YubiHSMSimulator slow = SetupCommon.createSimulator("oathSlow");
+        try {
+            final YubiHSM slowDevice = new YubiHSM(slow.getTransport());
+            final String slowAead = slowDevice.generateOathAEAD(nonce, keyHandle, "3132333435363738393031323334353637383930");
+
+            /* Keep an HMAC in flight on the slow device while the other device computes its OTP */
+            slow.setLatency(YSM_HMAC_SHA1_GENERATE, 300000000L);
+            final CountDownLatch slowDone = new CountDownLatch(1);
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        assertEquals(OATH.HOTP(slowDevice, keyHandle, nonce, slowAead, 4, "000000"), "338314");
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    } finally {
+                        slowDone.countDown();
+                    }
+                }
+            }).start();
+            while (slow.getCommandCount(YSM_HMAC_SHA1_GENERATE) == 0 && slowDone.getCount() > 0) {
+                Thread.sleep(1);
+            }
+
+            assertEquals(OATH.HOTP(hsm, keyHandle, nonce, aead, 4, "000000"), "338314");
+            assertEquals(slowDone.getCount(), 1, "The second device waited for the first one");
+            slowDone.await();
+            assertNull(failure.get());
+        } finally {
+            slow.close();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm.internal;
+
+import org.testng.annotations.Test;
+import org.unitedid.yhsm.YubiHSM;
+import org.unitedid.yhsm.utility.YubiHSMSimulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.testng.Assert.*;
+
+public class TransportTest {
+
+    @Test
+    public void testLoopbackReadsBackWrites() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport("loopback");
+        transport.write("ekoeko".getBytes(), 0, 6);
+        assertEquals(transport.available(), 6);
+
+        byte[] data = new byte[6];
+        assertTrue(transport.readExact(data, 0, 6, 100));
+        assertEquals(new String(data), "ekoeko");
+        assertEquals(transport.available(), 0);
+    }
+
+    @Test
+    public void testLoopbackTimeoutConsumesNothing() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport("loopback");
+        transport.write(new byte[] {1, 2}, 0, 2);
+
+        assertFalse(transport.readExact(new byte[3], 0, 3, 10));
+        assertEquals(transport.available(), 2);
+    }
+
+    @Test
+    public void testLoopbackPair() throws Exception {
+        LoopbackTransport[] pair = LoopbackTransport.createPair("pair");
+        pair[0].write("ping".getBytes(), 0, 4);
+        assertEquals(pair[0].available(), 0);
+
+        byte[] data = new byte[4];
+        assertTrue(pair[1].readExact(data, 0, 4, 100));
+        assertEquals(new String(data), "ping");
+    }
+
+    @Test
+    public void testLoopbackReaderWokenOnArrival() throws Exception {
+        final LoopbackTransport[] pair = LoopbackTransport.createPair("pair");
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                    pair[1].write(new byte[] {1, 2, 3}, 0, 3);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }).start();
+
+        long start = System.nanoTime();
+        assertTrue(pair[0].readExact(new byte[3], 0, 3, 5000));
+        assertTrue(System.nanoTime() - start < 2000000000L);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testLoopbackClosed() throws Exception {
+        LoopbackTransport[] pair = LoopbackTransport.createPair("pair");
+        pair[1].close();
+        pair[0].readExact(new byte[1], 0, 1, 1000);
+    }
+
+    @Test
+    public void testTcpTransport() throws Exception {
+        final ServerSocket server = new ServerSocket(0);
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Socket client = server.accept();
+                    InputStream in = client.getInputStream();
+                    OutputStream out = client.getOutputStream();
+                    int b;
+                    while ((b = in.read()) >= 0) {
+                        out.write(b);
+                    }
+                    client.close();
+                } catch (IOException e) {
+                    // connection closed by the test
+                }
+            }
+        }).start();
+
+        TcpTransport transport = TcpTransport.open("tcp://127.0.0.1:" + server.getLocalPort());
+        try {
+            transport.write("xxekoekoxx".getBytes(), 2, 6);
+            byte[] data = new byte[6];
+            assertTrue(transport.readExact(data, 0, 6, 1000));
+            assertEquals(new String(data), "ekoeko");
+            assertFalse(transport.readExact(data, 0, 1, 10));
+        } finally {
+            transport.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testFacadesShareDeviceHandler() throws Exception {
+        YubiHSMSimulator simulator = new YubiHSMSimulator("shared");
+        try {
+            YubiHSM first = new YubiHSM(simulator.getTransport());
+            YubiHSM second = new YubiHSM(simulator.getTransport());
+            assertSame(first.getRawDevice(), second.getRawDevice());
+
+            /* Dropping a facade must not close the transport the other one still uses */
+            first = null;
+            System.gc();
+            System.runFinalization();
+            assertEquals(second.echo("ekoeko"), "ekoeko");
+        } finally {
+            simulator.close();
+        }
+    }
+}
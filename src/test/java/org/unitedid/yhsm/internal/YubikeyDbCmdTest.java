@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm.internal;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.unitedid.yhsm.SetupCommon;
+import org.unitedid.yhsm.YubiHSM;
+import org.unitedid.yhsm.utility.Utils;
+import org.unitedid.yhsm.utility.YubiHSMSimulator;
+
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+import static org.unitedid.yhsm.internal.Defines.*;
+
+public class YubikeyDbCmdTest {
+
+    private final int keyHandle = 0x2000;
+    private final String publicId = "4d4d4d000001"; /* ftftftcccccb in modhex */
+    private final String privateId = "534543524554";
+    private final String key = "fcacd309a20ce1809c2db257f0e8d6ea";
+    private YubiHSMSimulator simulator;
+    private YubiHSM hsm;
+    private String aead;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        /* The internal database outlives the test run, use a simulator of our own */
+        simulator = SetupCommon.createSimulator("yubikeydb");
+        hsm = new YubiHSM(simulator.getTransport());
+        aead = hsm.generateAEAD(publicId, keyHandle, Utils.hexToByteArray(key + privateId)).get("aead");
+    }
+
+    @AfterClass
+    public void tearDown() throws Exception {
+        simulator.close();
+    }
+
+    @Test
+    public void testStoreAndValidate() throws Exception {
+        assertNull(hsm.validateYubikeyOtp(publicId, "828e71152b15a4823bb34b6e6a5d4353"));
+        assertTrue(hsm.storeYubikeyAEAD(publicId, keyHandle, aead));
+        assertFalse(hsm.storeYubikeyAEAD(publicId, keyHandle, aead));
+
+        Map<String, Integer> result = hsm.validateYubikeyOtp(publicId, "828e71152b15a4823bb34b6e6a5d4353");
+        assertEquals((int) result.get("useCtr"), 1);
+        assertEquals((int) result.get("tsLow"), 24133);
+
+        /* The fast path only sends the public id and the OTP */
+        long decodes = simulator.getCommandCount(YSM_AEAD_YUBIKEY_OTP_DECODE);
+        result = hsm.validateYubikeyOtp(publicId, keyHandle, aead, "c91e8472c2a76459a2a8b81c32d44955");
+        assertEquals((int) result.get("useCtr"), 2);
+        assertEquals((int) result.get("sessionCtr"), 4);
+        assertEquals(simulator.getCommandCount(YSM_AEAD_YUBIKEY_OTP_DECODE), decodes);
+
+        try {
+            hsm.validateYubikeyOtp(publicId, keyHandle, aead, "828e71152b15a4823bb34b6e6a5d4353");
+            fail("Replayed OTP validated");
+        } catch (YubiHSMCommandFailedException e) {
+            assertEquals(e.getMessage(), "Command YSM_DB_OTP_VALIDATE failed: YSM_OTP_REPLAY");
+        }
+    }
+
+    @Test
+    public void testUnknownYubikeyIsStored() throws Exception {
+        String otherId = "4d4d4d000002";
+        String otherAead = hsm.generateAEAD(otherId, keyHandle, Utils.hexToByteArray(key + privateId)).get("aead");
+        long stores = simulator.getCommandCount(YSM_DB_YUBIKEY_AEAD_STORE);
+        long decodes = simulator.getCommandCount(YSM_AEAD_YUBIKEY_OTP_DECODE);
+        Map<String, Integer> result = hsm.validateYubikeyOtp(otherId, keyHandle, otherAead, "828e71152b15a4823bb34b6e6a5d4353");
+        assertEquals((int) result.get("useCtr"), 1);
+        assertEquals(simulator.getCommandCount(YSM_DB_YUBIKEY_AEAD_STORE), stores + 1);
+        assertEquals(simulator.getCommandCount(YSM_AEAD_YUBIKEY_OTP_DECODE), decodes);
+
+        /* A new facade, ie after a restart, still has the replay protection of the internal database */
+        YubiHSM restarted = new YubiHSM(simulator.getTransport());
+        try {
+            restarted.validateYubikeyOtp(otherId, keyHandle, otherAead, "828e71152b15a4823bb34b6e6a5d4353");
+            fail("Replayed OTP validated");
+        } catch (YubiHSMCommandFailedException e) {
+            assertEquals(e.getMessage(), "Command YSM_DB_OTP_VALIDATE failed: YSM_OTP_REPLAY");
+        }
+        assertEquals(simulator.getCommandCount(YSM_DB_YUBIKEY_AEAD_STORE), stores + 1);
+    }
+
+    @Test(expectedExceptions = YubiHSMCommandFailedException.class,
+          expectedExceptionsMessageRegExp = "Command YSM_DB_YUBIKEY_AEAD_STORE failed: YSM_AEAD_INVALID")
+    public void testStoreInvalidAEAD() throws Exception {
+        hsm.storeYubikeyAEAD("4d4d4d000003", keyHandle, aead);
+    }
+}
@@ -74,6 +74,18 @@ public class YubikeyOtpDecodeCmdTest extends SetupCommon {
         assertEquals(result, expected);
     }
 
+    @Test
+    public void testYubikeyDecodeResult() throws Exception {
+        byte[] secretBA = Utils.hexToByteArray(new String(key + privateId));
+        byte[] aead = AEADCmd.generateAEAD(deviceHandler, Utils.hexToByteArray(publicId), keyHandle, secretBA).getAead();
+        OtpDecodeResult result = hsm.decodeYubikeyOtp(Utils.hexToByteArray(publicId), keyHandle, aead,
+                Utils.hexToByteArray("c91e8472c2a76459a2a8b81c32d44955"));
+        assertEquals(result.getUseCtr(), 2);
+        assertEquals(result.getSessionCtr(), 4);
+        assertEquals(result.getTimestamp(), 204 << 16 | 28386);
+        assertEquals(result.toMap(), hsm.decodeYubikeyOtp(publicId, keyHandle, Utils.byteArrayToHex(aead), "c91e8472c2a76459a2a8b81c32d44955"));
+    }
+
     @Test(expectedExceptions = YubiHSMCommandFailedException.class,
           expectedExceptionsMessageRegExp = "Command YSM_AEAD_YUBIKEY_OTP_DECODE failed: YSM_OTP_INVALID")
     public void testYubikeyDecodeInvalid() throws Exception {
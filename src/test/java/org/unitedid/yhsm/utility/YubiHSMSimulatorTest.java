@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2011 - 2014 United ID.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.unitedid.yhsm.utility;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.unitedid.yhsm.YubiHSM;
+import org.unitedid.yhsm.internal.YubiHSMCommandFailedException;
+
+import java.util.Map;
+
+import static org.testng.Assert.*;
+import static org.unitedid.yhsm.internal.Defines.*;
+
+public class YubiHSMSimulatorTest {
+
+    private final int keyHandle = 0x2000;
+    private byte[] publicId;
+    private byte[] uid;
+    private byte[] key;
+
+    private YubiHSMSimulator simulator;
+    private YubiHSM hsm;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        publicId = Utils.hexToByteArray("4d4d4d000001");
+        uid = Utils.hexToByteArray("534543524554");
+        key = Utils.hexToByteArray("fcacd309a20ce1809c2db257f0e8d6ea");
+        simulator = new YubiHSMSimulator("simulator");
+        simulator.addKey(keyHandle, YubiHSMSimulator.PERMISSION_ALL, Utils.hexToByteArray(
+                "2000200020002000200020002000200020002000200020002000200020002000"));
+        hsm = new YubiHSM(simulator.getTransport());
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        simulator.close();
+    }
+
+    @Test
+    public void testDecodeEmulatedOtps() throws Exception {
+        YubiKeyEmulator yubikey = new YubiKeyEmulator(publicId, uid, key, 3);
+        String aead = hsm.generateAEAD(Utils.byteArrayToHex(publicId), keyHandle, Utils.concatAllArrays(key, uid)).get("aead");
+
+        for (int i = 0; i < 3; i++) {
+            Map<String, Integer> result = hsm.decodeYubikeyOtp(Utils.byteArrayToHex(publicId), keyHandle, aead, yubikey.nextOtp());
+            assertEquals(result.get("useCtr"), Integer.valueOf(3));
+            assertEquals(result.get("sessionCtr"), Integer.valueOf(i));
+        }
+    }
+
+    @Test
+    public void testHsmUnlockRejectsReplay() throws Exception {
+        simulator.addYubiKey(publicId, uid, key);
+        YubiKeyEmulator yubikey = new YubiKeyEmulator(publicId, uid, key, 1);
+        String otp = yubikey.nextOtp();
+
+        assertTrue(hsm.unlockOtp(Utils.byteArrayToHex(publicId), otp));
+        try {
+            hsm.unlockOtp(Utils.byteArrayToHex(publicId), otp);
+            fail("Replayed OTP accepted");
+        } catch (YubiHSMCommandFailedException e) {
+            assertEquals(e.getMessage(), "Command YSM_HSM_UNLOCK failed: YSM_OTP_REPLAY");
+        }
+        assertTrue(hsm.unlockOtp(Utils.byteArrayToHex(publicId), yubikey.nextOtp()));
+    }
+
+    @Test
+    public void testCommandLatency() throws Exception {
+        simulator.setLatency(YSM_ECHO, 20000000);
+
+        long start = System.nanoTime();
+        assertEquals(hsm.echo("latency"), "latency");
+        assertTrue(System.nanoTime() - start >= 20000000);
+    }
+
+    @Test
+    public void testCommandCount() throws Exception {
+        long before = simulator.getCommandCount(YSM_ECHO);
+        hsm.echo("one");
+        hsm.echo("two");
+        assertEquals(simulator.getCommandCount(YSM_ECHO), before + 2);
+    }
+
+    @Test(expectedExceptions = YubiHSMCommandFailedException.class,
+          expectedExceptionsMessageRegExp = "Command YSM_AEAD_GENERATE failed: YSM_KEY_HANDLE_INVALID")
+    public void testUnknownKeyHandle() throws Exception {
+        hsm.generateAEAD(Utils.byteArrayToHex(publicId), 0x4711, "data");
+    }
+}